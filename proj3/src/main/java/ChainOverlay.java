@@ -0,0 +1,333 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A GraphDB with its degree-2 chains collapsed, for plain A*. Most vertices of an OSM
+ * extract are shape points in the middle of a way: the road only enters them from one
+ * neighbour and leaves to the other, either both ways or, on a one-way road, one way.
+ * Such a vertex is interior; every other vertex is core. Each run of interior vertices
+ * between two core vertices becomes one chain edge carrying the summed cost of its
+ * original edges, so the search pushes and pops only core vertices.
+ * A chain is stored by its first original edge, and expanded by walking the graph from
+ * there until the next core vertex, so paths come back as original node ids and cost the
+ * same as a path found by A* over the full graph; where several paths tie, the two may
+ * pick different ones. That is why the overlay is only searched when asked for, through
+ * Router.Algorithm.CHAIN_ASTAR. A ring made only of interior vertices has one of them
+ * promoted to core so that every vertex lies on some chain.
+ */
+public class ChainOverlay {
+    private final boolean[] core;
+    private final int numCore;
+    /** Chains leaving each vertex, in CSR form over the dense vertex indices. */
+    private final int[] offsets;
+    private final int[] sources;
+    private final int[] ends;
+    private final int[] firstEdges;
+    private final double[] lengths;
+    private final double[] times;
+
+    /**
+     * Collapses the chains of a graph whose forward and reverse adjacency arrays are in
+     * place.
+     * @param g The graph.
+     */
+    ChainOverlay(GraphDB g) {
+        int n = g.numVertices();
+        core = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            core[v] = !passesThrough(g, v);
+        }
+        boolean[] covered = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            if (core[v]) {
+                cover(g, v, covered);
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (!core[v] && !covered[v]) {
+                core[v] = true;
+                cover(g, v, covered);
+            }
+        }
+
+        int count = 0;
+        offsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            if (core[v]) {
+                count++;
+                offsets[v + 1] = g.edgeEnd(v) - g.edgeBegin(v);
+            }
+            offsets[v + 1] += offsets[v];
+        }
+        numCore = count;
+        sources = new int[offsets[n]];
+        ends = new int[offsets[n]];
+        firstEdges = new int[offsets[n]];
+        lengths = new double[offsets[n]];
+        times = new double[offsets[n]];
+        for (int v = 0; v < n; v++) {
+            if (!core[v]) {
+                continue;
+            }
+            int c = offsets[v];
+            for (int e = g.edgeBegin(v); e < g.edgeEnd(v); e++, c++) {
+                double length = g.edgeLength(e);
+                double time = g.edgeWeight(e, GraphDB.Metric.TIME);
+                int prev = v;
+                int w = g.edgeTarget(e);
+                while (!core[w]) {
+                    int next = next(g, w, prev);
+                    length += g.edgeLength(next);
+                    time += g.edgeWeight(next, GraphDB.Metric.TIME);
+                    prev = w;
+                    w = g.edgeTarget(next);
+                }
+                sources[c] = v;
+                ends[c] = w;
+                firstEdges[c] = e;
+                lengths[c] = length;
+                times[c] = time;
+            }
+        }
+    }
+
+    /**
+     * Returns whether v is interior: a route through it must arrive from one of its two
+     * neighbours and leave to the other, with one edge for each way it can be crossed.
+     */
+    private static boolean passesThrough(GraphDB g, int v) {
+        int out = g.edgeEnd(v) - g.edgeBegin(v);
+        int in = g.inEdgeEnd(v) - g.inEdgeBegin(v);
+        if (out == 1 && in == 1) {
+            int a = g.inEdgeSource(g.inEdgeBegin(v));
+            int b = g.edgeTarget(g.edgeBegin(v));
+            return a != b && a != v && b != v;
+        }
+        if (out == 2 && in == 2) {
+            int b1 = g.edgeTarget(g.edgeBegin(v));
+            int b2 = g.edgeTarget(g.edgeBegin(v) + 1);
+            int a1 = g.inEdgeSource(g.inEdgeBegin(v));
+            int a2 = g.inEdgeSource(g.inEdgeBegin(v) + 1);
+            return b1 != b2 && b1 != v && b2 != v
+                    && (a1 == b1 && a2 == b2 || a1 == b2 && a2 == b1);
+        }
+        return false;
+    }
+
+    /** Marks the interior vertices on the chains leaving core vertex v. */
+    private void cover(GraphDB g, int v, boolean[] covered) {
+        for (int e = g.edgeBegin(v); e < g.edgeEnd(v); e++) {
+            int prev = v;
+            int w = g.edgeTarget(e);
+            while (!core[w]) {
+                covered[w] = true;
+                int next = next(g, w, prev);
+                prev = w;
+                w = g.edgeTarget(next);
+            }
+        }
+    }
+
+    /** Returns the edge leaving interior vertex v that does not lead back to prev. */
+    private static int next(GraphDB g, int v, int prev) {
+        int e = g.edgeBegin(v);
+        return g.edgeTarget(e) == prev && g.edgeEnd(v) - e == 2 ? e + 1 : e;
+    }
+
+    /** Returns the incoming slot of interior vertex v that does not come from next. */
+    private static int previous(GraphDB g, int v, int next) {
+        int r = g.inEdgeBegin(v);
+        return g.inEdgeSource(r) == next && g.inEdgeEnd(v) - r == 2 ? r + 1 : r;
+    }
+
+    /** Returns the number of core vertices, the vertices the overlay is searched over. */
+    int numCoreVertices() { return numCore; }
+
+    /** Returns the number of chain edges between core vertices. */
+    int numChains() { return ends.length; }
+
+    boolean isCore(int v) { return core[v]; }
+
+    /**
+     * Returns a shortest path between two vertices of g, the graph this overlay was built
+     * on, as the node ids Router.shortestPath returns.
+     * An interior start is left along its one or two roads up to the next core vertex, or
+     * straight to dest if it lies on the way. An interior dest is entered from the core
+     * vertices its roads come from, and the search ends once no vertex left in the heap
+     * can beat the best entry. The workspace parent of a core vertex is the chain that
+     * reached it, or -2 - k when it was reached from the start along its k-th edge.
+     * @param g The graph.
+     * @param start The dense index of the start vertex.
+     * @param dest The dense index of the destination vertex.
+     * @param metric What the path should minimise.
+     * @return The node ids along the path, or null if dest cannot be reached.
+     */
+    List<Long> shortestPath(GraphDB g, int start, int dest, GraphDB.Metric metric) {
+        if (start == dest) {
+            List<Long> res = new ArrayList<>();
+            res.add(g.idAt(start));
+            return res;
+        }
+        double[] costs = metric == GraphDB.Metric.TIME ? times : lengths;
+        double scale = g.minCostPerMile(metric);
+        double destLon = g.lonAt(dest);
+        double destLat = g.latAt(dest);
+        SearchWorkspace ws = SearchWorkspace.get(g.numVertices());
+
+        double best = Double.POSITIVE_INFINITY;
+        int directEdge = -1;
+        if (core[start]) {
+            ws.reach(start, 0, -1);
+            ws.heap.insertOrDecrease(start, 0);
+        } else {
+            for (int e = g.edgeBegin(start); e < g.edgeEnd(start); e++) {
+                double cost = g.edgeWeight(e, metric);
+                int prev = start;
+                int w = g.edgeTarget(e);
+                while (!core[w] && w != dest) {
+                    int next = next(g, w, prev);
+                    cost += g.edgeWeight(next, metric);
+                    prev = w;
+                    w = g.edgeTarget(next);
+                }
+                if (!core[w]) {
+                    if (cost < best) {
+                        best = cost;
+                        directEdge = e;
+                    }
+                } else if (cost < ws.g(w)) {
+                    ws.reach(w, cost, -2 - (e - g.edgeBegin(start)));
+                    ws.setH(w, scale * GraphDB.distance(g.lonAt(w), g.latAt(w),
+                            destLon, destLat));
+                    ws.heap.insertOrDecrease(w, cost + ws.h(w));
+                }
+            }
+        }
+
+        /* The core vertices an interior dest is entered from, and the cost of the rest. */
+        int[] entries = new int[2];
+        int[] entrySlots = new int[2];
+        double[] entryCosts = new double[2];
+        int numEntries = 0;
+        if (!core[dest]) {
+            for (int r = g.inEdgeBegin(dest); r < g.inEdgeEnd(dest); r++) {
+                double cost = g.edgeWeight(g.inEdge(r), metric);
+                int next = dest;
+                int u = g.inEdgeSource(r);
+                while (!core[u] && u != start) {
+                    int slot = previous(g, u, next);
+                    cost += g.edgeWeight(g.inEdge(slot), metric);
+                    next = u;
+                    u = g.inEdgeSource(slot);
+                }
+                /* Paths from an interior start along its own chain were found above. */
+                if (core[u]) {
+                    entries[numEntries] = u;
+                    entrySlots[numEntries] = r;
+                    entryCosts[numEntries] = cost;
+                    numEntries++;
+                }
+            }
+        }
+
+        int via = -1;
+        int viaEntry = -1;
+        while (ws.heap.minKey() < best) {
+            int v = ws.heap.poll();
+            ws.close(v);
+            double gv = ws.g(v);
+            if (v == dest) {
+                via = v;
+                best = gv;
+                break;
+            }
+            for (int i = 0; i < numEntries; i++) {
+                if (entries[i] == v && gv + entryCosts[i] < best) {
+                    best = gv + entryCosts[i];
+                    via = v;
+                    viaEntry = i;
+                }
+            }
+            for (int c = offsets[v]; c < offsets[v + 1]; c++) {
+                int w = ends[c];
+                if (ws.isClosed(w)) {
+                    continue;
+                }
+                double tentative = gv + costs[c];
+                if (tentative < ws.g(w)) {
+                    ws.reach(w, tentative, c);
+                    if (Double.isNaN(ws.h(w))) {
+                        ws.setH(w, scale * GraphDB.distance(g.lonAt(w), g.latAt(w),
+                                destLon, destLat));
+                    }
+                    ws.heap.insertOrDecrease(w, tentative + ws.h(w));
+                }
+            }
+        }
+        if (best == Double.POSITIVE_INFINITY) {
+            return null;
+        }
+
+        List<Long> res = new ArrayList<>();
+        res.add(g.idAt(start));
+        if (via < 0) {
+            walk(g, start, directEdge, dest, res);
+            return res;
+        }
+        int[] path = new int[16];
+        int length = 0;
+        int v = via;
+        while (ws.parent(v) >= 0) {
+            if (length == path.length) {
+                path = Arrays.copyOf(path, 2 * length);
+            }
+            path[length++] = ws.parent(v);
+            v = sources[ws.parent(v)];
+        }
+        if (ws.parent(v) != -1) {
+            walk(g, start, g.edgeBegin(start) - 2 - ws.parent(v), v, res);
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            walk(g, sources[path[i]], firstEdges[path[i]], ends[path[i]], res);
+        }
+        if (viaEntry >= 0) {
+            /* Walk back from dest to the entry, then append that stretch reversed. */
+            length = 0;
+            int next = dest;
+            int r = entrySlots[viaEntry];
+            while (true) {
+                if (length == path.length) {
+                    path = Arrays.copyOf(path, 2 * length);
+                }
+                path[length++] = next;
+                int u = g.inEdgeSource(r);
+                if (u == via) {
+                    break;
+                }
+                r = previous(g, u, next);
+                next = u;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                res.add(g.idAt(path[i]));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Appends the ids of the vertices after from, leaving it along edge e and following
+     * interior vertices until to.
+     */
+    private static void walk(GraphDB g, int from, int e, int to, List<Long> res) {
+        int prev = from;
+        int w = g.edgeTarget(e);
+        res.add(g.idAt(w));
+        while (w != to) {
+            int next = next(g, w, prev);
+            prev = w;
+            w = g.edgeTarget(next);
+            res.add(g.idAt(w));
+        }
+    }
+}
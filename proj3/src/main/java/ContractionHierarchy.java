@@ -0,0 +1,398 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A contraction hierarchy over a GraphDB: every vertex has a rank (the order in which
+ * HierarchyBuilder contracted it), and the graph is extended with shortcuts so that every
+ * shortest path can be found by searching only towards higher ranks, forwards from the
+ * start and backwards from the destination, meeting at the path's most important vertex.
+ * Those searches settle a few hundred vertices where A* settles thousands.
+ * Edges are kept in two CSR arrays indexed by their less important end: up holds v -> w
+ * and down holds w -> v, both for rank[w] > rank[v]. A shortcut records the vertex it
+ * bypasses, so paths are unpacked back into the original edges of the GraphDB.
+ */
+public class ContractionHierarchy {
+    private static final int MAGIC = 0x42434848;
+    private static final int VERSION = 2;
+
+    private final GraphDB.Metric metric;
+    private final int[] rank;
+    private final int[] upOffsets;
+    private final int[] upEnds;
+    private final double[] upWeights;
+    /** The vertex a shortcut bypasses, or -1 for an original edge. */
+    private final int[] upMiddles;
+    private final int[] downOffsets;
+    private final int[] downEnds;
+    private final double[] downWeights;
+    private final int[] downMiddles;
+
+    private ContractionHierarchy(GraphDB.Metric metric, int[] rank, int[] upOffsets,
+                                 int[] upEnds, double[] upWeights, int[] upMiddles,
+                                 int[] downOffsets, int[] downEnds, double[] downWeights,
+                                 int[] downMiddles) {
+        this.metric = metric;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upEnds = upEnds;
+        this.upWeights = upWeights;
+        this.upMiddles = upMiddles;
+        this.downOffsets = downOffsets;
+        this.downEnds = downEnds;
+        this.downWeights = downWeights;
+        this.downMiddles = downMiddles;
+    }
+
+    /** Packs the per-vertex edge lists of HierarchyBuilder into CSR arrays. */
+    static ContractionHierarchy fromEdges(GraphDB.Metric metric, int[] rank,
+                                          HierarchyBuilder.EdgeList[] up,
+                                          HierarchyBuilder.EdgeList[] down) {
+        int n = rank.length;
+        int[] upOffsets = new int[n + 1];
+        int[] downOffsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            upOffsets[v + 1] = upOffsets[v] + up[v].size;
+            downOffsets[v + 1] = downOffsets[v] + down[v].size;
+        }
+        int[] upEnds = new int[upOffsets[n]];
+        double[] upWeights = new double[upOffsets[n]];
+        int[] upMiddles = new int[upOffsets[n]];
+        int[] downEnds = new int[downOffsets[n]];
+        double[] downWeights = new double[downOffsets[n]];
+        int[] downMiddles = new int[downOffsets[n]];
+        for (int v = 0; v < n; v++) {
+            System.arraycopy(up[v].ends, 0, upEnds, upOffsets[v], up[v].size);
+            System.arraycopy(up[v].weights, 0, upWeights, upOffsets[v], up[v].size);
+            System.arraycopy(up[v].middles, 0, upMiddles, upOffsets[v], up[v].size);
+            System.arraycopy(down[v].ends, 0, downEnds, downOffsets[v], down[v].size);
+            System.arraycopy(down[v].weights, 0, downWeights, downOffsets[v], down[v].size);
+            System.arraycopy(down[v].middles, 0, downMiddles, downOffsets[v], down[v].size);
+        }
+        return new ContractionHierarchy(metric, rank, upOffsets, upEnds, upWeights, upMiddles,
+                downOffsets, downEnds, downWeights, downMiddles);
+    }
+
+    int numVertices() { return rank.length; }
+
+    /** Returns the metric whose edge costs this hierarchy minimises. */
+    GraphDB.Metric metric() { return metric; }
+
+    /** Returns the number of shortcuts added on top of the original edges. */
+    int numShortcuts() {
+        int count = 0;
+        for (int m : upMiddles) {
+            count += m >= 0 ? 1 : 0;
+        }
+        for (int m : downMiddles) {
+            count += m >= 0 ? 1 : 0;
+        }
+        return count;
+    }
+
+    /** Returns the approximate number of bytes the hierarchy's arrays take. */
+    long sizeInBytes() {
+        return 4L * (rank.length + upOffsets.length + downOffsets.length)
+                + 16L * (upEnds.length + downEnds.length);
+    }
+
+    /**
+     * Returns a shortest path between two vertices of g, the graph this hierarchy was
+     * built on, as the node ids Router.shortestPath returns.
+     * @param g The graph.
+     * @param start The dense index of the start vertex.
+     * @param dest The dense index of the destination vertex.
+     * @return The node ids along the path, or null if dest cannot be reached.
+     */
+    List<Long> shortestPath(GraphDB g, int start, int dest) {
+        SearchWorkspace fw = SearchWorkspace.get(rank.length, SearchWorkspace.FORWARD);
+        SearchWorkspace bw = SearchWorkspace.get(rank.length, SearchWorkspace.BACKWARD);
+        fw.reach(start, 0, -1);
+        fw.heap.insertOrDecrease(start, 0);
+        bw.reach(dest, 0, -1);
+        bw.heap.insertOrDecrease(dest, 0);
+
+        int meeting = -1;
+        double best = Double.POSITIVE_INFINITY;
+        while (fw.heap.minKey() < best || bw.heap.minKey() < best) {
+            boolean forward = fw.heap.minKey() <= bw.heap.minKey();
+            SearchWorkspace ws = forward ? fw : bw;
+            SearchWorkspace other = forward ? bw : fw;
+            int v = ws.heap.poll();
+            ws.close(v);
+            if (other.reached(v) && ws.g(v) + other.g(v) < best) {
+                best = ws.g(v) + other.g(v);
+                meeting = v;
+            }
+            if (forward) {
+                relax(ws, v, upOffsets, upEnds, upWeights, downOffsets, downEnds, downWeights);
+            } else {
+                relax(ws, v, downOffsets, downEnds, downWeights, upOffsets, upEnds, upWeights);
+            }
+        }
+        if (meeting < 0) {
+            return null;
+        }
+
+        int[] path = new int[16];
+        int length = 0;
+        for (int v = meeting; v >= 0; v = fw.parent(v)) {
+            if (length == path.length) {
+                path = Arrays.copyOf(path, 2 * length);
+            }
+            path[length++] = v;
+        }
+        List<Long> res = new ArrayList<>();
+        res.add(g.idAt(start));
+        for (int i = length - 1; i > 0; i--) {
+            unpack(g, path[i], path[i - 1], res);
+        }
+        for (int v = meeting; bw.parent(v) >= 0; v = bw.parent(v)) {
+            unpack(g, v, bw.parent(v), res);
+        }
+        return res;
+    }
+
+    /**
+     * Distances from every source to every target, in the order given, as a row-major
+     * sources.length x targets.length array; +infinity where a target cannot be reached.
+     * This is the bucket-based many-to-many algorithm: one backward upward search per
+     * target leaves (target, distance) entries in a bucket at every vertex it settles, then
+     * one forward upward search per source scans the buckets of the vertices it settles.
+     * Both kinds of search run in parallel.
+     * @param sources Dense indices of the source vertices.
+     * @param targets Dense indices of the target vertices.
+     * @return The distance matrix.
+     */
+    double[] manyToMany(int[] sources, int[] targets) {
+        int[][] spaces = new int[targets.length][];
+        double[][] spaceDistances = new double[targets.length][];
+        IntStream.range(0, targets.length).parallel().forEach(j -> {
+            SearchWorkspace ws = SearchWorkspace.get(rank.length, SearchWorkspace.BACKWARD);
+            spaces[j] = upwardSearch(ws, targets[j], false);
+            spaceDistances[j] = new double[spaces[j].length];
+            for (int k = 0; k < spaces[j].length; k++) {
+                spaceDistances[j][k] = ws.g(spaces[j][k]);
+            }
+        });
+
+        /* Counting sort of the bucket entries by vertex. */
+        int[] bucketOffsets = new int[rank.length + 1];
+        for (int[] space : spaces) {
+            for (int v : space) {
+                bucketOffsets[v + 1]++;
+            }
+        }
+        for (int v = 0; v < rank.length; v++) {
+            bucketOffsets[v + 1] += bucketOffsets[v];
+        }
+        int[] bucketTargets = new int[bucketOffsets[rank.length]];
+        double[] bucketDistances = new double[bucketTargets.length];
+        int[] fill = Arrays.copyOf(bucketOffsets, rank.length);
+        for (int j = 0; j < targets.length; j++) {
+            for (int k = 0; k < spaces[j].length; k++) {
+                int slot = fill[spaces[j][k]]++;
+                bucketTargets[slot] = j;
+                bucketDistances[slot] = spaceDistances[j][k];
+            }
+        }
+
+        double[] res = new double[sources.length * targets.length];
+        Arrays.fill(res, Double.POSITIVE_INFINITY);
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            SearchWorkspace ws = SearchWorkspace.get(rank.length, SearchWorkspace.FORWARD);
+            int row = i * targets.length;
+            for (int v : upwardSearch(ws, sources[i], true)) {
+                double gv = ws.g(v);
+                for (int b = bucketOffsets[v]; b < bucketOffsets[v + 1]; b++) {
+                    int cell = row + bucketTargets[b];
+                    res[cell] = Math.min(res[cell], gv + bucketDistances[b]);
+                }
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Runs an unbounded upward search from source, forward or backward, and returns the
+     * vertices it settled without stalling; their distances are left in ws.
+     */
+    private int[] upwardSearch(SearchWorkspace ws, int source, boolean forward) {
+        int[] settled = new int[64];
+        int count = 0;
+        ws.reach(source, 0, -1);
+        ws.heap.insertOrDecrease(source, 0);
+        while (!ws.heap.isEmpty()) {
+            int v = ws.heap.poll();
+            ws.close(v);
+            boolean relaxed = forward
+                    ? relax(ws, v, upOffsets, upEnds, upWeights,
+                            downOffsets, downEnds, downWeights)
+                    : relax(ws, v, downOffsets, downEnds, downWeights,
+                            upOffsets, upEnds, upWeights);
+            if (relaxed) {
+                if (count == settled.length) {
+                    settled = Arrays.copyOf(settled, 2 * count);
+                }
+                settled[count++] = v;
+            }
+        }
+        return Arrays.copyOf(settled, count);
+    }
+
+    /**
+     * Relaxes the edges of v in the search direction, unless v is stalled: an edge of the
+     * opposite direction from a more important vertex already gives v a shorter distance,
+     * so no shortest path continues through v.
+     * @return False if v was stalled.
+     */
+    private static boolean relax(SearchWorkspace ws, int v, int[] offsets, int[] ends,
+                                 double[] weights, int[] stallOffsets, int[] stallEnds,
+                                 double[] stallWeights) {
+        double gv = ws.g(v);
+        for (int e = stallOffsets[v]; e < stallOffsets[v + 1]; e++) {
+            if (ws.g(stallEnds[e]) + stallWeights[e] < gv) {
+                return false;
+            }
+        }
+        for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+            int w = ends[e];
+            double d = gv + weights[e];
+            if (d < ws.g(w)) {
+                ws.reach(w, d, v);
+                ws.heap.insertOrDecrease(w, d);
+            }
+        }
+        return true;
+    }
+
+    /** Appends the original vertices after a on the edge a -> b, ending with b. */
+    private void unpack(GraphDB g, int a, int b, List<Long> res) {
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = a;
+        stack[size++] = b;
+        while (size > 0) {
+            int to = stack[--size];
+            int from = stack[--size];
+            int middle = middleOf(from, to);
+            if (middle < 0) {
+                res.add(g.idAt(to));
+                continue;
+            }
+            if (size + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            stack[size++] = middle;
+            stack[size++] = to;
+            stack[size++] = from;
+            stack[size++] = middle;
+        }
+    }
+
+    /** Returns the vertex the edge a -> b bypasses, or -1 if it is an original edge. */
+    private int middleOf(int a, int b) {
+        if (rank[a] < rank[b]) {
+            for (int e = upOffsets[a]; e < upOffsets[a + 1]; e++) {
+                if (upEnds[e] == b) {
+                    return upMiddles[e];
+                }
+            }
+        } else {
+            for (int e = downOffsets[b]; e < downOffsets[b + 1]; e++) {
+                if (downEnds[e] == a) {
+                    return downMiddles[e];
+                }
+            }
+        }
+        throw new IllegalStateException("No hierarchy edge " + a + " -> " + b);
+    }
+
+    /**
+     * Writes the hierarchy to file, tagged with the fingerprint of the graph it belongs to.
+     * @param g The graph the hierarchy was built on.
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    void save(GraphDB g, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(g.fingerprint());
+            out.writeInt(metric.ordinal());
+            GraphSnapshot.writeInts(out, rank);
+            GraphSnapshot.writeInts(out, upOffsets);
+            GraphSnapshot.writeInts(out, upEnds);
+            GraphSnapshot.writeDoubles(out, upWeights);
+            GraphSnapshot.writeInts(out, upMiddles);
+            GraphSnapshot.writeInts(out, downOffsets);
+            GraphSnapshot.writeInts(out, downEnds);
+            GraphSnapshot.writeDoubles(out, downWeights);
+            GraphSnapshot.writeInts(out, downMiddles);
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not move " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a hierarchy written by save.
+     * @param g The graph the hierarchy is wanted for.
+     * @param metric The metric the hierarchy is wanted for.
+     * @param file The file to read.
+     * @return The hierarchy, or null if the file is missing or belongs to a different graph
+     * or metric.
+     */
+    static ContractionHierarchy load(GraphDB g, GraphDB.Metric metric, File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 20 || in.getInt() != MAGIC || in.getInt() != VERSION
+                    || in.getLong() != g.fingerprint() || in.getInt() != metric.ordinal()) {
+                return null;
+            }
+            return new ContractionHierarchy(metric, GraphSnapshot.readInts(in),
+                    GraphSnapshot.readInts(in), GraphSnapshot.readInts(in),
+                    GraphSnapshot.readDoubles(in), GraphSnapshot.readInts(in),
+                    GraphSnapshot.readInts(in), GraphSnapshot.readInts(in),
+                    GraphSnapshot.readDoubles(in), GraphSnapshot.readInts(in));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Loads the hierarchy stored in file if it matches g and metric, and otherwise builds a
+     * new one and stores it in file for next time.
+     */
+    static ContractionHierarchy loadOrBuild(GraphDB g, GraphDB.Metric metric, File file) {
+        ContractionHierarchy hierarchy = load(g, metric, file);
+        if (hierarchy == null) {
+            hierarchy = HierarchyBuilder.build(g, metric);
+            try {
+                hierarchy.save(g, file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return hierarchy;
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.Arrays;
+
+/**
+ * Convex hull of a growing set of points in the plane, updated as each point is added:
+ * a point inside the hull is dropped after one pass over the hull's edges, and a point
+ * outside replaces the chain of hull vertices it can see. Adding a point costs O(h) for a
+ * hull of h vertices, so the hull of a search's settled vertices can be kept up to date
+ * while the search runs instead of being computed from all of them afterwards.
+ */
+public class ConvexHull {
+    /** Hull vertices in counter-clockwise order. */
+    private double[] xs = new double[8];
+    private double[] ys = new double[8];
+    private int size;
+
+    /**
+     * Adds a point to the set.
+     * @param x The x coordinate (longitude).
+     * @param y The y coordinate (latitude).
+     */
+    void add(double x, double y) {
+        if (size < 2) {
+            if (size == 0 || x != xs[0] || y != ys[0]) {
+                append(x, y);
+            }
+            return;
+        }
+        if (size == 2) {
+            double c = cross(xs[0], ys[0], xs[1], ys[1], x, y);
+            if (c > 0) {
+                append(x, y);
+            } else if (c < 0) {
+                insert(1, x, y);
+            } else {
+                extendSegment(x, y);
+            }
+            return;
+        }
+
+        /* Edges i -> i + 1 that have the point strictly on their right are visible from it;
+         * on a convex hull they form one contiguous run. */
+        int firstVisible = -1;
+        for (int i = 0; i < size; i++) {
+            if (isVisible(i, x, y) && !isVisible((i + size - 1) % size, x, y)) {
+                firstVisible = i;
+                break;
+            }
+        }
+        if (firstVisible < 0) {
+            return;
+        }
+        int lastVisible = firstVisible;
+        while (isVisible((lastVisible + 1) % size, x, y)) {
+            lastVisible = (lastVisible + 1) % size;
+        }
+        /* Keep the vertices from the end of the visible run round to its start, then the
+         * new point closes the hull. */
+        double[] newXs = new double[Math.max(8, size + 2)];
+        double[] newYs = new double[newXs.length];
+        int k = 0;
+        for (int i = (lastVisible + 1) % size; ; i = (i + 1) % size) {
+            newXs[k] = xs[i];
+            newYs[k] = ys[i];
+            k++;
+            if (i == firstVisible) {
+                break;
+            }
+        }
+        newXs[k] = x;
+        newYs[k] = y;
+        xs = newXs;
+        ys = newYs;
+        size = k + 1;
+    }
+
+    int size() { return size; }
+
+    /**
+     * Returns the hull vertices in counter-clockwise order, as {x, y} pairs. Fewer than
+     * three points (or only collinear ones) give the distinct extreme points.
+     */
+    double[][] vertices() {
+        double[][] res = new double[size][];
+        for (int i = 0; i < size; i++) {
+            res[i] = new double[] {xs[i], ys[i]};
+        }
+        return res;
+    }
+
+    /** Returns whether (x, y) lies inside or on the hull. */
+    boolean contains(double x, double y) {
+        if (size < 3) {
+            for (int i = 0; i < size; i++) {
+                if (xs[i] == x && ys[i] == y) {
+                    return true;
+                }
+            }
+            return size == 2 && cross(xs[0], ys[0], xs[1], ys[1], x, y) == 0
+                    && Math.min(xs[0], xs[1]) <= x && x <= Math.max(xs[0], xs[1])
+                    && Math.min(ys[0], ys[1]) <= y && y <= Math.max(ys[0], ys[1]);
+        }
+        for (int i = 0; i < size; i++) {
+            if (isVisible(i, x, y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isVisible(int i, double x, double y) {
+        int j = (i + 1) % size;
+        return cross(xs[i], ys[i], xs[j], ys[j], x, y) < 0;
+    }
+
+    /** Keeps the two extreme points of three collinear ones. */
+    private void extendSegment(double x, double y) {
+        double dx = xs[1] - xs[0];
+        double dy = ys[1] - ys[0];
+        double t = (x - xs[0]) * dx + (y - ys[0]) * dy;
+        if (t < 0) {
+            xs[0] = x;
+            ys[0] = y;
+        } else if (t > dx * dx + dy * dy) {
+            xs[1] = x;
+            ys[1] = y;
+        }
+    }
+
+    private void append(double x, double y) {
+        insert(size, x, y);
+    }
+
+    private void insert(int i, double x, double y) {
+        if (size == xs.length) {
+            xs = Arrays.copyOf(xs, 2 * size);
+            ys = Arrays.copyOf(ys, 2 * size);
+        }
+        System.arraycopy(xs, i, xs, i + 1, size - i);
+        System.arraycopy(ys, i, ys, i + 1, size - i);
+        xs[i] = x;
+        ys[i] = y;
+        size++;
+    }
+
+    /** Returns the z component of (b - a) x (c - a): positive if a, b, c turn left. */
+    private static double cross(double ax, double ay, double bx, double by,
+                                double cx, double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+}
@@ -68,39 +68,81 @@ public class GraphBuildingHandler extends DefaultHandler {
         /* Some example code on how you might begin to parse XML files. */
         if (qName.equals("node")) {
             /* We encountered a new <node...> tag. */
-            activeState = "node";
 //            System.out.println("Node id: " + attributes.getValue("id"));
 //            System.out.println("Node lon: " + attributes.getValue("lon"));
 //            System.out.println("Node lat: " + attributes.getValue("lat"));
-            GraphDB.Node n = new GraphDB.Node(attributes.getValue("id"),
+            startNode(Long.parseLong(attributes.getValue("id")),
                     Double.parseDouble(attributes.getValue("lon")),
                     Double.parseDouble(attributes.getValue("lat")));
-            this.g.addNode(n);
-            lastNode = n;
-
         } else if (qName.equals("way")) {
             /* We encountered a new <way...> tag. */
-            activeState = "way";
-            GraphDB.Way w = new GraphDB.Way(attributes.getValue("id"));
-            this.g.addWay(w);
-            lastWay = w;
+            startWay(Long.parseLong(attributes.getValue("id")));
 //            System.out.println("Beginning a way...");
-        } else if (activeState.equals("way") && qName.equals("nd")) {
+        } else if (qName.equals("nd")) {
             /* While looking at a way, we found a <nd...> tag. */
             //System.out.println("Id of a node in this way: " + attributes.getValue("ref"));
+            wayNode(Long.parseLong(attributes.getValue("ref")));
+        } else if (qName.equals("tag")) {
+            tag(attributes.getValue("k"), attributes.getValue("v"));
+        }
+    }
+
+    /*
+     * The callbacks below hold everything the handler does with the file, so that any
+     * reader of OSM XML (the SAX parser through the overrides above, or OsmTokenizer) can
+     * drive them and build exactly the same graph.
+     */
+
+    /**
+     * Called for each <node> element.
+     * @param id The node's id.
+     * @param lon The node's longitude.
+     * @param lat The node's latitude.
+     */
+    void startNode(long id, double lon, double lat) {
+        activeState = "node";
+        GraphDB.Node n = new GraphDB.Node(id, lon, lat);
+        if (keepsNode(id)) {
+            addNode(n);
+        }
+        lastNode = n;
+    }
 
-            lastWay.addNode(attributes.getValue("ref"));
+    /**
+     * Called for each <way> element, before its <nd> and <tag> children.
+     * @param id The way's id.
+     */
+    void startWay(long id) {
+        activeState = "way";
+        GraphDB.Way w = new GraphDB.Way(id);
+        addWay(w);
+        lastWay = w;
+    }
+
+    /**
+     * Called for each <nd> element. Only those inside a way count.
+     * @param ref The id of the node the element refers to.
+     */
+    void wayNode(long ref) {
+        if (activeState.equals("way")) {
+            lastWay.addNode(ref);
 
             /* Hint1: It would be useful to remember what was the last node in this way. */
             /* Hint2: Not all ways are valid. So, directly connecting the nodes here would be
             cumbersome since you might have to remove the connections if you later see a tag that
             makes this way invalid. Instead, think of keeping a list of possible connections and
             remember whether this way is valid or not. */
+        }
+    }
 
-        } else if (activeState.equals("way") && qName.equals("tag")) {
+    /**
+     * Called for each <tag> element, which belongs to the node or way started last.
+     * @param k The tag's key.
+     * @param v The tag's value.
+     */
+    void tag(String k, String v) {
+        if (activeState.equals("way")) {
             /* While looking at a way, we found a <tag...> tag. */
-            String k = attributes.getValue("k");
-            String v = attributes.getValue("v");
             if (k.equals("maxspeed")) {
                 //System.out.println("Max Speed: " + v);
                 lastWay.setEdge(k, v);
@@ -113,13 +155,10 @@ public class GraphBuildingHandler extends DefaultHandler {
                 lastWay.setEdge(k, v);
             }
 //            System.out.println("Tag with k=" + k + ", v=" + v + ".");
-        } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
-                .equals("name")) {
+        } else if (activeState.equals("node") && k.equals("name")) {
             /* While looking at a node, we found a <tag...> with k="name". */
-            String k = attributes.getValue("k");
-            String v = attributes.getValue("v");
             lastNode.setNode(k, v);
-            g.insertTrie(v, lastNode.id);
+            addName(v, lastNode.id);
             /* Hint: Since we found this <tag...> INSIDE a node, we should probably remember which
             node this tag belongs to. Remember XML is parsed top-to-bottom, so probably it's the
             last node that you looked at (check the first if-case). */
@@ -127,6 +166,59 @@ public class GraphBuildingHandler extends DefaultHandler {
         }
     }
 
+    /** Called at the end of each <way> element, once all its children have been seen. */
+    void endWay() {
+        if(ALLOWED_HIGHWAY_TYPES.contains(lastWay.extraInfo.get("highway"))){
+            buildPath(lastWay);
+        }
+        /* We are done looking at a way. (We finished looking at the nodes, speeds, etc...)*/
+        /* Hint1: If you have stored the possible connections for this way, here's your
+        chance to actually connect the nodes together if the way is valid. */
+//        System.out.println("Finishing a way...");
+    }
+
+    /**
+     * Continues from where another handler, which read the part of the file just before
+     * this one, stopped: later <nd> and <tag> elements outside a node or way then go to the
+     * node or way that handler saw last, as they would if a single handler read both parts.
+     * @param previous The handler of the preceding part.
+     */
+    void resume(GraphBuildingHandler previous) {
+        activeState = previous.activeState;
+        lastNode = previous.lastNode;
+        lastWay = previous.lastWay;
+    }
+
+    /*
+     * The callbacks hand what they build to the graph through the methods below. Readers
+     * that collect it somewhere else first, such as ParallelOsmReader, override them.
+     */
+
+    /** Whether the node with the given id should be added at all; see ReferencedNodes. */
+    boolean keepsNode(long id) {
+        return true;
+    }
+
+    /** Adds a node that was just started. */
+    void addNode(GraphDB.Node n) {
+        this.g.addNode(n);
+    }
+
+    /** Adds a way that was just started; its nodes and tags follow. */
+    void addWay(GraphDB.Way w) {
+        this.g.addWay(w);
+    }
+
+    /** Makes the node with the given id findable by name. */
+    void addName(String name, long id) {
+        g.insertTrie(name, id);
+    }
+
+    /** Connects the nodes of a finished way whose highway type is allowed. */
+    void buildPath(GraphDB.Way w) {
+        this.g.buildPath(w);
+    }
+
     /**
      * Receive notification of the end of an element. You may want to take specific terminating
      * actions here, like finalizing vertices or edges found.
@@ -141,13 +233,7 @@ public class GraphBuildingHandler extends DefaultHandler {
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
         if (qName.equals("way")) {
-            if(ALLOWED_HIGHWAY_TYPES.contains(lastWay.extraInfo.get("highway"))){
-                this.g.buildPath(lastWay);
-            }
-            /* We are done looking at a way. (We finished looking at the nodes, speeds, etc...)*/
-            /* Hint1: If you have stored the possible connections for this way, here's your
-            chance to actually connect the nodes together if the way is valid. */
-//            System.out.println("Finishing a way...");
+            endWay();
         }
     }
 
@@ -1,12 +1,9 @@
-import org.xml.sax.SAXException;
-
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
@@ -28,27 +25,146 @@ public class GraphDB {
      * @param dbPath Path to the XML file to be parsed.
      */
 
+    /**
+     * How much farther than the closest segment overall the closest segment within the
+     * largest strongly connected component may be for closestSegment to prefer it, in miles.
+     */
+    static final double SNAP_SLACK_MILES = 0.1;
+
     private final Map<Long, Node> nodes = new LinkedHashMap<>();
     private final Map<Long, Way> ways = new LinkedHashMap<>();
-    private final Map<Long, ArrayList<Long>> paths = new LinkedHashMap<>();
-    private final Map<String, Long> pathId = new LinkedHashMap<>();
     private final Trie root = new Trie();
     private Map<Long, Node> allNodes;
 
+    /** Directed edges collected while parsing, in insertion order. Released by freeze(). */
+    private long[] pendingFrom = new long[1024];
+    private long[] pendingTo = new long[1024];
+    private long[] pendingWay = new long[1024];
+    private int pendingCount = 0;
+
+    /**
+     * Frozen compressed-sparse-row graph. Vertex i has OSM id ids[i] and its outgoing
+     * edges occupy slots offsets[i] (inclusive) to offsets[i + 1] (exclusive) of targets.
+     * edgeWays holds the id of the way each edge slot was built from, edgeLengths its
+     * great-circle length in miles, and edgeTimes the seconds it takes at the way's speed.
+     */
+    private long[] ids;
+    private double[] lons;
+    private double[] lats;
+    private int[] offsets;
+    private int[] targets;
+    private long[] edgeWays;
+    private double[] edgeLengths;
+    private double[] edgeTimes;
+    /** The highest speed of any edge, in miles per hour; bounds time heuristics. */
+    private double maxMph;
+    /**
+     * Reverse CSR: the edges entering vertex i are revEdges[revOffsets[i]] up to
+     * revEdges[revOffsets[i + 1] - 1], given as forward edge slots, with their sources in
+     * revSources. Used by searches that run backwards from the destination.
+     */
+    private int[] revOffsets;
+    private int[] revSources;
+    private int[] revEdges;
+    private LongIntMap index;
+    /** Spatial index over the vertices, answering closest-vertex queries. */
+    private KdTree spatialIndex;
+    /** Spatial index over the road segments, answering closest-segment queries. */
+    private SegmentIndex segmentIndex;
+    /** Strongly connected components of the frozen graph. */
+    private StrongComponents components;
+    /** Degree-2 chains collapsed into single edges, searched by plain A*. */
+    private ChainOverlay chains;
+    /** Landmark tables for the ALT heuristic per Metric, computed on first use unless set. */
+    private final AtomicReferenceArray<Landmarks> landmarks =
+            new AtomicReferenceArray<>(Metric.values().length);
+    /** Contraction hierarchy per Metric, built on first use unless set. */
+    private final AtomicReferenceArray<ContractionHierarchy> hierarchies =
+            new AtomicReferenceArray<>(Metric.values().length);
+    /** Routes already computed on this graph; cleared whenever the graph is rebuilt. */
+    private final RouteCache routeCache = new RouteCache(RouteCache.DEFAULT_BUDGET_BYTES);
+    /** Whether vertices are numbered along a Hilbert curve instead of in file order. */
+    private final boolean hilbertOrder;
+
     public GraphDB(String dbPath) {
+        this(dbPath, false);
+    }
+
+    /** Creates an empty graph for a parser to fill, without building it. */
+    GraphDB() {
+        this.hilbertOrder = false;
+    }
+
+    /**
+     * Creates the graph, optionally going through a binary snapshot kept next to the XML file.
+     * A matching snapshot is loaded instead of parsing; otherwise the XML is parsed, on all
+     * cores (see ParallelOsmReader), and a fresh snapshot written for the next start.
+     * See GraphSnapshot.
+     * @param dbPath Path to the XML file to be parsed.
+     * @param useSnapshot Whether to load and maintain the snapshot of dbPath.
+     */
+    public GraphDB(String dbPath, boolean useSnapshot) {
+        this(dbPath, useSnapshot, false);
+    }
+
+    /**
+     * Same as GraphDB(dbPath, useSnapshot), optionally numbering the vertices along a
+     * Hilbert curve over their coordinates (see HilbertOrder) instead of in the order the
+     * file lists them. Neighbouring vertices then sit close together in every per-vertex
+     * array, which helps searches, snapping and rendering stay in cache; vertices() and
+     * ties between equally short routes follow the new numbering.
+     * @param dbPath Path to the XML file to be parsed, which may be compressed with gzip
+     *               (.gz) or bzip2 (.bz2), see OsmInput, or to the same data in PBF
+     *               (.pbf), see PbfReader.
+     * @param useSnapshot Whether to load and maintain the snapshot of dbPath.
+     * @param hilbertOrder Whether to renumber the vertices along the curve.
+     */
+    public GraphDB(String dbPath, boolean useSnapshot, boolean hilbertOrder) {
+        this(dbPath, useSnapshot, hilbertOrder, false);
+    }
+
+    /**
+     * Same as GraphDB(dbPath, useSnapshot, hilbertOrder), optionally reading the file twice
+     * to save memory on large extracts. The first pass only notes which nodes lie on roads
+     * or have names, and the second creates just those nodes (see ReferencedNodes), instead
+     * of holding every node of the file until the unconnected ones are removed. The graph
+     * is the same either way; reading twice takes longer, most of all for compressed files.
+     * @param dbPath Path to the OSM file to be parsed, as for GraphDB(dbPath, useSnapshot,
+     *               hilbertOrder).
+     * @param useSnapshot Whether to load and maintain the snapshot of dbPath.
+     * @param hilbertOrder Whether to renumber the vertices along the curve.
+     * @param twoPass Whether to read the file twice, keeping only the nodes in use.
+     */
+    public GraphDB(String dbPath, boolean useSnapshot, boolean hilbertOrder, boolean twoPass) {
+        this.hilbertOrder = hilbertOrder;
+        File inputFile = new File(dbPath);
+        if (useSnapshot && GraphSnapshot.load(this, inputFile)) {
+            return;
+        }
         try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            if (twoPass) {
+                ReferencedNodes referenced = new ReferencedNodes();
+                read(inputFile, referenced);
+                read(inputFile, referenced.keeping(this));
+            } else {
+                read(inputFile, new GraphBuildingHandler(this));
+            }
+        } catch (IOException e) {
             e.printStackTrace();
         }
         clean();
+        if (useSnapshot) {
+            GraphSnapshot.save(this, inputFile);
+        }
+    }
+
+    /** Reads an OSM file in XML or PBF, whichever its name says it is, into handler. */
+    private static void read(File file, GraphBuildingHandler handler) throws IOException {
+        if (PbfReader.isPbf(file)) {
+            PbfReader.read(file, handler);
+        } else {
+            ParallelOsmReader.read(file, handler);
+        }
     }
 
     /**
@@ -64,20 +180,300 @@ public class GraphDB {
      *  Remove nodes with no connections from the graph.
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
+     *  Named nodes are kept aside in allNodes first, since getLocations looks them up by id;
+     *  like a snapshot, allNodes holds only those, not a copy of every node.
+     */
+    void clean() {
+        allNodes = new LinkedHashMap<>();
+        for(Node n : nodes.values())
+            if( !n.extraInfo.isEmpty() )
+                allNodes.put(n.id, n);
+        nodes.values().removeIf(n -> !n.connected);
+        freeze();
+    }
+
+    /**
+     * Converts the parsed nodes and pending edges into the dense CSR arrays. Vertex indices
+     * follow node insertion order, or the Hilbert curve if hilbertOrder is set, and each
+     * vertex keeps its neighbours in the order the edges were added, so iteration order
+     * matches the old per-vertex lists.
+     */
+    private void freeze() {
+        int n = nodes.size();
+        ids = new long[n];
+        lons = new double[n];
+        lats = new double[n];
+        index = new LongIntMap(n);
+        int i = 0;
+        for(Node node : nodes.values()){
+            ids[i] = node.id;
+            lons[i] = node.longitude;
+            lats[i] = node.latitude;
+            index.put(node.id, i);
+            i++;
+        }
+
+        offsets = new int[n + 1];
+        int[] from = new int[pendingCount];
+        for(int e = 0; e < pendingCount; e++){
+            from[e] = index.get(pendingFrom[e]);
+            offsets[from[e] + 1]++;
+        }
+        for(int v = 0; v < n; v++)
+            offsets[v + 1] += offsets[v];
+        targets = new int[pendingCount];
+        edgeWays = new long[pendingCount];
+        int[] fill = Arrays.copyOf(offsets, n);
+        for(int e = 0; e < pendingCount; e++){
+            int slot = fill[from[e]]++;
+            targets[slot] = index.get(pendingTo[e]);
+            edgeWays[slot] = pendingWay[e];
+        }
+
+        pendingFrom = null;
+        pendingTo = null;
+        pendingWay = null;
+        nodes.clear();
+        if(hilbertOrder)
+            renumber(HilbertOrder.of(lons, lats));
+        buildIndexes();
+    }
+
+    /**
+     * Permutes every per-vertex array of the frozen graph so that vertex order[i] becomes
+     * vertex i. Each vertex keeps its edges in the same order. Must run before buildIndexes.
+     * @param order The old index of each new vertex index.
+     */
+    private void renumber(int[] order) {
+        int n = order.length;
+        int[] rank = new int[n];
+        for(int i = 0; i < n; i++)
+            rank[order[i]] = i;
+        long[] newIds = new long[n];
+        double[] newLons = new double[n];
+        double[] newLats = new double[n];
+        int[] newOffsets = new int[n + 1];
+        int[] newTargets = new int[targets.length];
+        long[] newWays = new long[edgeWays.length];
+        for(int i = 0; i < n; i++){
+            int v = order[i];
+            newIds[i] = ids[v];
+            newLons[i] = lons[v];
+            newLats[i] = lats[v];
+            int slot = newOffsets[i];
+            for(int e = offsets[v]; e < offsets[v + 1]; e++, slot++){
+                newTargets[slot] = rank[targets[e]];
+                newWays[slot] = edgeWays[e];
+            }
+            newOffsets[i + 1] = slot;
+            index.put(ids[v], i);
+        }
+        ids = newIds;
+        lons = newLons;
+        lats = newLats;
+        offsets = newOffsets;
+        targets = newTargets;
+        edgeWays = newWays;
+    }
+
+    /** Returns whether vertices are numbered along a Hilbert curve. */
+    boolean hilbertOrder() { return hilbertOrder; }
+
+    /** Builds the derived lookup structures once the frozen arrays are in place. */
+    private void buildIndexes() {
+        edgeLengths = new double[targets.length];
+        for(int v = 0; v < ids.length; v++)
+            for(int e = offsets[v]; e < offsets[v + 1]; e++)
+                edgeLengths[e] = distanceAt(v, targets[e]);
+
+        edgeTimes = new double[targets.length];
+        maxMph = SpeedProfile.FALLBACK_MPH;
+        Map<Long, Double> wayMph = new HashMap<>();
+        for(int e = 0; e < targets.length; e++){
+            Double mph = wayMph.get(edgeWays[e]);
+            if(mph == null){
+                mph = SpeedProfile.mph(ways.get(edgeWays[e]).extraInfo);
+                wayMph.put(edgeWays[e], mph);
+                maxMph = Math.max(maxMph, mph);
+            }
+            edgeTimes[e] = edgeLengths[e] / mph * 3600;
+        }
+
+        revOffsets = new int[ids.length + 1];
+        for(int w : targets)
+            revOffsets[w + 1]++;
+        for(int v = 0; v < ids.length; v++)
+            revOffsets[v + 1] += revOffsets[v];
+        revSources = new int[targets.length];
+        revEdges = new int[targets.length];
+        int[] fill = Arrays.copyOf(revOffsets, ids.length);
+        for(int v = 0; v < ids.length; v++){
+            for(int e = offsets[v]; e < offsets[v + 1]; e++){
+                int slot = fill[targets[e]]++;
+                revSources[slot] = v;
+                revEdges[slot] = e;
+            }
+        }
+
+        spatialIndex = new KdTree(lons, lats);
+        components = new StrongComponents(this);
+        chains = new ChainOverlay(this);
+        segmentIndex = new SegmentIndex(this);
+        routeCache.clear();
+    }
+
+    /**
+     * Writes the frozen graph, the way tags, the named nodes and the search trie.
+     * Must be kept in sync with readSnapshot and GraphSnapshot.VERSION.
      */
-    private void clean() {
-        allNodes = new LinkedHashMap<>(nodes);
-        Iterable<Long> vs = vertices();
-        for(long v : vs)
-            if( !nodes.get(v).connected )
-                nodes.remove(v);
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        GraphSnapshot.writeLongs(out, ids);
+        GraphSnapshot.writeDoubles(out, lons);
+        GraphSnapshot.writeDoubles(out, lats);
+        GraphSnapshot.writeInts(out, offsets);
+        GraphSnapshot.writeInts(out, targets);
+        GraphSnapshot.writeLongs(out, edgeWays);
+
+        out.writeInt(ways.size());
+        for(Way w : ways.values()){
+            out.writeLong(w.id);
+            writeTags(out, w.extraInfo);
+        }
+
+        List<Node> named = new ArrayList<>();
+        for(Node n : allNodes.values())
+            if( !n.extraInfo.isEmpty() )
+                named.add(n);
+        out.writeInt(named.size());
+        for(Node n : named){
+            out.writeLong(n.id);
+            out.writeDouble(n.longitude);
+            out.writeDouble(n.latitude);
+            writeTags(out, n.extraInfo);
+        }
+
+        List<Trie> words = new ArrayList<>();
+        root.collect(words);
+        out.writeInt(words.size());
+        for(Trie t : words){
+            GraphSnapshot.writeString(out, t.value);
+            out.writeInt(t.ids.size());
+            for(long id : t.ids)
+                out.writeLong(id);
+        }
+    }
+
+    /**
+     * Restores everything written by writeSnapshot. Way node lists are not kept. The whole
+     * body is decoded before any of it replaces this graph's contents, so a body that fails
+     * to parse leaves the graph as empty as it was.
+     */
+    void readSnapshot(ByteBuffer in) {
+        long[] readIds = GraphSnapshot.readLongs(in);
+        double[] readLons = GraphSnapshot.readDoubles(in);
+        double[] readLats = GraphSnapshot.readDoubles(in);
+        int[] readOffsets = GraphSnapshot.readInts(in);
+        int[] readTargets = GraphSnapshot.readInts(in);
+        long[] readEdgeWays = GraphSnapshot.readLongs(in);
+
+        List<Way> readWays = new ArrayList<>();
+        for(int i = in.getInt(); i > 0; i--){
+            Way w = new Way(in.getLong());
+            readTags(in, w.extraInfo);
+            readWays.add(w);
+        }
+
+        Map<Long, Node> named = new LinkedHashMap<>();
+        for(int i = in.getInt(); i > 0; i--){
+            long id = in.getLong();
+            double lon = in.getDouble();
+            double lat = in.getDouble();
+            Node n = new Node(id, lon, lat);
+            readTags(in, n.extraInfo);
+            named.put(n.id, n);
+        }
+
+        List<String> words = new ArrayList<>();
+        List<long[]> wordIds = new ArrayList<>();
+        for(int i = in.getInt(); i > 0; i--){
+            words.add(GraphSnapshot.readString(in));
+            long[] wordIdList = new long[in.getInt()];
+            for(int j = 0; j < wordIdList.length; j++)
+                wordIdList[j] = in.getLong();
+            wordIds.add(wordIdList);
+        }
+        if(in.hasRemaining())
+            throw new IllegalStateException(in.remaining() + " bytes left after the snapshot");
+
+        ids = readIds;
+        lons = readLons;
+        lats = readLats;
+        offsets = readOffsets;
+        targets = readTargets;
+        edgeWays = readEdgeWays;
+        index = new LongIntMap(ids.length);
+        for(int i = 0; i < ids.length; i++)
+            index.put(ids[i], i);
+        pendingFrom = null;
+        pendingTo = null;
+        pendingWay = null;
+        for(Way w : readWays)
+            addWay(w);
+        /* Edge travel times come from the way tags, so they must be read first. */
+        buildIndexes();
+        allNodes = named;
+        for(int i = 0; i < words.size(); i++)
+            for(long id : wordIds.get(i))
+                insertTrie(words.get(i), id);
+    }
+
+    private static void writeTags(DataOutputStream out, Map<String, String> tags)
+            throws IOException {
+        out.writeInt(tags.size());
+        for(Map.Entry<String, String> tag : tags.entrySet()){
+            GraphSnapshot.writeString(out, tag.getKey());
+            GraphSnapshot.writeString(out, tag.getValue());
+        }
+    }
+
+    private static void readTags(ByteBuffer in, Map<String, String> tags) {
+        for(int i = in.getInt(); i > 0; i--)
+            tags.put(GraphSnapshot.readString(in), GraphSnapshot.readString(in));
+    }
+
+    private void addEdge(long from, long to, long way){
+        if(pendingCount == pendingFrom.length){
+            pendingFrom = Arrays.copyOf(pendingFrom, pendingCount * 2);
+            pendingTo = Arrays.copyOf(pendingTo, pendingCount * 2);
+            pendingWay = Arrays.copyOf(pendingWay, pendingCount * 2);
+        }
+        pendingFrom[pendingCount] = from;
+        pendingTo[pendingCount] = to;
+        pendingWay[pendingCount] = way;
+        pendingCount++;
     }
 
     /**
      * Returns an iterable of all vertex IDs in the graph.
      * @return An iterable of id's of all vertices in the graph.
      */
-    Iterable<Long> vertices() { return new ArrayList<Long>(nodes.keySet()); }
+    Iterable<Long> vertices() {
+        if(ids == null)
+            return new ArrayList<Long>(nodes.keySet());
+        return () -> new Iterator<Long>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() { return next < ids.length; }
+
+            @Override
+            public Long next() {
+                if(next >= ids.length)
+                    throw new NoSuchElementException();
+                return ids[next++];
+            }
+        };
+    }
 
     Iterable<Long> ways() { return new ArrayList<Long>(ways.keySet()); }
 
@@ -86,7 +482,215 @@ public class GraphDB {
      * @param v The id of the vertex we are looking adjacent to.
      * @return An iterable of the ids of the neighbors of v.
      */
-    Iterable<Long> adjacent(long v) { return new ArrayList<Long>(paths.get(v)); }
+    Iterable<Long> adjacent(long v) {
+        int i = indexOf(v);
+        ArrayList<Long> res = new ArrayList<>(edgeEnd(i) - edgeBegin(i));
+        for(int e = edgeBegin(i); e < edgeEnd(i); e++)
+            res.add(ids[targets[e]]);
+        return res;
+    }
+
+    /**
+     * Returns the landmark tables used by Router's ALT search under the given metric,
+     * computing Landmarks.DEFAULT_COUNT of them the first time if none were set.
+     */
+    Landmarks landmarks(Metric metric) {
+        Landmarks l = landmarks.get(metric.ordinal());
+        if(l == null){
+            synchronized (this){
+                if(landmarks.get(metric.ordinal()) == null)
+                    landmarks.set(metric.ordinal(),
+                            Landmarks.compute(this, Landmarks.DEFAULT_COUNT, metric));
+                l = landmarks.get(metric.ordinal());
+            }
+        }
+        return l;
+    }
+
+    /** Sets the landmark tables for the metric they were computed under. */
+    void setLandmarks(Landmarks l) { landmarks.set(l.metric().ordinal(), l); }
+
+    RouteCache routeCache() { return routeCache; }
+
+    /**
+     * Returns the contraction hierarchy of this graph under the given metric, built the
+     * first time if none was set.
+     */
+    ContractionHierarchy hierarchy(Metric metric) {
+        ContractionHierarchy h = hierarchies.get(metric.ordinal());
+        if(h == null){
+            synchronized (this){
+                if(hierarchies.get(metric.ordinal()) == null)
+                    hierarchies.set(metric.ordinal(), HierarchyBuilder.build(this, metric));
+                h = hierarchies.get(metric.ordinal());
+            }
+        }
+        return h;
+    }
+
+    /** Returns whether the contraction hierarchy for the metric is already in place. */
+    boolean hasHierarchy(Metric metric) { return hierarchies.get(metric.ordinal()) != null; }
+
+    /** Sets the hierarchy for the metric it was built under. */
+    void setHierarchy(ContractionHierarchy h) { hierarchies.set(h.metric().ordinal(), h); }
+
+    /**
+     * Returns a hash of the vertices, their coordinates, the edges and every metric's edge
+     * weights, used to check that data persisted for a graph (such as landmark tables) still
+     * belongs to it. An edit that moves a node or changes a speed limit changes the weights
+     * those tables were computed from, even when it leaves the topology alone.
+     */
+    long fingerprint() {
+        long h = 1125899906842597L;
+        for(int v = 0; v < ids.length; v++){
+            h = 31 * h + ids[v];
+            h = 31 * h + Double.doubleToLongBits(lons[v]);
+            h = 31 * h + Double.doubleToLongBits(lats[v]);
+        }
+        for(int o : offsets)
+            h = 31 * h + o;
+        for(int t : targets)
+            h = 31 * h + t;
+        for(Metric metric : Metric.values())
+            for(int e = 0; e < targets.length; e++)
+                h = 31 * h + Double.doubleToLongBits(edgeWeight(e, metric));
+        return h;
+    }
+
+    /** Returns the number of vertices in the frozen graph. */
+    int numVertices() { return ids.length; }
+
+    /** Returns the number of edge slots in the frozen graph. */
+    int numEdges() { return targets.length; }
+
+    /**
+     * Returns the dense index of the vertex with the given OSM id.
+     * @param id The OSM id of the vertex.
+     * @return The dense index, or -1 if id is not a vertex of the graph.
+     */
+    int indexOf(long id) { return index.get(id); }
+
+    /** Returns the OSM id of the vertex with dense index v. */
+    long idAt(int v) { return ids[v]; }
+
+    double lonAt(int v) { return lons[v]; }
+
+    double latAt(int v) { return lats[v]; }
+
+    /** Returns the first edge slot of vertex v. */
+    int edgeBegin(int v) { return offsets[v]; }
+
+    /** Returns one past the last edge slot of vertex v. */
+    int edgeEnd(int v) { return offsets[v + 1]; }
+
+    /** Returns the dense index of the vertex edge slot e points to. */
+    int edgeTarget(int e) { return targets[e]; }
+
+    /** Returns the first incoming slot of vertex v. */
+    int inEdgeBegin(int v) { return revOffsets[v]; }
+
+    /** Returns one past the last incoming slot of vertex v. */
+    int inEdgeEnd(int v) { return revOffsets[v + 1]; }
+
+    /** Returns the dense index of the vertex incoming slot r comes from. */
+    int inEdgeSource(int r) { return revSources[r]; }
+
+    /** Returns the edge slot of incoming slot r. */
+    int inEdge(int r) { return revEdges[r]; }
+
+    /** What a route minimises. */
+    public enum Metric {
+        /** Length in miles. */
+        DISTANCE,
+        /**
+         * Travel time in seconds, driving every way at its maxspeed, or at a default speed
+         * for its highway class when the tag is missing (see SpeedProfile).
+         */
+        TIME
+    }
+
+    /**
+     * Returns a lower bound on the cost of travelling one mile of great-circle distance:
+     * 1 for DISTANCE, and the seconds a mile takes at the network's highest speed for TIME.
+     * Scaling a great-circle distance by it keeps A* heuristics admissible.
+     */
+    double minCostPerMile(Metric metric) {
+        return metric == Metric.TIME ? 3600 / maxMph : 1;
+    }
+
+    /** Returns the cost of edge slot e under the given metric. */
+    double edgeWeight(int e, Metric metric) {
+        return metric == Metric.TIME ? edgeTimes[e] : edgeLengths[e];
+    }
+
+    /**
+     * Receives the outgoing edges of a vertex from forEachNeighbor.
+     */
+    interface NeighborVisitor {
+        /**
+         * Called once per outgoing edge.
+         * @param w The dense index of the neighbour.
+         * @param weight The length of the edge in miles, or its cost under the metric
+         *               passed to the forEach method.
+         */
+        void visit(int w, double weight);
+    }
+
+    /**
+     * Calls visitor once for every outgoing edge of v, in adjacency order. Nothing is
+     * allocated or boxed, so this is the iteration to use in search loops.
+     * @param v The dense index of the vertex.
+     * @param visitor The visitor to call.
+     */
+    void forEachNeighbor(int v, NeighborVisitor visitor) {
+        for(int e = offsets[v]; e < offsets[v + 1]; e++)
+            visitor.visit(targets[e], edgeLengths[e]);
+    }
+
+    /**
+     * Calls visitor once for every edge entering v, passing the edge's source and length.
+     * One-way roads therefore show up only at their head vertex.
+     * @param v The dense index of the vertex.
+     * @param visitor The visitor to call.
+     */
+    void forEachIncoming(int v, NeighborVisitor visitor) {
+        for(int r = revOffsets[v]; r < revOffsets[v + 1]; r++)
+            visitor.visit(revSources[r], edgeLengths[revEdges[r]]);
+    }
+
+    /** Same as forEachNeighbor(v, visitor), passing edge costs under the given metric. */
+    void forEachNeighbor(int v, Metric metric, NeighborVisitor visitor) {
+        double[] weights = metric == Metric.TIME ? edgeTimes : edgeLengths;
+        for(int e = offsets[v]; e < offsets[v + 1]; e++)
+            visitor.visit(targets[e], weights[e]);
+    }
+
+    /** Same as forEachIncoming(v, visitor), passing edge costs under the given metric. */
+    void forEachIncoming(int v, Metric metric, NeighborVisitor visitor) {
+        double[] weights = metric == Metric.TIME ? edgeTimes : edgeLengths;
+        for(int r = revOffsets[v]; r < revOffsets[v + 1]; r++)
+            visitor.visit(revSources[r], weights[revEdges[r]]);
+    }
+
+    /** Returns the length of edge slot e in miles, equal to distanceAt of its endpoints. */
+    double edgeLength(int e) { return edgeLengths[e]; }
+
+    /** Returns the id of the way edge slot e belongs to. */
+    long edgeWay(int e) { return edgeWays[e]; }
+
+    /**
+     * Returns the edge slot from vertex v to vertex w. When several ways connect the same
+     * pair, the one added last wins.
+     * @param v The dense index of the source vertex.
+     * @param w The dense index of the target vertex.
+     * @return The edge slot, or -1 if there is no such edge.
+     */
+    int findEdge(int v, int w) {
+        for(int e = offsets[v + 1] - 1; e >= offsets[v]; e--)
+            if(targets[e] == w)
+                return e;
+        return -1;
+    }
 
     /**
      * Returns the great-circle distance between vertices v and w in miles.
@@ -100,6 +704,11 @@ public class GraphDB {
         return distance(lon(v), lat(v), lon(w), lat(w));
     }
 
+    /** Same as distance(long, long), but takes dense vertex indices. */
+    double distanceAt(int v, int w) {
+        return distance(lons[v], lats[v], lons[w], lats[w]);
+    }
+
     static double distance(double lonV, double latV, double lonW, double latW) {
         double phi1 = Math.toRadians(latV);
         double phi2 = Math.toRadians(latW);
@@ -127,6 +736,11 @@ public class GraphDB {
         return bearing(lon(v), lat(v), lon(w), lat(w));
     }
 
+    /** Same as bearing(long, long), but takes dense vertex indices. */
+    double bearingAt(int v, int w) {
+        return bearing(lons[v], lats[v], lons[w], lats[w]);
+    }
+
     static double bearing(double lonV, double latV, double lonW, double latW) {
         double phi1 = Math.toRadians(latV);
         double phi2 = Math.toRadians(latW);
@@ -146,15 +760,61 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        double minimum = Integer.MAX_VALUE;
-        long res = 0;
-        for(long v : vertices()){
-            double dist = distance(lon(v), lat(v), lon, lat);
-            if(dist < minimum){
-                minimum = dist;
-                res = v;
-            }
-        }
+        int v = spatialIndex.nearest(lon, lat);
+        return v < 0 ? 0 : ids[v];
+    }
+
+    /** Returns the strongly connected components of the frozen graph. */
+    StrongComponents components() { return components; }
+
+    /** Returns the frozen graph with its degree-2 chains collapsed. */
+    ChainOverlay chains() { return chains; }
+
+    /**
+     * Returns the point on the road network closest to the given longitude and latitude,
+     * which usually lies between two vertices of a segment. Segments within the largest
+     * strongly connected component are preferred: one of them wins unless the closest
+     * segment elsewhere, such as a parking lot loop or a one-way dead end, is more than
+     * SNAP_SLACK_MILES closer.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The segment and where on it the target projects, or null if the graph has
+     * no edges.
+     */
+    SegmentIndex.Snap closestSegment(double lon, double lat) {
+        SegmentIndex.Snap any = segmentIndex.nearest(this, lon, lat, false);
+        if(any == null || components.inLargest(any.from) && components.inLargest(any.to))
+            return any;
+        SegmentIndex.Snap main = segmentIndex.nearest(this, lon, lat, true);
+        return main != null && main.distance <= any.distance + SNAP_SLACK_MILES ? main : any;
+    }
+
+    /**
+     * Returns the k vertices closest to the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param k The number of vertices wanted.
+     * @return The ids of up to k vertices, closest first.
+     */
+    List<Long> closest(double lon, double lat, int k) {
+        return toIds(spatialIndex.nearest(lon, lat, k));
+    }
+
+    /**
+     * Returns the vertices within a great-circle distance of the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param radius The distance in miles.
+     * @return The ids of the vertices in range, closest first.
+     */
+    List<Long> within(double lon, double lat, double radius) {
+        return toIds(spatialIndex.within(lon, lat, radius));
+    }
+
+    private List<Long> toIds(int[] vs) {
+        List<Long> res = new ArrayList<>(vs.length);
+        for(int v : vs)
+            res.add(ids[v]);
         return res;
     }
 
@@ -163,14 +823,14 @@ public class GraphDB {
      * @param v The id of the vertex.
      * @return The longitude of the vertex.
      */
-    double lon(long v) { return nodes.get(v).longitude; }
+    double lon(long v) { return lons[indexOf(v)]; }
 
     /**
      * Gets the latitude of a vertex.
      * @param v The id of the vertex.
      * @return The latitude of the vertex.
      */
-    double lat(long v) { return nodes.get(v).latitude; }
+    double lat(long v) { return lats[indexOf(v)]; }
 
     static class Node{
         Long id;
@@ -180,7 +840,11 @@ public class GraphDB {
         Map<String, String> extraInfo;
 
         Node(String id, double longitude, double latitude){
-            this.id = Long.parseLong(id);
+            this(Long.parseLong(id), longitude, latitude);
+        }
+
+        Node(long id, double longitude, double latitude){
+            this.id = id;
             this.longitude = longitude;
             this.latitude = latitude;
             this.extraInfo = new HashMap<>();
@@ -207,7 +871,11 @@ public class GraphDB {
         Map<String, String> extraInfo;
         ArrayList<Long> edges;//nodes on this way
         Way(String id){
-            this.id = Long.parseLong(id);
+            this(Long.parseLong(id));
+        }
+
+        Way(long id){
+            this.id = id;
             this.extraInfo = new HashMap<>();
             this.edges = new ArrayList<>();
         }
@@ -228,37 +896,24 @@ public class GraphDB {
             for(int i = 1; i < w.edges.size(); i++){
                 long begin = w.edges.get(i-1);
                 long end = w.edges.get(i);
-                if(this.paths.get(begin) == null)
-                    this.paths.put(begin, new ArrayList<>());
-                this.paths.get(begin).add(end);
+                addEdge(begin, end, w.id);
                 this.nodes.get(begin).connected = true;
                 this.nodes.get(end).connected = true;
-                String fromTo = String.valueOf(begin) + "to" + String.valueOf(end);
-                this.pathId.put(fromTo, w.id);
             }
         }else{
             for(int i = 1; i < w.edges.size(); i++){
                 long begin = w.edges.get(i-1);
                 long end = w.edges.get(i);
-                if(this.paths.get(begin) == null)
-                    this.paths.put(begin, new ArrayList<>());
-                if(this.paths.get(end) == null)
-                    this.paths.put(end, new ArrayList<>());
-                this.paths.get(begin).add(end);
-                this.paths.get(end).add(begin);
+                addEdge(begin, end, w.id);
+                addEdge(end, begin, w.id);
                 this.nodes.get(begin).connected = true;
                 this.nodes.get(end).connected = true;
-                String fromTo = String.valueOf(begin) + "to" + String.valueOf(end);
-                this.pathId.put(fromTo, w.id);
-                fromTo = String.valueOf(end) + "to" + String.valueOf(begin);
-                this.pathId.put(fromTo, w.id);
             }
         }
     }
 
-    long getPathId(Long from, Long to){
-        String fromTo = String.valueOf(from) + "to" + String.valueOf(to);
-        return this.pathId.get(fromTo);
+    long getPathId(long from, long to){
+        return edgeWays[findEdge(indexOf(from), indexOf(to))];
     }
 
     String getWayName(long id){
@@ -327,6 +982,17 @@ public class GraphDB {
             return node.ids;
         }
 
+        /** Adds every node that ends a word to res, in the same order search visits them. */
+        void collect(List<Trie> res){
+            if(this.isEnd)
+                res.add(this);
+            for(int i = 0; i < size; i++){
+                if(this.children[i] != null){
+                    this.children[i].collect(res);
+                }
+            }
+        }
+
         void search(LinkedList<String> res){
             if(this.isEnd)
                 res.add(this.value);
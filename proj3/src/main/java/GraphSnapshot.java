@@ -0,0 +1,204 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Versioned binary snapshot of a built GraphDB, stored next to the OSM file it came from
+ * (berkeley-2018.osm.xml is snapshotted to berkeley-2018.osm.xml.graph). The snapshot starts
+ * with a header of magic number, format version, the CRC32 of the source file and the
+ * vertex order (see GraphDB.hilbertOrder), and ends with the CRC32 of the header and body
+ * and the magic number again; a snapshot whose header does not match the current source
+ * and order, which was cut short or whose contents fail their checksum, is ignored and
+ * rewritten.
+ * The body is written by GraphDB.writeSnapshot and read back from a memory-mapped buffer by
+ * GraphDB.readSnapshot, so the CSR arrays are a handful of bulk copies instead of an XML
+ * parse. Loading still reads the whole source once to check its CRC32, and rebuilds every
+ * index derived from the CSR (edge weights, reverse CSR, KdTree, StrongComponents,
+ * ChainOverlay, SegmentIndex), each linear or n log n in the size of the graph.
+ */
+public class GraphSnapshot {
+    private static final int MAGIC = 0x424D4150;
+    /** Bump whenever the layout written by GraphDB.writeSnapshot changes. */
+    static final int VERSION = 3;
+    private static final String SUFFIX = ".graph";
+    private static final int CHECKSUM_CHUNK = 1 << 26;
+    private static final int HEADER_BYTES = 20;
+    /** The trailer: CRC32 of everything before it, then the magic number. */
+    private static final int TRAILER_BYTES = 12;
+
+    private GraphSnapshot() {
+    }
+
+    /** Returns the header code of the vertex order g is built in: 1 for Hilbert, else 0. */
+    private static int vertexOrder(GraphDB g) {
+        return g.hilbertOrder() ? 1 : 0;
+    }
+
+    /** Returns the snapshot file used for the given OSM source file. */
+    static File snapshotFor(File source) {
+        return new File(source.getPath() + SUFFIX);
+    }
+
+    /**
+     * Computes the CRC32 of a file by mapping it in chunks.
+     * @param source The file to checksum.
+     * @return The CRC32 of the file's contents.
+     * @throws IOException If the file cannot be read.
+     */
+    static long checksum(File source) throws IOException {
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile raf = new RandomAccessFile(source, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += CHECKSUM_CHUNK) {
+                long len = Math.min(CHECKSUM_CHUNK, size - pos);
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, len));
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Fills g from the snapshot of source if one exists and matches the source's checksum
+     * and the vertex order g is to be built in.
+     * @param g The empty graph to fill.
+     * @param source The OSM file the graph is built from.
+     * @return Whether g was loaded from the snapshot.
+     */
+    static boolean load(GraphDB g, File source) {
+        File snapshot = snapshotFor(source);
+        if (!source.isFile() || !snapshot.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER_BYTES + TRAILER_BYTES
+                    || in.getInt(in.limit() - 4) != MAGIC
+                    || in.getInt() != MAGIC || in.getInt() != VERSION
+                    || in.getLong() != checksum(source)
+                    || in.getInt() != vertexOrder(g)) {
+                return false;
+            }
+            int end = in.limit() - TRAILER_BYTES;
+            if (in.getLong(end) != contentChecksum(in, end)) {
+                return false;
+            }
+            in.limit(end);
+            g.readSnapshot(in);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /** Computes the CRC32 of the first end bytes of a snapshot, without moving in. */
+    private static long contentChecksum(ByteBuffer in, int end) {
+        ByteBuffer content = in.duplicate();
+        content.position(0);
+        content.limit(end);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the snapshot of g next to source. The file is written under a temporary name
+     * and renamed into place, so a crash never leaves a truncated snapshot behind.
+     * @param g The built graph.
+     * @param source The OSM file the graph was built from.
+     */
+    static void save(GraphDB g, File source) {
+        if (!source.isFile()) {
+            return;
+        }
+        File snapshot = snapshotFor(source);
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16), crc))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(checksum(source));
+                out.writeInt(vertexOrder(g));
+                g.writeSnapshot(out);
+                out.writeLong(crc.getValue());
+                out.writeInt(MAGIC);
+            }
+            if (!tmp.renameTo(snapshot)) {
+                snapshot.delete();
+                if (!tmp.renameTo(snapshot)) {
+                    throw new IOException("Could not move " + tmp + " to " + snapshot);
+                }
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            e.printStackTrace();
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeInts(DataOutputStream out, int[] a) throws IOException {
+        out.writeInt(a.length);
+        for (int x : a) {
+            out.writeInt(x);
+        }
+    }
+
+    static int[] readInts(ByteBuffer in) {
+        int[] a = new int[in.getInt()];
+        in.asIntBuffer().get(a);
+        in.position(in.position() + a.length * Integer.BYTES);
+        return a;
+    }
+
+    static void writeLongs(DataOutputStream out, long[] a) throws IOException {
+        out.writeInt(a.length);
+        for (long x : a) {
+            out.writeLong(x);
+        }
+    }
+
+    static long[] readLongs(ByteBuffer in) {
+        long[] a = new long[in.getInt()];
+        in.asLongBuffer().get(a);
+        in.position(in.position() + a.length * Long.BYTES);
+        return a;
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] a) throws IOException {
+        out.writeInt(a.length);
+        for (double x : a) {
+            out.writeDouble(x);
+        }
+    }
+
+    static double[] readDoubles(ByteBuffer in) {
+        double[] a = new double[in.getInt()];
+        in.asDoubleBuffer().get(a);
+        in.position(in.position() + a.length * Double.BYTES);
+        return a;
+    }
+}
@@ -0,0 +1,321 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Preprocessing for ContractionHierarchy. Vertices are contracted from least to most
+ * important: contracting v removes it from the graph and adds a shortcut x -> y for every
+ * pair of neighbours x -> v -> y whose distance no longer survives without v, which a
+ * bounded Dijkstra (the witness search) decides. Importance is twice the edge difference
+ * (the shortcuts contraction would add minus the edges it removes) plus the number of
+ * neighbours already contracted, which spreads contraction evenly over the map.
+ * Each round contracts every vertex whose importance is smaller than that of all its
+ * remaining neighbours. Such vertices are never adjacent, so their witness searches run
+ * in parallel on the fork-join common pool; the resulting shortcuts are then applied
+ * serially.
+ */
+class HierarchyBuilder {
+    /** A witness search gives up (and keeps the shortcut) after settling this many vertices. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    /**
+     * Settle limit of the witness searches that only estimate importance. These run for
+     * every neighbour of every contracted vertex and dominate preprocessing time, so they
+     * are kept short; an overestimate merely delays a vertex.
+     */
+    private static final int ESTIMATE_SETTLE_LIMIT = 50;
+
+    private final GraphDB.Metric metric;
+    private final int n;
+    /** Edges between vertices not yet contracted, by source and by target. */
+    private final EdgeList[] out;
+    private final EdgeList[] in;
+    /** Edges of contracted vertices to more important ones, as stored in the hierarchy. */
+    private final EdgeList[] up;
+    private final EdgeList[] down;
+    private final int[] rank;
+    private final boolean[] contracted;
+    /** Vertices being contracted in the current round; witness paths may not use them. */
+    private final boolean[] inBatch;
+    private final int[] contractedNeighbors;
+    private final double[] priority;
+    private final ThreadLocal<TargetMarks> targetMarks;
+
+    private HierarchyBuilder(GraphDB g, GraphDB.Metric metric) {
+        this.metric = metric;
+        n = g.numVertices();
+        out = new EdgeList[n];
+        in = new EdgeList[n];
+        up = new EdgeList[n];
+        down = new EdgeList[n];
+        for (int v = 0; v < n; v++) {
+            out[v] = new EdgeList();
+            in[v] = new EdgeList();
+            up[v] = new EdgeList();
+            down[v] = new EdgeList();
+        }
+        for (int v = 0; v < n; v++) {
+            for (int e = g.edgeBegin(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                if (w != v) {
+                    out[v].improve(w, g.edgeWeight(e, metric), -1);
+                    in[w].improve(v, g.edgeWeight(e, metric), -1);
+                }
+            }
+        }
+        rank = new int[n];
+        contracted = new boolean[n];
+        inBatch = new boolean[n];
+        contractedNeighbors = new int[n];
+        priority = new double[n];
+        targetMarks = ThreadLocal.withInitial(() -> new TargetMarks(n));
+    }
+
+    /**
+     * Contracts every vertex of g and returns the resulting hierarchy.
+     * @param g The graph.
+     * @param metric The edge costs to minimise.
+     * @return The hierarchy, ready for queries.
+     */
+    static ContractionHierarchy build(GraphDB g, GraphDB.Metric metric) {
+        return new HierarchyBuilder(g, metric).contractAll();
+    }
+
+    private ContractionHierarchy contractAll() {
+        IntStream.range(0, n).parallel().forEach(v -> priority[v] = priorityOf(v));
+        int[] remaining = IntStream.range(0, n).toArray();
+        int nextRank = 0;
+        boolean[] touched = new boolean[n];
+        while (remaining.length > 0) {
+            int[] batch = IntStream.of(remaining).parallel().filter(this::isLocalMinimum).toArray();
+            for (int v : batch) {
+                inBatch[v] = true;
+            }
+            List<List<Shortcut>> found = IntStream.of(batch).parallel()
+                    .mapToObj(v -> shortcutsFor(v, WITNESS_SETTLE_LIMIT))
+                    .collect(Collectors.toList());
+
+            int[] neighbors = new int[0];
+            int numNeighbors = 0;
+            for (int v : batch) {
+                for (int w : remove(v)) {
+                    contractedNeighbors[w]++;
+                    if (!touched[w]) {
+                        touched[w] = true;
+                        if (numNeighbors == neighbors.length) {
+                            neighbors = Arrays.copyOf(neighbors, Math.max(16, 2 * numNeighbors));
+                        }
+                        neighbors[numNeighbors++] = w;
+                    }
+                }
+                rank[v] = nextRank++;
+                contracted[v] = true;
+                inBatch[v] = false;
+            }
+            for (List<Shortcut> shortcuts : found) {
+                for (Shortcut s : shortcuts) {
+                    out[s.from].improve(s.to, s.weight, s.middle);
+                    in[s.to].improve(s.from, s.weight, s.middle);
+                }
+            }
+            int[] affected = Arrays.copyOf(neighbors, numNeighbors);
+            for (int w : affected) {
+                touched[w] = false;
+            }
+            IntStream.of(affected).parallel().forEach(w -> priority[w] = priorityOf(w));
+            remaining = IntStream.of(remaining).filter(v -> !contracted[v]).toArray();
+        }
+        return ContractionHierarchy.fromEdges(metric, rank, up, down);
+    }
+
+    /** Returns whether v ranks before every neighbour it still has. */
+    private boolean isLocalMinimum(int v) {
+        return !ranksBefore(out[v], v) && !ranksBefore(in[v], v);
+    }
+
+    /** Returns whether any vertex at the other end of edges ranks before v. */
+    private boolean ranksBefore(EdgeList edges, int v) {
+        for (int i = 0; i < edges.size; i++) {
+            int w = edges.ends[i];
+            if (priority[w] < priority[v] || (priority[w] == priority[v] && w < v)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private double priorityOf(int v) {
+        int edgeDifference = shortcutsFor(v, ESTIMATE_SETTLE_LIMIT).size()
+                - out[v].size - in[v].size;
+        return 2 * edgeDifference + contractedNeighbors[v];
+    }
+
+    /**
+     * Returns the shortcuts contracting v needs, without changing anything.
+     * @param v The vertex to contract.
+     * @param settleLimit The settle limit of each witness search.
+     */
+    private List<Shortcut> shortcutsFor(int v, int settleLimit) {
+        List<Shortcut> res = new ArrayList<>();
+        EdgeList ins = in[v];
+        EdgeList outs = out[v];
+        if (ins.size == 0 || outs.size == 0) {
+            return res;
+        }
+        double maxOut = 0;
+        for (int j = 0; j < outs.size; j++) {
+            maxOut = Math.max(maxOut, outs.weights[j]);
+        }
+        TargetMarks targets = targetMarks.get();
+        targets.mark(outs);
+        for (int i = 0; i < ins.size; i++) {
+            int x = ins.ends[i];
+            SearchWorkspace ws = witnessSearch(x, v, ins.weights[i] + maxOut, settleLimit,
+                    targets, outs.size);
+            for (int j = 0; j < outs.size; j++) {
+                int y = outs.ends[j];
+                double via = ins.weights[i] + outs.weights[j];
+                if (y != x && ws.g(y) > via) {
+                    res.add(new Shortcut(x, y, via, v));
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Dijkstra from source that avoids skip and the current round, stopping past limit,
+     * after settleLimit vertices, or once all numTargets marked targets are settled.
+     * Distances it found are upper bounds on the real ones, so a shortcut is only dropped
+     * when a witness path really exists.
+     */
+    private SearchWorkspace witnessSearch(int source, int skip, double limit, int settleLimit,
+                                          TargetMarks targets, int numTargets) {
+        SearchWorkspace ws = SearchWorkspace.get(n);
+        ws.reach(source, 0, -1);
+        ws.heap.insertOrDecrease(source, 0);
+        for (int settled = 0; settled < settleLimit && ws.heap.minKey() <= limit; settled++) {
+            int u = ws.heap.poll();
+            ws.close(u);
+            if (targets.isMarked(u) && --numTargets == 0) {
+                break;
+            }
+            EdgeList edges = out[u];
+            for (int k = 0; k < edges.size; k++) {
+                int w = edges.ends[k];
+                double d = ws.g(u) + edges.weights[k];
+                if (w != skip && !inBatch[w] && d < ws.g(w)) {
+                    ws.reach(w, d, u);
+                    ws.heap.insertOrDecrease(w, d);
+                }
+            }
+        }
+        return ws;
+    }
+
+    /**
+     * Moves the remaining edges of v into the hierarchy and detaches v from its neighbours.
+     * @return The neighbours of v, possibly with repeats.
+     */
+    private int[] remove(int v) {
+        int[] neighbors = new int[out[v].size + in[v].size];
+        int k = 0;
+        for (int i = 0; i < out[v].size; i++) {
+            int w = out[v].ends[i];
+            up[v].improve(w, out[v].weights[i], out[v].middles[i]);
+            in[w].remove(v);
+            neighbors[k++] = w;
+        }
+        for (int i = 0; i < in[v].size; i++) {
+            int x = in[v].ends[i];
+            down[v].improve(x, in[v].weights[i], in[v].middles[i]);
+            out[x].remove(v);
+            neighbors[k++] = x;
+        }
+        out[v] = null;
+        in[v] = null;
+        return neighbors;
+    }
+
+    /** Per-thread epoch-stamped set of the vertices a witness search is looking for. */
+    private static class TargetMarks {
+        private final int[] stamps;
+        private int epoch;
+
+        TargetMarks(int n) {
+            stamps = new int[n];
+        }
+
+        /** Replaces the marked set with the ends of edges. */
+        void mark(EdgeList edges) {
+            epoch++;
+            for (int i = 0; i < edges.size; i++) {
+                stamps[edges.ends[i]] = epoch;
+            }
+        }
+
+        boolean isMarked(int v) { return stamps[v] == epoch; }
+    }
+
+    /** A shortcut from -> to replacing the two edges through middle. */
+    private static class Shortcut {
+        final int from;
+        final int to;
+        final double weight;
+        final int middle;
+
+        Shortcut(int from, int to, double weight, int middle) {
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+            this.middle = middle;
+        }
+    }
+
+    /**
+     * Growable list of weighted edges of one vertex, keyed by the vertex at the other end.
+     * There is at most one edge per other end, the shortest.
+     */
+    static class EdgeList {
+        int[] ends = new int[4];
+        double[] weights = new double[4];
+        /** The contracted vertex a shortcut bypasses, or -1 for an original edge. */
+        int[] middles = new int[4];
+        int size;
+
+        /** Adds an edge to end, or shortens the existing one if weight is smaller. */
+        void improve(int end, double weight, int middle) {
+            for (int i = 0; i < size; i++) {
+                if (ends[i] == end) {
+                    if (weight < weights[i]) {
+                        weights[i] = weight;
+                        middles[i] = middle;
+                    }
+                    return;
+                }
+            }
+            if (size == ends.length) {
+                ends = Arrays.copyOf(ends, 2 * size);
+                weights = Arrays.copyOf(weights, 2 * size);
+                middles = Arrays.copyOf(middles, 2 * size);
+            }
+            ends[size] = end;
+            weights[size] = weight;
+            middles[size] = middle;
+            size++;
+        }
+
+        void remove(int end) {
+            for (int i = 0; i < size; i++) {
+                if (ends[i] == end) {
+                    size--;
+                    ends[i] = ends[size];
+                    weights[i] = weights[size];
+                    middles[i] = middles[size];
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+/**
+ * Orders points along a Hilbert curve over their bounding box. Consecutive points on the
+ * curve are close on the map, and, unlike row-by-row or Morton (Z) order, the curve never
+ * jumps across the box, so numbering vertices in this order keeps the neighbours a search
+ * touches close together in every per-vertex array.
+ */
+public class HilbertOrder {
+    /** Bits per axis of the grid the points are snapped to; 2 * BITS + 32 must fit a long. */
+    static final int BITS = 15;
+
+    private HilbertOrder() {
+    }
+
+    /**
+     * Returns the position along the Hilbert curve of cell (x, y) of a 2^BITS square grid.
+     * @param x The column, between 0 and 2^BITS - 1.
+     * @param y The row, between 0 and 2^BITS - 1.
+     * @return The distance along the curve, between 0 and 4^BITS - 1.
+     */
+    static long index(int x, int y) {
+        int n = 1 << BITS;
+        long d = 0;
+        for (int s = n >> 1; s > 0; s >>= 1) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            /* Rotate the quadrant so the curve inside it starts where the last one ended. */
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Returns the points sorted along the curve, ties kept in index order.
+     * @param lons The longitudes of the points.
+     * @param lats The latitudes of the points, in the same order.
+     * @return order, where order[i] is the index of the i-th point along the curve.
+     */
+    static int[] of(double[] lons, double[] lats) {
+        int n = lons.length;
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+        }
+        int cells = (1 << BITS) - 1;
+        double lonScale = maxLon > minLon ? cells / (maxLon - minLon) : 0;
+        double latScale = maxLat > minLat ? cells / (maxLat - minLat) : 0;
+        /* The curve position in the high bits and the point in the low 32 sorts both at once. */
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int x = (int) ((lons[i] - minLon) * lonScale);
+            int y = (int) ((lats[i] - minLat) * latScale);
+            keys[i] = index(x, y) << 32 | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.Arrays;
+
+/**
+ * Indexed 4-ary min-heap over the int ids 0 to capacity - 1, keyed by doubles.
+ * Every id is in the heap at most once, and its key can be lowered in place, which is what
+ * a decrease-key shortest path search needs instead of pushing duplicate entries.
+ */
+public class IndexedMinHeap {
+    private static final int ARITY = 4;
+
+    /** heap[i] is the id at heap position i. */
+    private final int[] heap;
+    /** pos[id] is the heap position of id, or -1 if id is not in the heap. */
+    private final int[] pos;
+    private final double[] keys;
+    private int size;
+
+    /**
+     * Create an empty heap for the ids 0 to capacity - 1.
+     * @param capacity The number of distinct ids.
+     */
+    IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        pos = new int[capacity];
+        keys = new double[capacity];
+        Arrays.fill(pos, -1);
+    }
+
+    boolean isEmpty() { return size == 0; }
+
+    int size() { return size; }
+
+    boolean contains(int id) { return pos[id] >= 0; }
+
+    /** Returns the current key of id, which must be in the heap. */
+    double key(int id) { return keys[id]; }
+
+    /** Returns the id with the smallest key without removing it. */
+    int peek() { return heap[0]; }
+
+    /** Returns the smallest key in the heap, or +infinity if it is empty. */
+    double minKey() { return size == 0 ? Double.POSITIVE_INFINITY : keys[heap[0]]; }
+
+    /**
+     * Inserts id with the given key, or lowers its key if it is already in the heap.
+     * A key larger than the current one is ignored.
+     * @param id The id to insert.
+     * @param key The new key.
+     */
+    void insertOrDecrease(int id, double key) {
+        int i = pos[id];
+        if (i < 0) {
+            i = size++;
+        } else if (key >= keys[id]) {
+            return;
+        }
+        keys[id] = key;
+        siftUp(id, i);
+    }
+
+    /**
+     * Removes and returns the id with the smallest key.
+     * @return The removed id.
+     */
+    int poll() {
+        int top = heap[0];
+        pos[top] = -1;
+        size--;
+        if (size > 0) {
+            siftDown(heap[size], 0);
+        }
+        return top;
+    }
+
+    /** Removes every id, in time proportional to the current size. */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            pos[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int id, int i) {
+        double key = keys[id];
+        while (i > 0) {
+            int parent = (i - 1) / ARITY;
+            int p = heap[parent];
+            if (keys[p] <= key) {
+                break;
+            }
+            heap[i] = p;
+            pos[p] = i;
+            i = parent;
+        }
+        heap[i] = id;
+        pos[id] = i;
+    }
+
+    private void siftDown(int id, int i) {
+        double key = keys[id];
+        while (true) {
+            int first = i * ARITY + 1;
+            if (first >= size) {
+                break;
+            }
+            int last = Math.min(first + ARITY, size);
+            int best = first;
+            for (int c = first + 1; c < last; c++) {
+                if (keys[heap[c]] < keys[heap[best]]) {
+                    best = c;
+                }
+            }
+            int child = heap[best];
+            if (keys[child] >= key) {
+                break;
+            }
+            heap[i] = child;
+            pos[child] = i;
+            i = best;
+        }
+        heap[i] = id;
+        pos[id] = i;
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * This class provides a main method for measuring how fast OSM files are read, in the same
+ * spirit as RouterBenchmark. Each round parses the file into an empty GraphDB through
+ * GraphBuildingHandler, and the median throughput is reported in MB/s of XML. The JDK's
+ * SAX parser and OsmTokenizer read the file from memory, so their numbers are for parsing
+ * alone; ParallelOsmReader reads it from the file (normally in the page cache after the
+ * first round) in one part and then in as many parts as it would choose for every core.
+ * If the same region is given as PBF too, PbfReader is timed on it last; its MB/s are of
+ * the smaller PBF file, so compare its time per parse with the others'. Finally the memory
+ * used to build the graph in one pass over the file and in two is compared.
+ * Usage: IngestBenchmark [osm file] [rounds] [pbf file]
+ */
+public class IngestBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int WARMUP_ROUNDS = 3;
+
+    /** A way of reading the benchmarked file into a graph. */
+    interface Parser {
+        void parse(GraphDB g) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String dbPath = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        File file = new File(dbPath);
+        byte[] xml = Files.readAllBytes(file.toPath());
+        System.out.println(String.format("Read %s: %.1f MB.", dbPath, xml.length / 1e6));
+        measure("SAX", xml.length, rounds, g -> sax(new ByteArrayInputStream(xml), g));
+        measure("OsmTokenizer", xml.length, rounds,
+                g -> tokenizer(new ByteArrayInputStream(xml), g));
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int parts : IntStream.of(1, cores, 4 * cores).distinct().toArray()) {
+            measure("Parallel, " + parts + " parts", xml.length, rounds,
+                    g -> ParallelOsmReader.read(file, new GraphBuildingHandler(g), parts));
+        }
+        if (args.length > 2) {
+            File pbf = new File(args[2]);
+            measure("PBF", pbf.length(), rounds,
+                    g -> PbfReader.read(pbf, new GraphBuildingHandler(g)));
+        }
+        System.out.println(cores + " cores available.");
+
+        compareMemory(dbPath);
+    }
+
+    /**
+     * Builds the whole graph reading the file once and then twice (see ReferencedNodes),
+     * and prints the peak heap use during each build and the heap the finished graph keeps.
+     * The peak is the sum of the peaks of the heap's memory pools as the JVM reports them,
+     * so it depends on when the collector ran and is only meant for comparing the two.
+     */
+    static void compareMemory(String dbPath) {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pools.add(pool);
+            }
+        }
+        measureMemory(dbPath, false, pools);
+        measureMemory(dbPath, true, pools);
+    }
+
+    /** Builds the graph once and prints its memory use; the graph is gone when this returns. */
+    private static void measureMemory(String dbPath, boolean twoPass,
+                                      List<MemoryPoolMXBean> pools) {
+        long before = usedAfterGc();
+        for (MemoryPoolMXBean pool : pools) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        GraphDB g = new GraphDB(dbPath, false, false, twoPass);
+        long nanos = System.nanoTime() - start;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        long kept = usedAfterGc() - before;
+        System.out.println(String.format("%-20s built in %.0f ms, peak heap %.0f MB,"
+                        + " graph keeps %.0f MB (%d vertices)",
+                twoPass ? "Two passes" : "One pass", nanos / 1e6, peak / 1048576.0,
+                kept / 1048576.0, g.numVertices()));
+    }
+
+    private static long usedAfterGc() {
+        System.gc();
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    static void sax(InputStream in, GraphDB g) throws Exception {
+        SAXParser saxParser = SAXParserFactory.newInstance().newSAXParser();
+        saxParser.parse(in, new GraphBuildingHandler(g));
+    }
+
+    static void tokenizer(InputStream in, GraphDB g) throws Exception {
+        new OsmTokenizer(in, new GraphBuildingHandler(g)).parse();
+    }
+
+    /**
+     * Runs parser rounds times after a warmup and prints the throughput.
+     * @param bytes The size of the XML parser reads.
+     * @return The median throughput, in MB/s.
+     */
+    static double measure(String name, long bytes, int rounds, Parser parser) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            parser.parse(new GraphDB());
+        }
+        long[] nanos = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            GraphDB g = new GraphDB();
+            long start = System.nanoTime();
+            parser.parse(g);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        double median = bytes / 1e6 / (nanos[rounds / 2] / 1e9);
+        System.out.println(String.format("%-20s median %7.1f MB/s  best %7.1f MB/s"
+                        + "  (%.0f ms per parse)", name, median,
+                bytes / 1e6 / (nanos[0] / 1e9), nanos[rounds / 2] / 1e6));
+        return median;
+    }
+}
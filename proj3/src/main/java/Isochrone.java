@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+ * The part of the map reachable from a start point within a distance budget: every node
+ * whose road distance from the start is at most the budget, with that distance, and the
+ * convex hull of those nodes as the boundary polygon.
+ * It is computed by one Dijkstra search over the GraphDB adjacency that stops when the
+ * next vertex is over budget, and the hull grows as vertices are settled.
+ */
+public class Isochrone {
+    private final long[] nodes;
+    private final double[] distances;
+    private final double[][] boundary;
+
+    private Isochrone(long[] nodes, double[] distances, double[][] boundary) {
+        this.nodes = nodes;
+        this.distances = distances;
+        this.boundary = boundary;
+    }
+
+    /**
+     * Computes the isochrone around the node closest to a location.
+     * @param g The graph to use.
+     * @param lon The longitude of the start location.
+     * @param lat The latitude of the start location.
+     * @param budget The largest road distance to include, in miles.
+     * @return The reachable nodes and their boundary.
+     */
+    static Isochrone compute(GraphDB g, double lon, double lat, double budget) {
+        SearchWorkspace ws = SearchWorkspace.get(g.numVertices());
+        ConvexHull hull = new ConvexHull();
+        int[] settled = new int[64];
+        int count = 0;
+        int start = g.indexOf(g.closest(lon, lat));
+        if (start >= 0 && budget >= 0) {
+            ws.reach(start, 0, -1);
+            ws.heap.insertOrDecrease(start, 0);
+        }
+
+        Expansion expansion = new Expansion(ws, budget);
+        while ( !ws.heap.isEmpty() ){
+            int v = ws.heap.poll();
+            ws.close(v);
+            if(count == settled.length)
+                settled = Arrays.copyOf(settled, 2 * count);
+            settled[count++] = v;
+            hull.add(g.lonAt(v), g.latAt(v));
+            expansion.from = v;
+            g.forEachNeighbor(v, expansion);
+        }
+
+        long[] nodes = new long[count];
+        double[] distances = new double[count];
+        for(int i = 0; i < count; i++){
+            nodes[i] = g.idAt(settled[i]);
+            distances[i] = ws.g(settled[i]);
+        }
+        return new Isochrone(nodes, distances, hull.vertices());
+    }
+
+    /** Returns the ids of the reachable nodes, nearest first. */
+    long[] nodes() { return nodes; }
+
+    /** Returns the road distance in miles to each node of nodes(), in the same order. */
+    double[] distances() { return distances; }
+
+    /**
+     * Returns the boundary polygon as {lon, lat} pairs in counter-clockwise order. It has
+     * fewer than three vertices when all reachable nodes are on one line.
+     */
+    double[][] boundary() { return boundary; }
+
+    /** Relaxes the edges out of one settled vertex, dropping paths over budget. */
+    private static class Expansion implements GraphDB.NeighborVisitor {
+        private final SearchWorkspace ws;
+        private final double budget;
+        private int from;
+
+        Expansion(SearchWorkspace ws, double budget) {
+            this.ws = ws;
+            this.budget = budget;
+        }
+
+        @Override
+        public void visit(int w, double weight) {
+            double tentative = ws.g(from) + weight;
+            if(tentative <= budget && tentative < ws.g(w)){
+                ws.reach(w, tentative, from);
+                ws.heap.insertOrDecrease(w, tentative);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.util.Arrays;
+
+/**
+ * Static 2-d tree over the vertices of a GraphDB, split alternately on longitude and
+ * latitude. Distances are the same great-circle distances GraphDB.distance returns, and
+ * subtrees are pruned with lower bounds on that distance, so nearest() agrees exactly with
+ * a linear scan: the closest vertex, with ties going to the lowest vertex index.
+ * The tree is implicit: the median of every range of order is the splitting vertex.
+ */
+public class KdTree {
+    /** Ranges this small are scanned instead of split further. */
+    private static final int LEAF_SIZE = 8;
+    /** Earth radius in miles, as used by GraphDB.distance. */
+    private static final double RADIUS = 3963;
+    /** Relative slack on the pruning bounds to absorb rounding in the haversine formula. */
+    private static final double SLACK = 1 - 1e-9;
+
+    private final double[] lons;
+    private final double[] lats;
+    private final int[] order;
+
+    /**
+     * Builds the tree over all vertices of the given coordinate arrays.
+     * @param lons The longitude of every vertex.
+     * @param lats The latitude of every vertex.
+     */
+    KdTree(double[] lons, double[] lats) {
+        this.lons = lons;
+        this.lats = lats;
+        this.order = new int[lons.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        build(0, order.length, 0);
+    }
+
+    private void build(int lo, int hi, int depth) {
+        while (hi - lo > LEAF_SIZE) {
+            int mid = (lo + hi) >>> 1;
+            select(lo, hi, mid, depth % 2 == 0 ? lons : lats);
+            build(mid + 1, hi, depth + 1);
+            hi = mid;
+            depth++;
+        }
+    }
+
+    /** Partially sorts order[lo, hi) by key so that order[k] holds the k-th smallest. */
+    private void select(int lo, int hi, int k, double[] key) {
+        hi--;
+        while (hi > lo) {
+            double pivot = key[order[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (key[order[i]] < pivot) {
+                    i++;
+                }
+                while (key[order[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the vertex closest to the given point.
+     * @return The vertex index, or -1 if the tree is empty.
+     */
+    int nearest(double lon, double lat) {
+        int[] res = nearest(lon, lat, 1);
+        return res.length == 0 ? -1 : res[0];
+    }
+
+    /**
+     * Returns the k vertices closest to the given point, closest first.
+     * @return Up to k vertex indices ordered by distance, then by index.
+     */
+    int[] nearest(double lon, double lat, int k) {
+        Query q = new Query(lon, lat, Math.max(0, Math.min(k, order.length)),
+                Double.POSITIVE_INFINITY);
+        q.search(0, order.length, 0);
+        return q.result();
+    }
+
+    /**
+     * Returns every vertex within the given great-circle distance of the point.
+     * @param radius The distance in miles.
+     * @return The vertex indices ordered by distance, then by index.
+     */
+    int[] within(double lon, double lat, double radius) {
+        Query q = new Query(lon, lat, Integer.MAX_VALUE, radius);
+        q.search(0, order.length, 0);
+        return q.result();
+    }
+
+    /**
+     * State of one query: the best vertices found so far, kept sorted by distance then
+     * index. Radius queries keep everything within the radius.
+     */
+    private class Query {
+        final double lon;
+        final double lat;
+        final double cosLat;
+        final int limit;
+        final double radius;
+        int[] found;
+        double[] foundDist;
+        int count;
+
+        Query(double lon, double lat, int limit, double radius) {
+            this.lon = lon;
+            this.lat = lat;
+            this.cosLat = Math.cos(Math.toRadians(lat));
+            this.limit = limit;
+            this.radius = radius;
+            int capacity = Math.max(1, Math.min(limit, 16));
+            this.found = new int[capacity];
+            this.foundDist = new double[capacity];
+        }
+
+        /** The distance a candidate has to beat to be kept. */
+        double bound() {
+            return count == limit ? foundDist[count - 1] : radius;
+        }
+
+        void search(int lo, int hi, int depth) {
+            if (limit == 0) {
+                return;
+            }
+            if (hi - lo <= LEAF_SIZE) {
+                for (int i = lo; i < hi; i++) {
+                    offer(order[i]);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            int v = order[mid];
+            offer(v);
+            boolean byLon = depth % 2 == 0;
+            double diff = byLon ? lon - lons[v] : lat - lats[v];
+            if (diff < 0) {
+                search(lo, mid, depth + 1);
+                if (planeBound(byLon, -diff) <= bound()) {
+                    search(mid + 1, hi, depth + 1);
+                }
+            } else {
+                search(mid + 1, hi, depth + 1);
+                if (planeBound(byLon, diff) <= bound()) {
+                    search(lo, mid, depth + 1);
+                }
+            }
+        }
+
+        /**
+         * Lower bound on the great-circle distance from the query to any point on the other
+         * side of a splitting meridian or parallel that is diff degrees away.
+         */
+        double planeBound(boolean byLon, double diff) {
+            if (!byLon) {
+                return RADIUS * Math.toRadians(diff) * SLACK;
+            }
+            if (diff >= 90) {
+                return 0;
+            }
+            return RADIUS * Math.asin(cosLat * Math.sin(Math.toRadians(diff))) * SLACK;
+        }
+
+        void offer(int v) {
+            double d = GraphDB.distance(lons[v], lats[v], lon, lat);
+            if (d > radius) {
+                return;
+            }
+            if (count == limit) {
+                double worst = foundDist[count - 1];
+                if (d > worst || d == worst && v > found[count - 1]) {
+                    return;
+                }
+                count--;
+            }
+            if (count == found.length) {
+                found = Arrays.copyOf(found, count * 2);
+                foundDist = Arrays.copyOf(foundDist, count * 2);
+            }
+            if (limit == Integer.MAX_VALUE) {
+                found[count] = v;
+                foundDist[count++] = d;
+                return;
+            }
+            int i = count++;
+            while (i > 0 && (foundDist[i - 1] > d || foundDist[i - 1] == d && found[i - 1] > v)) {
+                found[i] = found[i - 1];
+                foundDist[i] = foundDist[i - 1];
+                i--;
+            }
+            found[i] = v;
+            foundDist[i] = d;
+        }
+
+        int[] result() {
+            if (limit != Integer.MAX_VALUE) {
+                return Arrays.copyOf(found, count);
+            }
+            Integer[] byDistance = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                byDistance[i] = i;
+            }
+            Arrays.sort(byDistance, (a, b) -> foundDist[a] != foundDist[b]
+                    ? Double.compare(foundDist[a], foundDist[b]) : Integer.compare(found[a], found[b]));
+            int[] res = new int[count];
+            for (int i = 0; i < count; i++) {
+                res[i] = found[byDistance[i]];
+            }
+            return res;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Landmark distance tables for the ALT (A*, landmarks, triangle inequality) heuristic.
+ * For every landmark L the tables hold d(L, v) and d(v, L) for all vertices v, so that
+ * d(v, t) >= max(d(L, t) - d(L, v), d(v, L) - d(t, L)) gives an admissible and consistent
+ * lower bound that, unlike the great-circle distance, knows about one-way streets and
+ * detours. Tables are stored vertex-major (all landmarks of a vertex side by side) so one
+ * bound touches one or two cache lines.
+ * Landmarks are picked by farthest selection: each new landmark is the vertex whose road
+ * distance to the landmarks chosen so far is largest.
+ */
+public class Landmarks {
+    /** Number of landmarks used when none is given. */
+    static final int DEFAULT_COUNT = 8;
+    private static final int MAGIC = 0x424C4D4B;
+    private static final int VERSION = 2;
+    /** Bounds are shaved by this relative amount to absorb rounding in summed distances. */
+    private static final double SLACK = 1 - 1e-12;
+
+    private final GraphDB.Metric metric;
+    private final int count;
+    private final int[] vertices;
+    /** fromLandmark[v * count + l] is d(landmark l, v), +infinity if unreachable. */
+    private final double[] fromLandmark;
+    /** toLandmark[v * count + l] is d(v, landmark l), +infinity if unreachable. */
+    private final double[] toLandmark;
+
+    private Landmarks(GraphDB.Metric metric, int[] vertices, double[] fromLandmark,
+                      double[] toLandmark) {
+        this.metric = metric;
+        this.count = vertices.length;
+        this.vertices = vertices;
+        this.fromLandmark = fromLandmark;
+        this.toLandmark = toLandmark;
+    }
+
+    /**
+     * Chooses count landmarks on g and computes their distance tables. The landmarks are
+     * chosen one after another; the reverse tables are then computed in parallel.
+     * @param g The graph.
+     * @param count The number of landmarks wanted.
+     * @param metric The edge costs the tables hold.
+     * @return The landmark tables.
+     */
+    static Landmarks compute(GraphDB g, int count, GraphDB.Metric metric) {
+        int n = g.numVertices();
+        count = Math.min(count, n);
+        int[] chosen = new int[count];
+        double[][] from = new double[count][];
+        double[] nearest = new double[n];
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+
+        /* Seed the farthest selection from the vertex nearest the middle of the map. */
+        double lon = 0;
+        double lat = 0;
+        for (int v = 0; v < n; v++) {
+            lon += g.lonAt(v) / n;
+            lat += g.latAt(v) / n;
+        }
+        int seed = n == 0 ? -1 : g.indexOf(g.closest(lon, lat));
+        double[] fromSeed = n == 0 ? null : dijkstra(g, seed, true, metric);
+
+        for (int l = 0; l < count; l++) {
+            double[] reference = l == 0 ? fromSeed : nearest;
+            int best = -1;
+            for (int v = 0; v < n; v++) {
+                double d = reference[v];
+                if (d < Double.POSITIVE_INFINITY && (best < 0 || d > reference[best])) {
+                    best = v;
+                }
+            }
+            chosen[l] = best;
+            from[l] = dijkstra(g, best, true, metric);
+            for (int v = 0; v < n; v++) {
+                nearest[v] = Math.min(nearest[v], from[l][v]);
+            }
+        }
+
+        double[][] to = new double[count][];
+        IntStream.range(0, count).parallel()
+                .forEach(l -> to[l] = dijkstra(g, chosen[l], false, metric));
+
+        double[] fromTable = new double[n * count];
+        double[] toTable = new double[n * count];
+        for (int l = 0; l < count; l++) {
+            for (int v = 0; v < n; v++) {
+                fromTable[v * count + l] = from[l][v];
+                toTable[v * count + l] = to[l][v];
+            }
+        }
+        return new Landmarks(metric, chosen, fromTable, toTable);
+    }
+
+    /**
+     * Runs a full Dijkstra from source over outgoing edges (forward) or incoming edges
+     * (backward), returning the distance to (or from) every vertex.
+     */
+    private static double[] dijkstra(GraphDB g, int source, boolean forward,
+                                     GraphDB.Metric metric) {
+        double[] dist = new double[g.numVertices()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        IndexedMinHeap heap = new IndexedMinHeap(dist.length);
+        dist[source] = 0;
+        heap.insertOrDecrease(source, 0);
+        int[] current = new int[1];
+        GraphDB.NeighborVisitor relax = (w, weight) -> {
+            double d = dist[current[0]] + weight;
+            if (d < dist[w]) {
+                dist[w] = d;
+                heap.insertOrDecrease(w, d);
+            }
+        };
+        while (!heap.isEmpty()) {
+            current[0] = heap.poll();
+            if (forward) {
+                g.forEachNeighbor(current[0], metric, relax);
+            } else {
+                g.forEachIncoming(current[0], metric, relax);
+            }
+        }
+        return dist;
+    }
+
+    int count() { return count; }
+
+    GraphDB.Metric metric() { return metric; }
+
+    /** Returns the dense index of landmark l. */
+    int landmark(int l) { return vertices[l]; }
+
+    /**
+     * Returns a lower bound on the cost (under metric()) of a route from v to t. The bound is +infinity when
+     * the tables prove that t cannot be reached from v.
+     * @param v The dense index of the vertex.
+     * @param t The dense index of the target.
+     * @return The largest landmark bound, never negative.
+     */
+    double lowerBound(int v, int t) {
+        double best = 0;
+        int vi = v * count;
+        int ti = t * count;
+        for (int l = 0; l < count; l++) {
+            double lv = fromLandmark[vi + l];
+            if (lv < Double.POSITIVE_INFINITY) {
+                best = Math.max(best, fromLandmark[ti + l] - lv);
+            }
+            double tl = toLandmark[ti + l];
+            if (tl < Double.POSITIVE_INFINITY) {
+                best = Math.max(best, toLandmark[vi + l] - tl);
+            }
+        }
+        return best * SLACK;
+    }
+
+    /**
+     * Writes the tables to file, tagged with the fingerprint of the graph they belong to.
+     * @param g The graph the tables were computed on.
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    void save(GraphDB g, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(g.fingerprint());
+            out.writeInt(metric.ordinal());
+            GraphSnapshot.writeInts(out, vertices);
+            GraphSnapshot.writeDoubles(out, fromLandmark);
+            GraphSnapshot.writeDoubles(out, toLandmark);
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not move " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads tables written by save.
+     * @param g The graph the tables are wanted for.
+     * @param metric The metric the tables are wanted for.
+     * @param file The file to read.
+     * @return The tables, or null if the file is missing or belongs to a different graph
+     * or metric.
+     */
+    static Landmarks load(GraphDB g, GraphDB.Metric metric, File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 20 || in.getInt() != MAGIC || in.getInt() != VERSION
+                    || in.getLong() != g.fingerprint() || in.getInt() != metric.ordinal()) {
+                return null;
+            }
+            int[] vertices = GraphSnapshot.readInts(in);
+            double[] from = GraphSnapshot.readDoubles(in);
+            double[] to = GraphSnapshot.readDoubles(in);
+            return new Landmarks(metric, vertices, from, to);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Loads the tables stored in file if they match g and metric, and otherwise computes
+     * count new landmarks and stores them in file for next time.
+     */
+    static Landmarks loadOrCompute(GraphDB g, GraphDB.Metric metric, File file, int count) {
+        Landmarks landmarks = load(g, metric, file);
+        if (landmarks == null || landmarks.count != Math.min(count, g.numVertices())) {
+            landmarks = compute(g, count, metric);
+            try {
+                landmarks.save(g, file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return landmarks;
+    }
+}
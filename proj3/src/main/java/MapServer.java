@@ -6,7 +6,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.Base64;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,6 +39,8 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response for a service that is still loading. */
+    private static final int UNAVAILABLE_RESPONSE = 503;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
@@ -51,6 +52,23 @@ public class MapServer {
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /** The contraction hierarchy of the graph is kept next to the OSM file, with this suffix. */
+    private static final String HIERARCHY_SUFFIX = ".ch";
+    /** System property overriding the memory budget of the route cache, in bytes. */
+    private static final String ROUTE_CACHE_BYTES_PROPERTY = "bearmaps.routeCacheBytes";
+    /** System property that, when "true", numbers the graph's vertices along a Hilbert curve. */
+    private static final String HILBERT_ORDER_PROPERTY = "bearmaps.hilbertOrder";
+    /** System property that, when "true", reads the map twice to keep only nodes in use. */
+    private static final String TWO_PASS_PROPERTY = "bearmaps.twoPass";
+    /** System properties limiting one route search: settled vertices and milliseconds. */
+    private static final String ROUTE_MAX_SETTLED_PROPERTY = "bearmaps.routeMaxSettled";
+    private static final String ROUTE_TIMEOUT_MILLIS_PROPERTY = "bearmaps.routeTimeoutMillis";
+    /** How long a route search may run unless overridden, in milliseconds. */
+    private static final long DEFAULT_ROUTE_TIMEOUT_MILLIS = 2000;
+    /** System property overriding the most points one matrix request may ask for. */
+    private static final String MATRIX_MAX_POINTS_PROPERTY = "bearmaps.matrixMaxPoints";
+    /** How many points a matrix request may ask for unless overridden. */
+    private static final int DEFAULT_MATRIX_MAX_POINTS = 100;
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -70,6 +88,15 @@ public class MapServer {
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
 
+    /**
+     * Each isochrone request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * start_lat : start point latitude,<br> start_lon : start point longitude,<br>
+     * budget : the largest road distance to reach, in miles.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"start_lat", "start_lon",
+        "budget"};
+
     /**
      * The result of rastering must be a map containing all of the
      * fields listed in the comments for getMapRaster in Rasterer.java.
@@ -79,7 +106,10 @@ public class MapServer {
 
     private static Rasterer rasterer;
     private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    private static Router.Route route;
+    private static int routeMaxSettled;
+    private static long routeTimeoutMillis;
+    private static int matrixMaxPoints;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -89,8 +119,31 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        graph = new GraphDB(OSM_DB_PATH, true, Boolean.getBoolean(HILBERT_ORDER_PROPERTY),
+                Boolean.getBoolean(TWO_PASS_PROPERTY));
+        graph.routeCache().setBudget(Long.getLong(ROUTE_CACHE_BYTES_PROPERTY,
+                RouteCache.DEFAULT_BUDGET_BYTES));
+        routeMaxSettled = Integer.getInteger(ROUTE_MAX_SETTLED_PROPERTY, Integer.MAX_VALUE);
+        routeTimeoutMillis = Long.getLong(ROUTE_TIMEOUT_MILLIS_PROPERTY,
+                DEFAULT_ROUTE_TIMEOUT_MILLIS);
+        matrixMaxPoints = Integer.getInteger(MATRIX_MAX_POINTS_PROPERTY,
+                DEFAULT_MATRIX_MAX_POINTS);
         rasterer = new Rasterer();
+        loadHierarchy(graph);
+    }
+
+    /**
+     * Loads the contraction hierarchy of g kept next to the OSM file, or builds and stores it
+     * if there is none or it is stale, on a background thread. Building takes over a minute
+     * on a large map, so the server answers other requests meanwhile and /matrix reports 503
+     * until the hierarchy is in place.
+     */
+    private static void loadHierarchy(GraphDB g) {
+        Thread loader = new Thread(() -> g.setHierarchy(ContractionHierarchy.loadOrBuild(g,
+                GraphDB.Metric.DISTANCE, new File(OSM_DB_PATH + HIERARCHY_SUFFIX))),
+                "hierarchy-loader");
+        loader.setDaemon(true);
+        loader.start();
     }
 
     public static void main(String[] args) {
@@ -130,21 +183,81 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
-        /* Define the routing endpoint for HTTP GET requests. */
+        /* Define the routing endpoint for HTTP GET requests. The optional metric=time
+         * parameter asks for the quickest route instead of the shortest. A search that runs
+         * out of budget gives up, reporting why in routing_status. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
+            GraphDB.Metric metric = "time".equals(req.queryParams("metric"))
+                    ? GraphDB.Metric.TIME : GraphDB.Metric.DISTANCE;
+            Router.Route found = Router.shortestRoute(graph, params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                    metric, new SearchBudget(routeMaxSettled, routeTimeoutMillis));
+            route = found.status == Router.Status.FOUND ? found : null;
             String directions = getDirectionsText();
             Map<String, Object> routeParams = new HashMap<>();
-            routeParams.put("routing_success", !route.isEmpty());
+            routeParams.put("routing_success", route != null);
+            routeParams.put("routing_status", found.status.toString().toLowerCase());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
             Gson gson = new Gson();
             return gson.toJson(routeParams);
         });
 
+        /* Define the distance matrix endpoint. The points parameter lists the points as
+         * lon,lat pairs separated by semicolons; the response holds the row-major matrix of
+         * road distances between them, with -1 where a point cannot be reached. Until the
+         * contraction hierarchy has been loaded, the endpoint answers 503. */
+        get("/matrix", (req, res) -> {
+            if (!graph.hasHierarchy(GraphDB.Metric.DISTANCE)) {
+                halt(UNAVAILABLE_RESPONSE, "Matrix not ready - still loading the road network.");
+            }
+            double[][] points = getMatrixPoints(req);
+            double[] distances = Router.distanceMatrix(graph, points[0], points[1]);
+            for (int i = 0; i < distances.length; i++) {
+                if (distances[i] == Double.POSITIVE_INFINITY) {
+                    distances[i] = -1;
+                }
+            }
+            Map<String, Object> matrixParams = new HashMap<>();
+            matrixParams.put("matrix_success", true);
+            matrixParams.put("size", points[0].length);
+            matrixParams.put("distances", distances);
+            Gson gson = new Gson();
+            return gson.toJson(matrixParams);
+        });
+
+        /* Define the isochrone endpoint: every node within the distance budget of the start,
+         * nearest first, with its distance, and the convex boundary polygon around them. */
+        get("/isochrone", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            Isochrone isochrone = Isochrone.compute(graph, params.get("start_lon"),
+                    params.get("start_lat"), params.get("budget"));
+            Map<String, Object> isochroneParams = new HashMap<>();
+            isochroneParams.put("isochrone_success", isochrone.nodes().length > 0);
+            isochroneParams.put("nodes", isochrone.nodes());
+            isochroneParams.put("distances", isochrone.distances());
+            isochroneParams.put("boundary", isochrone.boundary());
+            Gson gson = new Gson();
+            return gson.toJson(isochroneParams);
+        });
+
+        /* Define the API endpoint reporting how well the route cache is doing. */
+        get("/route_cache_stats", (req, res) -> {
+            RouteCache cache = graph.routeCache();
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("hits", cache.hits());
+            stats.put("misses", cache.misses());
+            stats.put("hit_ratio", cache.hitRatio());
+            stats.put("evictions", cache.evictions());
+            stats.put("entries", cache.size());
+            stats.put("bytes", cache.sizeInBytes());
+            Gson gson = new Gson();
+            return gson.toJson(stats);
+        });
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
             clearRoute();
@@ -200,6 +313,38 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Parse the points parameter of a matrix request. The response grows with the square of
+     * the number of points, so at most matrixMaxPoints are accepted.
+     * @param req HTTP Request.
+     * @return The longitudes and the latitudes of the points, as two arrays.
+     */
+    private static double[][] getMatrixPoints(spark.Request req) {
+        String param = req.queryParams("points");
+        if (param == null || param.trim().isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        String[] pairs = param.split(";");
+        if (pairs.length > matrixMaxPoints) {
+            halt(HALT_RESPONSE, "Request failed - at most " + matrixMaxPoints + " points.");
+        }
+        double[][] points = new double[2][pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            String[] lonLat = pairs[i].split(",");
+            try {
+                if (lonLat.length != 2) {
+                    throw new NumberFormatException("Expected lon,lat but got " + pairs[i]);
+                }
+                points[0][i] = Double.parseDouble(lonLat[0].trim());
+                points[1][i] = Double.parseDouble(lonLat[1].trim());
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+        }
+        return points;
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
@@ -234,18 +379,18 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        if (route != null) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            double[][] points = route.points(graph);
+            for (int i = 1; i < points.length; i++) {
+                g2d.drawLine((int) ((points[i - 1][0] - ullon) * (1 / wdpp)),
+                             (int) ((ullat - points[i - 1][1]) * (1 / hdpp)),
+                             (int) ((points[i][0] - ullon) * (1 / wdpp)),
+                             (int) ((ullat - points[i][1]) * (1 / hdpp)));
+            }
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
@@ -276,7 +421,7 @@ public class MapServer {
      * Clear the current found route, if it exists.
      */
     public static void clearRoute() {
-        route = new LinkedList<Long>();
+        route = null;
     }
 
     /**
@@ -329,6 +474,13 @@ public class MapServer {
      * String to be passed to the frontend.
      */
     private static String getDirectionsText() {
+        if (route == null) {
+            return "";
+        }
+        String cached = graph.routeCache().directions(route);
+        if (cached != null) {
+            return cached;
+        }
         List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
         if (directions == null || directions.isEmpty()) {
           return "";
@@ -339,6 +491,8 @@ public class MapServer {
             sb.append(String.format("%d. %s <br>", step, d));
             step += 1;
         }
-        return sb.toString();
+        String text = sb.toString();
+        graph.routeCache().putDirections(route, text);
+        return text;
     }
 }
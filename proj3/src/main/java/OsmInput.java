@@ -0,0 +1,52 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens OSM files for parsing, compressed or not. A file ending in .gz or .bz2 is inflated
+ * on a separate thread through a PipelinedInputStream, so decompression overlaps with
+ * parsing instead of running before it; any other file is read as it is.
+ */
+public class OsmInput {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private OsmInput() {
+    }
+
+    /** Returns whether open inflates the file, judging by its name. */
+    static boolean isCompressed(File file) {
+        String name = file.getName();
+        return name.endsWith(".gz") || name.endsWith(".bz2");
+    }
+
+    /**
+     * Opens a file for reading its uncompressed contents.
+     * @param file The OSM file, optionally compressed with gzip (.gz) or bzip2 (.bz2).
+     * @return A stream of the uncompressed bytes, to be closed by the caller.
+     * @throws IOException If the file cannot be opened or its compression header is invalid.
+     */
+    static InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        String name = file.getName();
+        try {
+            if (name.endsWith(".gz")) {
+                return new PipelinedInputStream(new GZIPInputStream(in, BUFFER_SIZE),
+                        "gunzip " + name);
+            }
+            if (name.endsWith(".bz2")) {
+                /* Concatenated streams, as written by parallel compressors like pbzip2. */
+                return new PipelinedInputStream(new BZip2CompressorInputStream(in, true),
+                        "bunzip2 " + name);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+}
@@ -0,0 +1,482 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads OSM XML straight from its bytes and drives a GraphBuildingHandler, as a faster
+ * replacement for a general SAX parser. It only understands what OSM files contain: it
+ * reports <node>, <way>, <nd> and <tag> elements and the end of each way, and skips the
+ * prolog, comments, text and every other element. Ids and coordinates are parsed from
+ * the buffer without creating Strings; only tag keys and values become Strings, and the
+ * few keys the handler looks at are shared constants rather than fresh copies.
+ * The file must be UTF-8, which is what OSM writes. Attribute values are decoded the way
+ * an XML parser would: entity and character references are resolved and literal tabs
+ * and line breaks become spaces.
+ */
+public class OsmTokenizer {
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Tag keys returned as these Strings instead of new ones. */
+    private static final String[] KNOWN_KEYS = {"name", "highway", "maxspeed"};
+    private static final byte[][] KNOWN_KEY_BYTES = new byte[KNOWN_KEYS.length][];
+    /** Powers of ten that are exact doubles. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        for (int i = 0; i < KNOWN_KEYS.length; i++) {
+            KNOWN_KEY_BYTES[i] = KNOWN_KEYS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final InputStream in;
+    private final GraphBuildingHandler handler;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    /** The unread bytes are buf[pos, limit). */
+    private int pos;
+    private int limit;
+    /** Bytes dropped from the front of buf so far, for error messages. */
+    private long consumed;
+    private boolean eof;
+
+    /* Where the attributes of the current element start and end in buf, or -1 if absent. */
+    private int idFrom, idTo, lonFrom, lonTo, latFrom, latTo, refFrom, refTo;
+    private int kFrom, kTo, vFrom, vTo;
+
+    /**
+     * @param in The XML to read; it is not closed.
+     * @param handler The handler to report the elements to.
+     */
+    OsmTokenizer(InputStream in, GraphBuildingHandler handler) {
+        this.in = in;
+        this.handler = handler;
+    }
+
+    /**
+     * Reads the whole input, reporting each element to the handler in file order.
+     * @throws IOException If reading fails or an element the handler needs is malformed.
+     */
+    void parse() throws IOException {
+        while (true) {
+            int lt = indexOf((byte) '<', pos);
+            if (lt < 0) {
+                return;
+            }
+            pos = lt;
+            if (!ensure(2)) {
+                throw error("unexpected end of file");
+            }
+            byte c = buf[pos + 1];
+            if (c == '!' && startsWith("<!--")) {
+                pos = skipPast("-->", pos + 4);
+            } else if (c == '?') {
+                pos = skipPast("?>", pos + 2);
+            } else {
+                int end = elementEnd();
+                element(pos, end);
+                pos = end + 1;
+            }
+        }
+    }
+
+    /** Reports the element or end tag in buf[from, to], where buf[to] is its closing '>'. */
+    private void element(int from, int to) throws IOException {
+        int p = from + 1;
+        boolean closing = buf[p] == '/';
+        if (closing) {
+            p++;
+        }
+        int nameFrom = p;
+        while (p < to && !isSpace(buf[p]) && buf[p] != '/') {
+            p++;
+        }
+        int nameTo = p;
+        boolean empty = buf[to - 1] == '/';
+        if (closing) {
+            if (is(nameFrom, nameTo, "way")) {
+                handler.endWay();
+            }
+            return;
+        }
+        if (is(nameFrom, nameTo, "node")) {
+            attributes(p, empty ? to - 1 : to);
+            handler.startNode(parseLong(idFrom, idTo, "node id"),
+                    parseDouble(lonFrom, lonTo, "node lon"),
+                    parseDouble(latFrom, latTo, "node lat"));
+        } else if (is(nameFrom, nameTo, "way")) {
+            attributes(p, empty ? to - 1 : to);
+            handler.startWay(parseLong(idFrom, idTo, "way id"));
+            if (empty) {
+                handler.endWay();
+            }
+        } else if (is(nameFrom, nameTo, "nd")) {
+            attributes(p, empty ? to - 1 : to);
+            handler.wayNode(parseLong(refFrom, refTo, "nd ref"));
+        } else if (is(nameFrom, nameTo, "tag")) {
+            attributes(p, empty ? to - 1 : to);
+            if (kFrom < 0 || vFrom < 0) {
+                throw error("tag without k or v");
+            }
+            handler.tag(key(kFrom, kTo), string(vFrom, vTo));
+        }
+    }
+
+    /** Records where the attributes this tokenizer knows lie within buf[from, to). */
+    private void attributes(int from, int to) throws IOException {
+        idFrom = lonFrom = latFrom = refFrom = kFrom = vFrom = -1;
+        int p = from;
+        while (true) {
+            while (p < to && isSpace(buf[p])) {
+                p++;
+            }
+            if (p >= to) {
+                return;
+            }
+            int nameFrom = p;
+            while (p < to && buf[p] != '=' && !isSpace(buf[p])) {
+                p++;
+            }
+            int nameTo = p;
+            while (p < to && isSpace(buf[p])) {
+                p++;
+            }
+            if (p >= to || buf[p] != '=') {
+                throw error("attribute without a value");
+            }
+            p++;
+            while (p < to && isSpace(buf[p])) {
+                p++;
+            }
+            if (p >= to || (buf[p] != '"' && buf[p] != '\'')) {
+                throw error("unquoted attribute value");
+            }
+            byte quote = buf[p++];
+            int valueFrom = p;
+            while (p < to && buf[p] != quote) {
+                p++;
+            }
+            if (p >= to) {
+                throw error("unterminated attribute value");
+            }
+            int valueTo = p++;
+            switch (nameTo - nameFrom) {
+                case 1:
+                    if (buf[nameFrom] == 'k') {
+                        kFrom = valueFrom;
+                        kTo = valueTo;
+                    } else if (buf[nameFrom] == 'v') {
+                        vFrom = valueFrom;
+                        vTo = valueTo;
+                    }
+                    break;
+                case 2:
+                    if (is(nameFrom, nameTo, "id")) {
+                        idFrom = valueFrom;
+                        idTo = valueTo;
+                    }
+                    break;
+                case 3:
+                    if (is(nameFrom, nameTo, "lon")) {
+                        lonFrom = valueFrom;
+                        lonTo = valueTo;
+                    } else if (is(nameFrom, nameTo, "lat")) {
+                        latFrom = valueFrom;
+                        latTo = valueTo;
+                    } else if (is(nameFrom, nameTo, "ref")) {
+                        refFrom = valueFrom;
+                        refTo = valueTo;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** Parses the decimal integer in buf[from, to). */
+    private long parseLong(int from, int to, String what) throws IOException {
+        if (from < 0) {
+            throw error("missing " + what);
+        }
+        boolean negative = from < to && buf[from] == '-';
+        int p = negative ? from + 1 : from;
+        if (p == to || to - p > 18) {
+            return Long.parseLong(ascii(from, to, what));
+        }
+        long x = 0;
+        for (; p < to; p++) {
+            int d = buf[p] - '0';
+            if (d < 0 || d > 9) {
+                return Long.parseLong(ascii(from, to, what));
+            }
+            x = x * 10 + d;
+        }
+        return negative ? -x : x;
+    }
+
+    /**
+     * Parses the decimal number in buf[from, to). Plain decimals with at most 15 significant
+     * digits, which covers OSM's 7 decimal places, are computed as an exact integer over an
+     * exact power of ten; that single division rounds correctly, so the result is the same
+     * double Double.parseDouble returns. Anything else is left to Double.parseDouble.
+     */
+    private double parseDouble(int from, int to, String what) throws IOException {
+        if (from < 0) {
+            throw error("missing " + what);
+        }
+        boolean negative = from < to && buf[from] == '-';
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        boolean sawDigit = false;
+        for (int p = negative ? from + 1 : from; p < to; p++) {
+            byte b = buf[p];
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+                continue;
+            }
+            int d = b - '0';
+            if (d < 0 || d > 9 || digits == 15) {
+                return parseDoubleSlowly(from, to, what);
+            }
+            sawDigit = true;
+            mantissa = mantissa * 10 + d;
+            if (mantissa > 0) {
+                digits++;
+            }
+            if (decimals >= 0) {
+                decimals++;
+            }
+        }
+        if (!sawDigit || decimals >= POWERS_OF_TEN.length) {
+            return parseDoubleSlowly(from, to, what);
+        }
+        double x = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return negative ? -x : x;
+    }
+
+    private double parseDoubleSlowly(int from, int to, String what) throws IOException {
+        return Double.parseDouble(ascii(from, to, what));
+    }
+
+    private String ascii(int from, int to, String what) throws IOException {
+        String s = new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+        if (s.isEmpty()) {
+            throw error("empty " + what);
+        }
+        return s;
+    }
+
+    /** Returns the tag key in buf[from, to), sharing the Strings of the known keys. */
+    private String key(int from, int to) {
+        for (int i = 0; i < KNOWN_KEY_BYTES.length; i++) {
+            byte[] k = KNOWN_KEY_BYTES[i];
+            if (k.length == to - from && equals(from, k)) {
+                return KNOWN_KEYS[i];
+            }
+        }
+        return string(from, to);
+    }
+
+    /** Decodes the attribute value in buf[from, to) as an XML parser would. */
+    private String string(int from, int to) {
+        for (int p = from; p < to; p++) {
+            byte b = buf[p];
+            if (b == '&' || b == '\t' || b == '\n' || b == '\r') {
+                return normalize(from, to);
+            }
+        }
+        return new String(buf, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /** The slow path of string: resolves references and replaces line breaks and tabs. */
+    private String normalize(int from, int to) {
+        String raw = new String(buf, from, to - from, StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '\r') {
+                /* A CR LF pair is one line break. */
+                if (i + 1 < raw.length() && raw.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                sb.append(' ');
+            } else if (c == '\t' || c == '\n') {
+                sb.append(' ');
+            } else if (c == '&') {
+                int semi = raw.indexOf(';', i);
+                String ref = semi < 0 ? null : raw.substring(i + 1, semi);
+                int cp = ref == null ? -1 : reference(ref);
+                if (cp < 0) {
+                    /* Not a reference this tokenizer knows; keep it as written. */
+                    sb.append(c);
+                    continue;
+                }
+                sb.appendCodePoint(cp);
+                i = semi;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Returns the code point a reference (without & and ;) stands for, or -1 if unknown. */
+    private static int reference(String ref) {
+        switch (ref) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            default:
+                break;
+        }
+        int cp = -1;
+        try {
+            if (ref.startsWith("#x")) {
+                cp = Integer.parseInt(ref.substring(2), 16);
+            } else if (ref.startsWith("#")) {
+                cp = Integer.parseInt(ref.substring(1));
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        return Character.isValidCodePoint(cp) ? cp : -1;
+    }
+
+    /**
+     * Makes sure the element starting at pos is entirely in buf and returns the index of
+     * its closing '>'. A '>' inside a quoted attribute value does not end it.
+     */
+    private int elementEnd() throws IOException {
+        int p = pos + 1;
+        byte quote = 0;
+        while (true) {
+            for (; p < limit; p++) {
+                byte b = buf[p];
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    return p;
+                }
+            }
+            int scanned = p - pos;
+            if (!ensure(scanned + 1)) {
+                throw error("unterminated element");
+            }
+            p = pos + scanned;
+        }
+    }
+
+    /** Returns the index just past the first occurrence of end at or after from. */
+    private int skipPast(String end, int from) throws IOException {
+        byte[] e = end.getBytes(StandardCharsets.US_ASCII);
+        int p = from;
+        while (true) {
+            for (; p + e.length <= limit; p++) {
+                if (equals(p, e)) {
+                    return p + e.length;
+                }
+            }
+            int scanned = p - pos;
+            if (!ensure(scanned + e.length)) {
+                throw error("unterminated " + end);
+            }
+            p = pos + scanned;
+        }
+    }
+
+    /** Returns the index of the next b at or after from, reading more input as needed. */
+    private int indexOf(byte b, int from) throws IOException {
+        int p = from;
+        while (true) {
+            for (; p < limit; p++) {
+                if (buf[p] == b) {
+                    return p;
+                }
+            }
+            /* Nothing before limit is needed any more. */
+            pos = limit;
+            if (!ensure(1)) {
+                return -1;
+            }
+            p = pos;
+        }
+    }
+
+    /**
+     * Makes sure at least n bytes starting at pos are in buf, moving them to the front and
+     * growing buf if needed. Returns false if the input ends first.
+     */
+    private boolean ensure(int n) throws IOException {
+        while (limit - pos < n) {
+            if (eof) {
+                return false;
+            }
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                consumed += pos;
+                limit -= pos;
+                pos = 0;
+            }
+            if (limit == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            int r = in.read(buf, limit, buf.length - limit);
+            if (r < 0) {
+                eof = true;
+            } else {
+                limit += r;
+            }
+        }
+        return true;
+    }
+
+    /** Whether the unread input starts with the ASCII string s. */
+    private boolean startsWith(String s) throws IOException {
+        return ensure(s.length()) && is(pos, pos + s.length(), s);
+    }
+
+    /** Whether buf[from, to) holds exactly the ASCII string s. */
+    private boolean is(int from, int to, String s) {
+        if (to - from != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[from + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equals(int p, byte[] s) {
+        for (int i = 0; i < s.length; i++) {
+            if (buf[p + i] != s[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " near byte " + (consumed + pos));
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Reads an OSM file into a graph using every core. The file is cut into parts at the
+ * starts of top-level <node>, <way> and <relation> elements, and the parts are tokenized
+ * at the same time on the fork-join common pool. Each part keeps the nodes, ways, names
+ * and paths it finds in a list of its own. The parts are then added to the graph one
+ * after another in file order, so the graph is the same as if one GraphBuildingHandler
+ * had read the whole file, whatever the number of parts and however the threads ran.
+ * Cutting only at '<node', '<way' and '<relation' is safe because '<' can only appear
+ * unescaped in markup, comments and CDATA, and OSM files have neither of the last two
+ * between elements. Compressed files cannot be cut without inflating them first, so they
+ * are read by a single thread.
+ */
+public class ParallelOsmReader {
+    /** The smallest part worth a task of its own, in bytes. */
+    static final long MIN_PART_BYTES = 1 << 22;
+    /** Parts per core, so a part that parses slowly does not leave the other cores idle. */
+    private static final int PARTS_PER_CORE = 4;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[][] TOP_LEVEL = {
+        "<node".getBytes(StandardCharsets.US_ASCII),
+        "<way".getBytes(StandardCharsets.US_ASCII),
+        "<relation".getBytes(StandardCharsets.US_ASCII)
+    };
+    /** Bytes past a '<' needed to recognize a top-level element there. */
+    private static final int LOOKAHEAD = 10;
+
+    private ParallelOsmReader() {
+    }
+
+    /**
+     * Reads a file, in as many parts as its size and the number of cores warrant.
+     * @param file The OSM file, optionally compressed; see OsmInput.
+     * @param handler The handler to build from the file, usually one adding to a GraphDB.
+     * @throws IOException If the file cannot be read or is malformed.
+     */
+    static void read(File file, GraphBuildingHandler handler) throws IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long parts = Math.min((long) cores * PARTS_PER_CORE, file.length() / MIN_PART_BYTES);
+        read(file, handler, cores > 1 ? (int) parts : 1);
+    }
+
+    /**
+     * Reads a file in about the given number of parts.
+     * @param file The OSM file, optionally compressed; see OsmInput.
+     * @param handler The handler to build from the file, usually one adding to a GraphDB.
+     * @param parts How many parts to cut the file into; fewer are used if it has fewer
+     *              elements, and a compressed file is always read as one part.
+     * @throws IOException If the file cannot be read or is malformed.
+     */
+    static void read(File file, GraphBuildingHandler handler, int parts) throws IOException {
+        if (parts < 2 || OsmInput.isCompressed(file)) {
+            try (InputStream in = OsmInput.open(file)) {
+                new OsmTokenizer(in, handler).parse();
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] bounds = split(channel, parts);
+            Part[] results = new Part[bounds.length - 1];
+            IntStream.range(0, results.length).parallel().forEach(i -> {
+                Part part = new Part(handler);
+                try {
+                    new OsmTokenizer(new RegionInputStream(channel, bounds[i], bounds[i + 1]),
+                            part).parse();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                results[i] = part;
+            });
+            for (Part part : results) {
+                merge(part, handler);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Returns where the parts begin and end: 0, then the first top-level element at or after
+     * each k / parts of the file, then the file's size, with no offset repeated.
+     */
+    static long[] split(FileChannel channel, int parts) throws IOException {
+        long size = channel.size();
+        long[] bounds = new long[parts + 1];
+        int n = 1;
+        for (int k = 1; k < parts; k++) {
+            long b = nextElement(channel, Math.max(size / parts * k, bounds[n - 1] + 1));
+            if (b >= size) {
+                break;
+            }
+            bounds[n++] = b;
+        }
+        bounds[n++] = size;
+        return Arrays.copyOf(bounds, n);
+    }
+
+    /** Returns the offset of the first top-level element at or after from, or the size. */
+    private static long nextElement(FileChannel channel, long from) throws IOException {
+        long size = channel.size();
+        ByteBuffer window = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] b = window.array();
+        for (long p = from; p < size; p += BUFFER_SIZE - LOOKAHEAD) {
+            window.clear();
+            while (window.hasRemaining() && channel.read(window, p + window.position()) > 0) {
+                continue;
+            }
+            int n = window.position();
+            boolean last = p + n >= size;
+            int scan = last ? n : n - LOOKAHEAD;
+            for (int i = 0; i < scan; i++) {
+                if (b[i] == '<' && isTopLevel(b, i, n)) {
+                    return p + i;
+                }
+            }
+            if (last) {
+                break;
+            }
+        }
+        return size;
+    }
+
+    /** Whether b[i, n) starts with the start tag of a node, way or relation. */
+    private static boolean isTopLevel(byte[] b, int i, int n) {
+        for (byte[] name : TOP_LEVEL) {
+            int end = i + name.length;
+            if (end >= n) {
+                continue;
+            }
+            boolean match = true;
+            for (int j = 1; j < name.length && match; j++) {
+                match = b[i + j] == name[j];
+            }
+            byte next = b[end];
+            if (match && (next == ' ' || next == '\t' || next == '\n' || next == '\r'
+                    || next == '>' || next == '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands what a part found to the handler it was read for. Parts must be merged in file
+     * order, which lets the handler keep track of the node or way the parts merged so far
+     * ended in.
+     * @param part The part to merge.
+     * @param handler The handler the part was created for.
+     */
+    static void merge(Part part, GraphBuildingHandler handler) {
+        for (Consumer<GraphBuildingHandler> callback : part.leading) {
+            callback.accept(handler);
+        }
+        for (GraphDB.Node n : part.nodes) {
+            handler.addNode(n);
+        }
+        for (GraphDB.Way w : part.ways) {
+            handler.addWay(w);
+        }
+        for (int i = 0; i < part.names.size(); i++) {
+            handler.addName(part.names.get(i), part.nameIds.get(i));
+        }
+        for (GraphDB.Way w : part.paths) {
+            handler.buildPath(w);
+        }
+        if (part.started) {
+            handler.resume(part);
+        }
+    }
+
+    /**
+     * Collects what one part of the file builds, in file order, instead of adding it to a
+     * graph. Callbacks that come before the part's first node or way belong to an element
+     * of an earlier part, so they are kept to be replayed once that part has been merged.
+     * PbfReader decodes each block of a PBF file into a Part in the same way.
+     */
+    static class Part extends GraphBuildingHandler {
+        final List<GraphDB.Node> nodes = new ArrayList<>();
+        final List<GraphDB.Way> ways = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final List<Long> nameIds = new ArrayList<>();
+        final List<GraphDB.Way> paths = new ArrayList<>();
+        final List<Consumer<GraphBuildingHandler>> leading = new ArrayList<>();
+        /** Whether a node or way has started in this part. */
+        boolean started;
+        /** The handler this part will be merged into, which decides which nodes to keep. */
+        private final GraphBuildingHandler target;
+
+        Part(GraphBuildingHandler target) {
+            super(null);
+            this.target = target;
+        }
+
+        @Override
+        void startNode(long id, double lon, double lat) {
+            started = true;
+            super.startNode(id, lon, lat);
+        }
+
+        @Override
+        void startWay(long id) {
+            started = true;
+            super.startWay(id);
+        }
+
+        @Override
+        void wayNode(long ref) {
+            if (started) {
+                super.wayNode(ref);
+            } else {
+                leading.add(h -> h.wayNode(ref));
+            }
+        }
+
+        @Override
+        void tag(String k, String v) {
+            if (started) {
+                super.tag(k, v);
+            } else {
+                leading.add(h -> h.tag(k, v));
+            }
+        }
+
+        @Override
+        void endWay() {
+            if (started) {
+                super.endWay();
+            } else {
+                leading.add(GraphBuildingHandler::endWay);
+            }
+        }
+
+        @Override
+        boolean keepsNode(long id) {
+            return target.keepsNode(id);
+        }
+
+        @Override
+        void addNode(GraphDB.Node n) {
+            nodes.add(n);
+        }
+
+        @Override
+        void addWay(GraphDB.Way w) {
+            ways.add(w);
+        }
+
+        @Override
+        void addName(String name, long id) {
+            names.add(name);
+            nameIds.add(id);
+        }
+
+        @Override
+        void buildPath(GraphDB.Way w) {
+            paths.add(w);
+        }
+    }
+
+    /** Reads the bytes between two offsets of a file, independently of other readers. */
+    private static class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RegionInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)),
+                    position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,568 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads OSM PBF files (https://wiki.openstreetmap.org/wiki/PBF_Format) into a graph,
+ * without a protobuf library. A PBF file is a sequence of blobs, each a zlib-compressed
+ * block of nodes, ways and relations with its own string table, so blocks can be
+ * inflated and decoded independently: this reader decodes them on the fork-join common
+ * pool, a few blocks per core ahead of the one being added to the graph. Each block is
+ * decoded into a ParallelOsmReader.Part by the same GraphBuildingHandler callbacks the XML
+ * readers use, and the parts are merged in file order, so the graph is the same as from
+ * the XML of the same data. That includes tags of relations, which, as in the XML, go to
+ * the node or way before them.
+ * Coordinates are decoded to the same doubles as their usual 7-decimal XML form.
+ */
+public class PbfReader {
+    /** The largest blob header and blob the format allows, in bytes. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    /** Blocks decoded ahead of the one being merged, per core. */
+    private static final int BLOCKS_AHEAD_PER_CORE = 2;
+    private static final Set<String> SUPPORTED_FEATURES = new HashSet<>(Arrays.asList(
+            "OsmSchema-V0.6", "DenseNodes", "HistoricalInformation"));
+
+    private PbfReader() {
+    }
+
+    /** Returns whether the file is PBF, judging by its name. */
+    static boolean isPbf(File file) {
+        return file.getName().endsWith(".pbf");
+    }
+
+    /**
+     * Reads a PBF file.
+     * @param file The .osm.pbf file.
+     * @param handler The handler to build from the file, usually one adding to a GraphDB.
+     * @throws IOException If the file cannot be read, is malformed, or needs a feature or
+     *                     compression this reader does not support.
+     */
+    static void read(File file, GraphBuildingHandler handler) throws IOException {
+        int ahead = BLOCKS_AHEAD_PER_CORE * Runtime.getRuntime().availableProcessors();
+        Deque<CompletableFuture<ParallelOsmReader.Part>> decoding = new ArrayDeque<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            Blob blob;
+            while ((blob = nextBlob(in)) != null) {
+                byte[] data = blob.data;
+                if (blob.type.equals("OSMHeader")) {
+                    checkHeader(inflate(data));
+                } else if (blob.type.equals("OSMData")) {
+                    decoding.add(CompletableFuture.supplyAsync(() -> decode(data, handler)));
+                    if (decoding.size() > ahead) {
+                        ParallelOsmReader.merge(join(decoding.remove()), handler);
+                    }
+                }
+            }
+            while (!decoding.isEmpty()) {
+                ParallelOsmReader.merge(join(decoding.remove()), handler);
+            }
+        } finally {
+            for (CompletableFuture<ParallelOsmReader.Part> f : decoding) {
+                f.cancel(false);
+            }
+        }
+    }
+
+    private static ParallelOsmReader.Part join(CompletableFuture<ParallelOsmReader.Part> f)
+            throws IOException {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /** A blob as stored in the file, and the type its header gives it. */
+    private static class Blob {
+        final String type;
+        final byte[] data;
+
+        Blob(String type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads the next blob and its header.
+     * @return The blob, or null at the end of the file.
+     */
+    private static Blob nextBlob(DataInputStream in) throws IOException {
+        int headerSize;
+        try {
+            headerSize = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+            throw new IOException("bad blob header size " + headerSize);
+        }
+        byte[] header = new byte[headerSize];
+        in.readFully(header);
+        Message m = new Message(header, 0, headerSize);
+        String type = null;
+        long dataSize = -1;
+        while (m.hasMore()) {
+            int tag = m.tag();
+            if (tag == (1 << 3 | 2)) {
+                type = m.string();
+            } else if (tag == (3 << 3)) {
+                dataSize = m.varint();
+            } else {
+                m.skip(tag);
+            }
+        }
+        if (type == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+            throw new IOException("bad blob header");
+        }
+        byte[] data = new byte[(int) dataSize];
+        in.readFully(data);
+        return new Blob(type, data);
+    }
+
+    /** Returns the uncompressed contents of a Blob message. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        Message m = new Message(blob, 0, blob.length);
+        byte[] raw = null;
+        int rawSize = -1;
+        Message zlib = null;
+        while (m.hasMore()) {
+            int tag = m.tag();
+            switch (tag >>> 3) {
+                case 1:
+                    Message r = m.message();
+                    raw = Arrays.copyOfRange(blob, r.pos, r.limit);
+                    break;
+                case 2:
+                    rawSize = (int) m.varint();
+                    break;
+                case 3:
+                    zlib = m.message();
+                    break;
+                case 4:
+                case 5:
+                case 6:
+                case 7:
+                    throw new IOException("unsupported blob compression " + (tag >>> 3));
+                default:
+                    m.skip(tag);
+                    break;
+            }
+        }
+        if (raw != null) {
+            return raw;
+        }
+        if (zlib == null || rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("blob without data");
+        }
+        byte[] data = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, zlib.pos, zlib.limit - zlib.pos);
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int r = inflater.inflate(data, n, rawSize - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != rawSize) {
+                throw new IOException("blob inflated to " + n + " bytes, not " + rawSize);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    /** Rejects files that need features this reader does not have. */
+    private static void checkHeader(byte[] data) throws IOException {
+        Message m = new Message(data, 0, data.length);
+        while (m.hasMore()) {
+            int tag = m.tag();
+            if (tag == (4 << 3 | 2)) {
+                String feature = m.string();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("unsupported PBF feature " + feature);
+                }
+            } else {
+                m.skip(tag);
+            }
+        }
+    }
+
+    /** Inflates and decodes one OSMData blob into a part for handler, on a pool thread. */
+    private static ParallelOsmReader.Part decode(byte[] blob, GraphBuildingHandler handler) {
+        try {
+            ParallelOsmReader.Part part = new ParallelOsmReader.Part(handler);
+            new Block(inflate(blob)).decode(part);
+            return part;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** A PrimitiveBlock: a string table and groups of nodes, ways or relations. */
+    private static class Block {
+        private final byte[] data;
+        private String[] strings = new String[0];
+        private int granularity = 100;
+        private long latOffset;
+        private long lonOffset;
+
+        Block(byte[] data) {
+            this.data = data;
+        }
+
+        /** Reports the block's elements to handler in the order they are stored. */
+        void decode(GraphBuildingHandler handler) throws IOException {
+            /* The groups come before the fields they depend on, so find those first. */
+            Message m = new Message(data, 0, data.length);
+            while (m.hasMore()) {
+                int tag = m.tag();
+                switch (tag >>> 3) {
+                    case 1:
+                        strings = strings(m.message());
+                        break;
+                    case 17:
+                        granularity = (int) m.varint();
+                        break;
+                    case 19:
+                        latOffset = m.varint();
+                        break;
+                    case 20:
+                        lonOffset = m.varint();
+                        break;
+                    default:
+                        m.skip(tag);
+                        break;
+                }
+            }
+            m = new Message(data, 0, data.length);
+            while (m.hasMore()) {
+                int tag = m.tag();
+                if (tag == (2 << 3 | 2)) {
+                    group(m.message(), handler);
+                } else {
+                    m.skip(tag);
+                }
+            }
+        }
+
+        private static String[] strings(Message m) throws IOException {
+            String[] res = new String[16];
+            int n = 0;
+            while (m.hasMore()) {
+                int tag = m.tag();
+                if (tag == (1 << 3 | 2)) {
+                    if (n == res.length) {
+                        res = Arrays.copyOf(res, n * 2);
+                    }
+                    res[n++] = m.string();
+                } else {
+                    m.skip(tag);
+                }
+            }
+            return Arrays.copyOf(res, n);
+        }
+
+        private void group(Message m, GraphBuildingHandler handler) throws IOException {
+            while (m.hasMore()) {
+                int tag = m.tag();
+                switch (tag >>> 3) {
+                    case 1:
+                        node(m.message(), handler);
+                        break;
+                    case 2:
+                        denseNodes(m.message(), handler);
+                        break;
+                    case 3:
+                        way(m.message(), handler);
+                        break;
+                    case 4:
+                        relation(m.message(), handler);
+                        break;
+                    default:
+                        m.skip(tag);
+                        break;
+                }
+            }
+        }
+
+        private void node(Message m, GraphBuildingHandler handler) throws IOException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            Message keys = null;
+            Message vals = null;
+            while (m.hasMore()) {
+                int tag = m.tag();
+                switch (tag >>> 3) {
+                    case 1:
+                        id = m.sint();
+                        break;
+                    case 2:
+                        keys = m.message();
+                        break;
+                    case 3:
+                        vals = m.message();
+                        break;
+                    case 8:
+                        lat = m.sint();
+                        break;
+                    case 9:
+                        lon = m.sint();
+                        break;
+                    default:
+                        m.skip(tag);
+                        break;
+                }
+            }
+            handler.startNode(id, coordinate(lonOffset, lon), coordinate(latOffset, lat));
+            tags(keys, vals, handler);
+        }
+
+        private void denseNodes(Message m, GraphBuildingHandler handler) throws IOException {
+            Message ids = null;
+            Message lats = null;
+            Message lons = null;
+            Message keysVals = null;
+            while (m.hasMore()) {
+                int tag = m.tag();
+                switch (tag >>> 3) {
+                    case 1:
+                        ids = m.message();
+                        break;
+                    case 8:
+                        lats = m.message();
+                        break;
+                    case 9:
+                        lons = m.message();
+                        break;
+                    case 10:
+                        keysVals = m.message();
+                        break;
+                    default:
+                        m.skip(tag);
+                        break;
+                }
+            }
+            if (ids == null) {
+                return;
+            }
+            if (lats == null || lons == null) {
+                throw new IOException("dense nodes without coordinates");
+            }
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (ids.hasMore()) {
+                id += ids.sint();
+                lat += lats.sint();
+                lon += lons.sint();
+                handler.startNode(id, coordinate(lonOffset, lon), coordinate(latOffset, lat));
+                /* Each node's keys and values alternate, ended by a 0. */
+                while (keysVals != null && keysVals.hasMore()) {
+                    int k = (int) keysVals.varint();
+                    if (k == 0) {
+                        break;
+                    }
+                    handler.tag(string(k), string((int) keysVals.varint()));
+                }
+            }
+        }
+
+        private void way(Message m, GraphBuildingHandler handler) throws IOException {
+            long id = 0;
+            Message keys = null;
+            Message vals = null;
+            Message refs = null;
+            while (m.hasMore()) {
+                int tag = m.tag();
+                switch (tag >>> 3) {
+                    case 1:
+                        id = m.varint();
+                        break;
+                    case 2:
+                        keys = m.message();
+                        break;
+                    case 3:
+                        vals = m.message();
+                        break;
+                    case 8:
+                        refs = m.message();
+                        break;
+                    default:
+                        m.skip(tag);
+                        break;
+                }
+            }
+            handler.startWay(id);
+            long ref = 0;
+            while (refs != null && refs.hasMore()) {
+                ref += refs.sint();
+                handler.wayNode(ref);
+            }
+            tags(keys, vals, handler);
+            handler.endWay();
+        }
+
+        /** Relations only contribute their tags, which the handler treats as the XML's. */
+        private void relation(Message m, GraphBuildingHandler handler) throws IOException {
+            Message keys = null;
+            Message vals = null;
+            while (m.hasMore()) {
+                int tag = m.tag();
+                switch (tag >>> 3) {
+                    case 2:
+                        keys = m.message();
+                        break;
+                    case 3:
+                        vals = m.message();
+                        break;
+                    default:
+                        m.skip(tag);
+                        break;
+                }
+            }
+            tags(keys, vals, handler);
+        }
+
+        private void tags(Message keys, Message vals, GraphBuildingHandler handler)
+                throws IOException {
+            if (keys == null) {
+                return;
+            }
+            if (vals == null) {
+                throw new IOException("tag keys without values");
+            }
+            while (keys.hasMore()) {
+                handler.tag(string((int) keys.varint()), string((int) vals.varint()));
+            }
+        }
+
+        private String string(int i) throws IOException {
+            if (i < 0 || i >= strings.length) {
+                throw new IOException("bad string table index " + i);
+            }
+            return strings[i];
+        }
+
+        /**
+         * Returns the coordinate, in degrees, of a raw value. At the usual granularity of
+         * 100 nanodegrees this is a whole number of 10^-7 degrees divided by 10^7, which
+         * rounds to the same double as parsing its decimal form does.
+         */
+        private double coordinate(long offset, long value) {
+            long nanodegrees = offset + granularity * value;
+            if (nanodegrees % 100 == 0) {
+                return nanodegrees / 100 / 1e7;
+            }
+            return nanodegrees / 1e9;
+        }
+    }
+
+    /** A protobuf message, or a packed repeated field, being read from a byte array. */
+    private static class Message {
+        private final byte[] data;
+        private int pos;
+        private final int limit;
+
+        Message(byte[] data, int pos, int limit) {
+            this.data = data;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        boolean hasMore() {
+            return pos < limit;
+        }
+
+        /** Reads a field's key: its number shifted left by 3, or'ed with its wire type. */
+        int tag() throws IOException {
+            return (int) varint();
+        }
+
+        long varint() throws IOException {
+            long x = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new IOException("truncated varint");
+                }
+                byte b = data[pos++];
+                x |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return x;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        /** Reads a zigzag-encoded sint32 or sint64. */
+        long sint() throws IOException {
+            long x = varint();
+            return (x >>> 1) ^ -(x & 1);
+        }
+
+        /** Reads a length-delimited field as a message of its own, and skips past it. */
+        Message message() throws IOException {
+            long length = varint();
+            if (length < 0 || length > limit - pos) {
+                throw new IOException("truncated field");
+            }
+            Message m = new Message(data, pos, pos + (int) length);
+            pos += (int) length;
+            return m;
+        }
+
+        String string() throws IOException {
+            Message m = message();
+            return new String(data, m.pos, m.limit - m.pos, StandardCharsets.UTF_8);
+        }
+
+        /** Skips the value of a field whose key was just read. */
+        void skip(int tag) throws IOException {
+            switch (tag & 7) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    pos += 8;
+                    break;
+                case 2:
+                    message();
+                    break;
+                case 5:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IOException("unsupported wire type " + (tag & 7));
+            }
+            if (pos > limit) {
+                throw new IOException("truncated field");
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream that reads its source on a separate thread, so that producing the bytes
+ * (such as inflating a compressed file) overlaps with consuming them (such as parsing).
+ * The two threads pass a fixed set of buffers back and forth through two bounded queues:
+ * the reader thread fills free buffers and queues them as full, and this stream hands
+ * their bytes out and returns them as free. The reader thread therefore runs at most
+ * DEPTH buffers ahead, and no memory is allocated once the pipeline is running.
+ * An exception on the reader thread is rethrown by the read that reaches it; closing this
+ * stream stops the reader thread and closes the source.
+ */
+public class PipelinedInputStream extends InputStream {
+    /** Size of one buffer, in bytes. */
+    static final int CHUNK = 1 << 16;
+    /** Number of buffers shared by the two threads. */
+    static final int DEPTH = 8;
+
+    /** A buffer and how many of its bytes are valid; a length of -1 marks the end. */
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> full;
+    private final Thread reader;
+    private volatile boolean closed;
+    /** Set by the reader thread before it queues the end marker. */
+    private IOException failure;
+    private Chunk current;
+    private int position;
+    private boolean finished;
+
+    /**
+     * Starts reading source on a new daemon thread.
+     * @param source The stream to read; it is closed when reading ends or this stream is.
+     * @param name The name of the reader thread.
+     */
+    PipelinedInputStream(InputStream source, String name) {
+        free = new ArrayBlockingQueue<>(DEPTH);
+        full = new ArrayBlockingQueue<>(DEPTH);
+        for (int i = 0; i < DEPTH; i++) {
+            free.add(new Chunk(CHUNK));
+        }
+        reader = new Thread(() -> pump(source), name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** Body of the reader thread: fills buffers until the source ends, fails or is closed. */
+    private void pump(InputStream source) {
+        try (InputStream in = source) {
+            while (!closed) {
+                Chunk c = free.take();
+                c.length = fill(in, c.data);
+                full.put(c);
+                if (c.length < 0) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            /* Closed while waiting for a free buffer or room in the queue. */
+            return;
+        } catch (IOException | RuntimeException e) {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        if (!closed) {
+            Chunk end = new Chunk(0);
+            end.length = -1;
+            try {
+                full.put(end);
+            } catch (InterruptedException e) {
+                /* Closed; nobody is waiting for the end marker. */
+            }
+        }
+    }
+
+    /** Reads until buf is full or in ends; returns the bytes read, or -1 at the end. */
+    private static int fill(InputStream in, byte[] buf) throws IOException {
+        int n = 0;
+        while (n < buf.length) {
+            int r = in.read(buf, n, buf.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    /** Makes current a buffer with unread bytes; returns false at the end of the stream. */
+    private boolean advance() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (current != null && position < current.length) {
+            return true;
+        }
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+        try {
+            current = full.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        position = 0;
+        if (current.length < 0) {
+            finished = true;
+            current = null;
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return advance() ? current.data[position++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!advance()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+    }
+}
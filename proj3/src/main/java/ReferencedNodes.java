@@ -0,0 +1,61 @@
+/**
+ * The first pass of reading an OSM file twice so that only the nodes the graph needs are
+ * ever created. Reading the file through this handler keeps no nodes or ways; it only
+ * notes the ids of the nodes on ways the graph is built from and of the nodes with names.
+ * The handler returned by keeping then reads the file again into a GraphDB, adding those
+ * nodes and dropping the rest, such as the corners of buildings, as soon as they are
+ * parsed. The graph is the same as from a single pass, which keeps every node until
+ * GraphDB.clean removes those without roads.
+ */
+public class ReferencedNodes extends GraphBuildingHandler {
+    private static final int EXPECTED_NODES = 1 << 16;
+    private final LongIntMap ids = new LongIntMap(EXPECTED_NODES);
+
+    ReferencedNodes() {
+        super(null);
+    }
+
+    /** Returns how many distinct nodes were referenced. */
+    int size() {
+        return ids.size();
+    }
+
+    /** Returns whether the node with the given id was referenced. */
+    boolean contains(long id) {
+        return ids.containsKey(id);
+    }
+
+    /**
+     * Returns a handler for the second pass, which builds g from the referenced nodes.
+     * @param g The graph to populate.
+     */
+    GraphBuildingHandler keeping(GraphDB g) {
+        return new GraphBuildingHandler(g) {
+            @Override
+            boolean keepsNode(long id) {
+                return ids.containsKey(id);
+            }
+        };
+    }
+
+    @Override
+    boolean keepsNode(long id) {
+        return false;
+    }
+
+    @Override
+    void addWay(GraphDB.Way w) {
+    }
+
+    @Override
+    void addName(String name, long id) {
+        ids.put(id, 0);
+    }
+
+    @Override
+    void buildPath(GraphDB.Way w) {
+        for (long id : w.edges) {
+            ids.put(id, 0);
+        }
+    }
+}
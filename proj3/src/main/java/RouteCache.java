@@ -0,0 +1,291 @@
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded cache of computed routes, keyed by the snapped (start, dest) vertex pair and the
+ * metric minimised, so the popular pairs that dominate traffic are answered without a
+ * search. Routes between two locations snapped onto road segments (Router.shortestRoute)
+ * are keyed by both segments and the exact position on each, so a route is only shared by
+ * requests that snap to the same points and would have computed the very same route.
+ * Each entry can also
+ * hold the directions text MapServer rendered for its route.
+ * Entries are evicted least recently used first once their estimated size exceeds the
+ * memory budget. The cache belongs to one GraphDB, which clears it whenever its graph is
+ * rebuilt. All methods are thread-safe.
+ */
+public class RouteCache {
+    /** Memory budget of a new cache, in bytes. */
+    static final long DEFAULT_BUDGET_BYTES = 32L << 20;
+    /** Rough size of an entry without its route: map node, key, entry and list wrapper. */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    /** Rough size of one route element: a boxed long and the reference to it. */
+    private static final int NODE_BYTES = 24;
+    /** Rough size of the two snaps of a segment-to-segment route and its extra fields. */
+    private static final int SNAPPED_BYTES = 160;
+
+    /** Keys are Longs for vertex pairs and SnapKeys for segment pairs. */
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long budgetBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create an empty cache.
+     * @param budgetBytes The largest estimated size the entries may take, in bytes.
+     */
+    RouteCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /** A cached route, and the directions text rendered for it if any. */
+    static class Entry {
+        /** The unmodifiable route, or null if dest cannot be reached from start. */
+        final List<Long> route;
+        /** The route between two snapped locations, for segment pairs; null otherwise. */
+        final Router.Route snapped;
+        private volatile String directions;
+
+        private Entry(List<Long> route, Router.Route snapped) {
+            this.route = route;
+            this.snapped = snapped;
+        }
+
+        private long sizeInBytes() {
+            String text = directions;
+            List<Long> nodes = snapped == null ? route : snapped.nodes;
+            return ENTRY_OVERHEAD_BYTES + (nodes == null ? 0 : (long) NODE_BYTES * nodes.size())
+                    + (snapped == null ? 0 : SNAPPED_BYTES)
+                    + (text == null ? 0 : 40 + text.length());
+        }
+    }
+
+    /** Key of a route between two snapped locations: both segments and both positions. */
+    private static final class SnapKey {
+        private final int startEdge;
+        private final long startFraction;
+        private final int destEdge;
+        private final long destFraction;
+        private final GraphDB.Metric metric;
+
+        private SnapKey(SegmentIndex.Snap start, SegmentIndex.Snap dest,
+                        GraphDB.Metric metric) {
+            this.startEdge = start.edge;
+            this.startFraction = Double.doubleToLongBits(start.fraction);
+            this.destEdge = dest.edge;
+            this.destFraction = Double.doubleToLongBits(dest.fraction);
+            this.metric = metric;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SnapKey)) {
+                return false;
+            }
+            SnapKey k = (SnapKey) o;
+            return startEdge == k.startEdge && startFraction == k.startFraction
+                    && destEdge == k.destEdge && destFraction == k.destFraction
+                    && metric == k.metric;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(startEdge, startFraction, destEdge, destFraction, metric);
+        }
+    }
+
+    /** Packs a pair and a metric into one key; vertex indices are below 2^31. */
+    private static long key(int start, int dest, GraphDB.Metric metric) {
+        return ((long) start * GraphDB.Metric.values().length + metric.ordinal()) << 32
+                | (dest & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the cached entry for a vertex pair, counting a hit or a miss.
+     * @param start The dense index of the snapped start vertex.
+     * @param dest The dense index of the snapped destination vertex.
+     * @param metric The metric the route minimises.
+     * @return The entry, or null if the pair is not cached.
+     */
+    synchronized Entry get(int start, int dest, GraphDB.Metric metric) {
+        return count(entries.get(key(start, dest, metric)));
+    }
+
+    /**
+     * Returns the cached entry for a pair of snapped locations, counting a hit or a miss.
+     * @param start The snapped start.
+     * @param dest The snapped destination.
+     * @param metric The metric the route minimises.
+     * @return The entry, whose snapped field holds the route, or null if the pair is not
+     * cached.
+     */
+    synchronized Entry get(SegmentIndex.Snap start, SegmentIndex.Snap dest,
+                           GraphDB.Metric metric) {
+        return count(entries.get(new SnapKey(start, dest, metric)));
+    }
+
+    private Entry count(Entry entry) {
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Caches the route for a vertex pair, evicting old entries if over budget.
+     * @param start The dense index of the snapped start vertex.
+     * @param dest The dense index of the snapped destination vertex.
+     * @param metric The metric the route minimises.
+     * @param route The route, or null if there is none.
+     * @return The new entry, whose route is an unmodifiable view of route.
+     */
+    synchronized Entry put(int start, int dest, GraphDB.Metric metric, List<Long> route) {
+        return insert(key(start, dest, metric), new Entry(route == null ? null
+                : Collections.unmodifiableList(route), null));
+    }
+
+    /**
+     * Caches the route between two snapped locations, evicting old entries if over budget.
+     * Only routes that do not depend on a search budget, FOUND and UNREACHABLE ones, should
+     * be cached.
+     * @param metric The metric the route minimises.
+     * @param route The route, whose snaps give the key.
+     * @return The new entry.
+     */
+    synchronized Entry put(GraphDB.Metric metric, Router.Route route) {
+        return insert(new SnapKey(route.start, route.dest, metric), new Entry(null, route));
+    }
+
+    private Entry insert(Object key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes -= old.sizeInBytes();
+        }
+        bytes += entry.sizeInBytes();
+        evictOverBudget();
+        return entry;
+    }
+
+    /**
+     * Returns the directions text stored with a route this cache returned, or null.
+     * @param g The graph the route is on.
+     * @param route A route, looked up by its first and last node.
+     */
+    String directions(GraphDB g, List<Long> route) {
+        Entry entry = entryOf(g, route);
+        return entry == null ? null : entry.directions;
+    }
+
+    /**
+     * Returns the directions text stored with a snapped route this cache returned, or null.
+     * @param route A route, looked up by its snaps.
+     */
+    String directions(Router.Route route) {
+        Entry entry = entryOf(route);
+        return entry == null ? null : entry.directions;
+    }
+
+    /**
+     * Stores the directions text rendered for a route this cache returned. Does nothing if
+     * the route has been evicted in the meantime.
+     * @param g The graph the route is on.
+     * @param route The route.
+     * @param text The directions text.
+     */
+    synchronized void putDirections(GraphDB g, List<Long> route, String text) {
+        attachDirections(entryOf(g, route), text);
+    }
+
+    /**
+     * Stores the directions text rendered for a snapped route this cache returned. Does
+     * nothing if the route has been evicted in the meantime.
+     * @param route The route.
+     * @param text The directions text.
+     */
+    synchronized void putDirections(Router.Route route, String text) {
+        attachDirections(entryOf(route), text);
+    }
+
+    private void attachDirections(Entry entry, String text) {
+        if (entry != null && entry.directions == null) {
+            bytes -= entry.sizeInBytes();
+            entry.directions = text;
+            bytes += entry.sizeInBytes();
+            evictOverBudget();
+        }
+    }
+
+    /** Returns the entry holding exactly this route instance, without counting a lookup. */
+    private synchronized Entry entryOf(GraphDB g, List<Long> route) {
+        if (route == null || route.isEmpty()) {
+            return null;
+        }
+        int start = g.indexOf(route.get(0));
+        int dest = g.indexOf(route.get(route.size() - 1));
+        for (GraphDB.Metric metric : GraphDB.Metric.values()) {
+            Entry entry = entries.get(key(start, dest, metric));
+            if (entry != null && entry.route == route) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the entry holding exactly this snapped route, without counting a lookup. */
+    private synchronized Entry entryOf(Router.Route route) {
+        if (route == null || route.start == null || route.dest == null) {
+            return null;
+        }
+        for (GraphDB.Metric metric : GraphDB.Metric.values()) {
+            Entry entry = entries.get(new SnapKey(route.start, route.dest, metric));
+            if (entry != null && entry.snapped == route) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void evictOverBudget() {
+        Iterator<Map.Entry<Object, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > budgetBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().sizeInBytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /** Changes the memory budget, evicting entries if the cache is now over it. */
+    synchronized void setBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        evictOverBudget();
+    }
+
+    /** Drops every entry; the hit and miss counts are kept. */
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized int size() { return entries.size(); }
+
+    /** Returns the estimated size of the entries, in bytes. */
+    synchronized long sizeInBytes() { return bytes; }
+
+    synchronized long hits() { return hits; }
+
+    synchronized long misses() { return misses; }
+
+    synchronized long evictions() { return evictions; }
+
+    /** Returns the fraction of lookups answered from the cache, or 0 before any lookup. */
+    synchronized double hitRatio() {
+        return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+    }
+}
@@ -20,64 +20,547 @@ public class Router {
      * @param stlat The latitude of the start location.
      * @param destlon The longitude of the destination location.
      * @param destlat The latitude of the destination location.
-     * @return A list of node id's in the order visited on the shortest path.
+     * @return A list of node id's in the order visited on the shortest path. Routes are
+     * cached per snapped start and destination node (see RouteCache), so the list may be
+     * shared and cannot be modified.
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        long start = g.closest(stlon, stlat);
-        long dest = g.closest(destlon, destlat);
-
-        PriorityQueue<State> pq = new PriorityQueue<State>((a, b) ->{
-            long id_a = a.expand.getLast();
-            long id_b = b.expand.getLast();
-            double fa = a.g + g.distance(id_a, dest);
-            double fb = b.g + g.distance(id_b, dest);
-            return Double.compare(fa, fb);
-        });
-
-        LinkedList<Long> temp = new LinkedList<>();
-        temp.add(start);
-        pq.offer(new State(temp, 0));
-        List<Long> res = null;
-        HashSet<Long> expanded = new HashSet<>();
-
-        while ( !pq.isEmpty() ){
-            State current = pq.poll();
-            long v = current.expand.getLast();
-            double gv = current.g;
-            if(v == dest){
-                res = current.expand;
-                break;
+        return shortestPath(g, stlon, stlat, destlon, destlat, GraphDB.Metric.DISTANCE);
+    }
+
+    /**
+     * Same as shortestPath(g, stlon, stlat, destlon, destlat), minimising the given metric
+     * instead of the distance.
+     * @param metric What the route should minimise.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          GraphDB.Metric metric) {
+        int start = g.indexOf(g.closest(stlon, stlat));
+        int dest = g.indexOf(g.closest(destlon, destlat));
+        if(start < 0 || dest < 0)
+            return Collections.emptyList();
+        RouteCache.Entry cached = g.routeCache().get(start, dest, metric);
+        if(cached == null)
+            cached = g.routeCache().put(start, dest, metric,
+                    g.components().unreachable(start, dest) ? null
+                            : aStar(g, start, dest, null, metric));
+        return cached.route;
+    }
+
+    /** Search strategies shortestPath can use. All of them return a shortest path. */
+    public enum Algorithm {
+        /**
+         * A* from the start, guided by the great-circle distance to the destination (over
+         * the network's top speed when minimising time). This is the search the cached
+         * shortestPath runs.
+         */
+        ASTAR,
+        /**
+         * The same A* over the graph's chain overlay (see ChainOverlay), which skips the
+         * shape points in the middle of roads and settles far fewer vertices. Ties between
+         * routes of exactly the same length may resolve differently than with ASTAR.
+         */
+        CHAIN_ASTAR,
+        /**
+         * A* from both ends at once, meeting in the middle. Settles far fewer vertices on
+         * long routes. When several routes have exactly the same length it may return a
+         * different one of them than ASTAR.
+         */
+        BIDIRECTIONAL_ASTAR,
+        /**
+         * A* whose heuristic also uses precomputed road distances to and from a few
+         * landmarks (see Landmarks), which is much tighter than the great-circle distance
+         * around one-way streets and detours. Ties between routes of exactly the same
+         * length may resolve differently than with ASTAR.
+         */
+        ALT,
+        /**
+         * Bidirectional search over the graph's contraction hierarchy (see
+         * ContractionHierarchy), which has to be built once per graph and then answers
+         * queries an order of magnitude faster. Ties between routes of exactly the same
+         * length may resolve differently than with ASTAR.
+         */
+        CONTRACTION_HIERARCHY
+    }
+
+    /**
+     * Same as shortestPath(g, stlon, stlat, destlon, destlat), using the given algorithm.
+     * Results are not cached.
+     * @param algorithm The search strategy to use.
+     * @return A list of node id's in the order visited on the shortest path, or null if the
+     * destination cannot be reached.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Algorithm algorithm) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, algorithm,
+                GraphDB.Metric.DISTANCE);
+    }
+
+    /**
+     * Same as shortestPath(g, stlon, stlat, destlon, destlat, algorithm), minimising the
+     * given metric. The metric only selects which edge cost array the search reads.
+     * @param algorithm The search strategy to use.
+     * @param metric What the route should minimise.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Algorithm algorithm,
+                                          GraphDB.Metric metric) {
+        int start = g.indexOf(g.closest(stlon, stlat));
+        int dest = g.indexOf(g.closest(destlon, destlat));
+        if(start < 0 || dest < 0)
+            return Collections.emptyList();
+        if(g.components().unreachable(start, dest))
+            return null;
+        switch (algorithm) {
+            case BIDIRECTIONAL_ASTAR:
+                return bidirectionalAStar(g, start, dest, metric);
+            case ALT:
+                return aStar(g, start, dest, g.landmarks(metric), metric);
+            case CONTRACTION_HIERARCHY:
+                return g.hierarchy(metric).shortestPath(g, start, dest);
+            case CHAIN_ASTAR:
+                return g.chains().shortestPath(g, start, dest, metric);
+            default:
+                return aStar(g, start, dest, null, metric);
+        }
+    }
+
+    /**
+     * A* from start to dest over every vertex of the graph. The heuristic is the
+     * great-circle distance at the lowest cost per mile of the metric, raised to the
+     * landmark lower bound when landmarks are given.
+     */
+    static List<Long> aStar(GraphDB g, int start, int dest, Landmarks landmarks,
+                                    GraphDB.Metric metric) {
+        SearchWorkspace ws = SearchWorkspace.get(g.numVertices());
+        Relaxation relax = new Relaxation(g, dest, ws, landmarks, g.minCostPerMile(metric));
+
+        ws.reach(start, 0, -1);
+        ws.heap.insertOrDecrease(start, relax.heuristic(start));
+
+        while ( !ws.heap.isEmpty() ){
+            int v = ws.heap.poll();
+            if(v == dest)
+                return pathTo(g, ws, dest);
+            ws.close(v);
+            relax.from = v;
+            g.forEachNeighbor(v, metric, relax);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the route between two locations, each snapped onto the road segment closest
+     * to it instead of to the closest node, so a trip starts and ends on the right street
+     * even in the middle of a long block.
+     * The search starts from a virtual node at the snapped start, which reaches the ends of
+     * its segment at their share of the segment's cost (only forwards on a one-way road),
+     * and ends at a virtual node at the snapped destination, reached the same way.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param metric What the route should minimise.
+     * @return The route, or null if the destination cannot be reached.
+     */
+    public static Route shortestRoute(GraphDB g, double stlon, double stlat,
+                                      double destlon, double destlat, GraphDB.Metric metric) {
+        Route route = shortestRoute(g, stlon, stlat, destlon, destlat, metric,
+                SearchBudget.unlimited());
+        return route.status == Status.FOUND ? route : null;
+    }
+
+    /**
+     * Same as shortestRoute(g, stlon, stlat, destlon, destlat, metric), giving up once the
+     * search runs out of budget or is cancelled. Pairs the strongly connected components
+     * already prove unreachable come back UNREACHABLE without a search.
+     * Found and unreachable routes are cached per pair of snapped positions (see
+     * RouteCache), so the route returned may be shared; a route cut short by its budget is
+     * not cached.
+     * @param budget The limits of the search, and its cancellation token.
+     * @return The route, whose status tells whether one was found and if not, why. Only a
+     * FOUND route has nodes.
+     */
+    public static Route shortestRoute(GraphDB g, double stlon, double stlat,
+                                      double destlon, double destlat, GraphDB.Metric metric,
+                                      SearchBudget budget) {
+        SegmentIndex.Snap start = g.closestSegment(stlon, stlat);
+        SegmentIndex.Snap dest = g.closestSegment(destlon, destlat);
+        if(start == null || dest == null)
+            return new Route(Status.UNREACHABLE, start, dest);
+        RouteCache.Entry cached = g.routeCache().get(start, dest, metric);
+        if(cached != null)
+            return cached.snapped;
+        Route route = searchRoute(g, start, dest, metric, budget);
+        if(route.status == Status.FOUND || route.status == Status.UNREACHABLE)
+            g.routeCache().put(metric, route);
+        return route;
+    }
+
+    /** Searches the route between two snapped locations, without the cache. */
+    private static Route searchRoute(GraphDB g, SegmentIndex.Snap start,
+                                     SegmentIndex.Snap dest, GraphDB.Metric metric,
+                                     SearchBudget budget) {
+        int startBack = g.findEdge(start.to, start.from);
+        int destBack = g.findEdge(dest.to, dest.from);
+        if(start.edge != dest.edge
+                && unreachable(g, start.to, startBack < 0 ? -1 : start.from,
+                               dest.from, destBack < 0 ? -1 : dest.to))
+            return new Route(Status.UNREACHABLE, start, dest);
+
+        double best = Double.POSITIVE_INFINITY;
+        int via = -1;
+        int lastEdge = -1;
+        if(start.edge == dest.edge){
+            if(dest.fraction >= start.fraction){
+                best = alongEdge(g, start.edge, start.lon, start.lat, dest.lon, dest.lat, metric);
+                lastEdge = start.edge;
+            }else if(startBack >= 0){
+                best = alongEdge(g, startBack, start.lon, start.lat, dest.lon, dest.lat, metric);
+                lastEdge = startBack;
             }
-            if(expanded.contains(v))
-                continue;
-            expanded.add(v);
-
-            for(long neighbor : g.adjacent(v)) {
-                if ( !expanded.contains(neighbor) ) {
-                    State newState = new State(current);
-                    //State newState = (State)Object.clone(current);
-                    newState.expand.add(neighbor);
-                    newState.g += g.distance(v, neighbor);
-                    pq.offer(newState);
-                }
+        }
+
+        SearchWorkspace ws = SearchWorkspace.get(g.numVertices());
+        Relaxation relax = new Relaxation(g, dest.lon, dest.lat, ws, g.minCostPerMile(metric));
+        seed(g, ws, relax, start.to, alongEdge(g, start.edge, start.lon, start.lat,
+                g.lonAt(start.to), g.latAt(start.to), metric));
+        if(startBack >= 0)
+            seed(g, ws, relax, start.from, alongEdge(g, startBack, start.lon, start.lat,
+                    g.lonAt(start.from), g.latAt(start.from), metric));
+        double fromExit = alongEdge(g, dest.edge, g.lonAt(dest.from), g.latAt(dest.from),
+                dest.lon, dest.lat, metric);
+        double toExit = destBack < 0 ? Double.POSITIVE_INFINITY : alongEdge(g, destBack,
+                g.lonAt(dest.to), g.latAt(dest.to), dest.lon, dest.lat, metric);
+
+        /* Every path to dest still open costs at least its key, as the heuristic never
+         * overestimates the last partial segment either. */
+        int settled = 0;
+        while ( !ws.heap.isEmpty() && ws.heap.minKey() < best ){
+            Status stop = budget.check(settled++);
+            if(stop != null)
+                return new Route(stop, start, dest);
+            int v = ws.heap.poll();
+            ws.close(v);
+            if(v == dest.from && ws.g(v) + fromExit < best){
+                best = ws.g(v) + fromExit;
+                via = v;
+                lastEdge = dest.edge;
+            }
+            if(v == dest.to && ws.g(v) + toExit < best){
+                best = ws.g(v) + toExit;
+                via = v;
+                lastEdge = destBack;
             }
+            relax.from = v;
+            g.forEachNeighbor(v, metric, relax);
+        }
+        if(best == Double.POSITIVE_INFINITY)
+            return new Route(Status.UNREACHABLE, start, dest);
+        if(via < 0)
+            return new Route(start, dest, new ArrayList<>(), lastEdge, lastEdge, best);
+        List<Long> nodes = pathTo(g, ws, via);
+        int firstEdge = g.indexOf(nodes.get(0)) == start.to ? start.edge : startBack;
+        return new Route(start, dest, nodes, firstEdge, lastEdge, best);
+    }
+
+    /**
+     * Returns whether the graph's components prove that none of the exits from a snapped
+     * start reaches any entry to a snapped destination. The second exit and entry are -1
+     * on one-way segments.
+     */
+    private static boolean unreachable(GraphDB g, int exit1, int exit2, int entry1,
+                                       int entry2) {
+        StrongComponents c = g.components();
+        return c.unreachable(exit1, entry1)
+                && (entry2 < 0 || c.unreachable(exit1, entry2))
+                && (exit2 < 0 || c.unreachable(exit2, entry1)
+                        && (entry2 < 0 || c.unreachable(exit2, entry2)));
+    }
+
+    /** Starts a search at vertex v with the given cost, unless it is already cheaper. */
+    private static void seed(GraphDB g, SearchWorkspace ws, Relaxation relax, int v,
+                             double cost) {
+        if(cost < ws.g(v)){
+            ws.reach(v, cost, -1);
+            if(Double.isNaN(ws.h(v)))
+                ws.setH(v, relax.heuristic(v));
+            ws.heap.insertOrDecrease(v, cost + ws.h(v));
         }
+    }
+
+    /**
+     * Returns the cost of travelling along edge e between two points on it, as the share
+     * of the edge's cost given by their great-circle distance.
+     */
+    private static double alongEdge(GraphDB g, int e, double lon1, double lat1,
+                                    double lon2, double lat2, GraphDB.Metric metric) {
+        double length = g.edgeLength(e);
+        if(length == 0)
+            return 0;
+        return g.edgeWeight(e, metric) * GraphDB.distance(lon1, lat1, lon2, lat2) / length;
+    }
+
+    /** How a route search ended. */
+    public enum Status {
+        /** A shortest route was found. */
+        FOUND,
+        /** No route leads from the start to the destination. */
+        UNREACHABLE,
+        /** The search settled too many vertices or ran past its deadline. */
+        BUDGET_EXCEEDED,
+        /** The search was cancelled through its SearchBudget. */
+        CANCELLED
+    }
+
+    /**
+     * A route between two snapped locations, as returned by shortestRoute: the snapped
+     * start, the nodes in between, and the snapped destination.
+     */
+    public static class Route {
+        final Status status;
+        final SegmentIndex.Snap start;
+        final SegmentIndex.Snap dest;
+        /** Ids of the nodes passed, in order; empty when both ends lie on one segment. */
+        final List<Long> nodes;
+        /** Edge slot travelled from the start, and the one arriving at the destination. */
+        final int firstEdge;
+        final int lastEdge;
+        /** Cost of the route under the metric it minimised, infinite if none was found. */
+        final double cost;
+
+        /** A route that was found. */
+        Route(SegmentIndex.Snap start, SegmentIndex.Snap dest, List<Long> nodes,
+              int firstEdge, int lastEdge, double cost) {
+            this(Status.FOUND, start, dest, nodes, firstEdge, lastEdge, cost);
+        }
+
+        /** A search that ended without a route, for the given reason. */
+        Route(Status status, SegmentIndex.Snap start, SegmentIndex.Snap dest) {
+            this(status, start, dest, Collections.<Long>emptyList(), -1, -1,
+                    Double.POSITIVE_INFINITY);
+        }
+
+        private Route(Status status, SegmentIndex.Snap start, SegmentIndex.Snap dest,
+                      List<Long> nodes, int firstEdge, int lastEdge, double cost) {
+            this.status = status;
+            this.start = start;
+            this.dest = dest;
+            this.nodes = nodes;
+            this.firstEdge = firstEdge;
+            this.lastEdge = lastEdge;
+            this.cost = cost;
+        }
+
+        /**
+         * Returns the route as a polyline of {lon, lat} points, from the snapped start
+         * through the nodes to the snapped destination.
+         */
+        double[][] points(GraphDB g) {
+            double[][] res = new double[nodes.size() + 2][];
+            res[0] = new double[] {start.lon, start.lat};
+            int i = 1;
+            for(long id : nodes)
+                res[i++] = new double[] {g.lon(id), g.lat(id)};
+            res[i] = new double[] {dest.lon, dest.lat};
+            return res;
+        }
+    }
+
+    /**
+     * Bidirectional A* with average potentials: the forward search uses
+     * p(v) = (d(v, dest) - d(start, v)) / 2 and the backward search -p(v), which keeps both
+     * consistent, so the searches can stop as soon as the two smallest keys add up to at
+     * least the best meeting distance found so far.
+     */
+    private static List<Long> bidirectionalAStar(GraphDB g, int start, int dest,
+                                                 GraphDB.Metric metric) {
+        SearchWorkspace fw = SearchWorkspace.get(g.numVertices(), SearchWorkspace.FORWARD);
+        SearchWorkspace bw = SearchWorkspace.get(g.numVertices(), SearchWorkspace.BACKWARD);
+        Meeting meeting = new Meeting();
+        double scale = g.minCostPerMile(metric);
+        Potential forward = new Potential(g, fw, bw, start, dest, scale, meeting);
+        Potential backward = new Potential(g, bw, fw, start, dest, -scale, meeting);
+
+        fw.reach(start, 0, -1);
+        fw.setH(start, forward.potential(start));
+        fw.heap.insertOrDecrease(start, fw.h(start));
+        bw.reach(dest, 0, -1);
+        bw.setH(dest, backward.potential(dest));
+        bw.heap.insertOrDecrease(dest, bw.h(dest));
+        if(start == dest)
+            meeting.offer(start, 0);
+
+        while ( !fw.heap.isEmpty() && !bw.heap.isEmpty() ){
+            if(fw.heap.minKey() + bw.heap.minKey() >= meeting.distance)
+                break;
+            if(fw.heap.size() <= bw.heap.size()){
+                int v = fw.heap.poll();
+                fw.close(v);
+                forward.from = v;
+                g.forEachNeighbor(v, metric, forward);
+            }else{
+                int v = bw.heap.poll();
+                bw.close(v);
+                backward.from = v;
+                g.forEachIncoming(v, metric, backward);
+            }
+        }
+        if(meeting.vertex < 0)
+            return null;
+
+        List<Long> res = pathTo(g, fw, meeting.vertex);
+        for(int v = bw.parent(meeting.vertex); v >= 0; v = bw.parent(v))
+            res.add(g.idAt(v));
         return res;
     }
 
-    static class State{
-        LinkedList<Long> expand;
-        double g;
-        State(LinkedList<Long> expand, double g){
-            this.expand = expand;
+    /** Best meeting point of a bidirectional search found so far. */
+    private static class Meeting {
+        int vertex = -1;
+        double distance = Double.POSITIVE_INFINITY;
+
+        void offer(int v, double d) {
+            if(d < distance){
+                distance = d;
+                vertex = v;
+            }
+        }
+    }
+
+    /**
+     * Relaxation for one direction of the bidirectional search. scale is the metric's
+     * lowest cost per mile for the forward search over outgoing edges, and its negation for
+     * the backward search over incoming edges.
+     */
+    private static class Potential implements GraphDB.NeighborVisitor {
+        private final GraphDB g;
+        private final SearchWorkspace ws;
+        private final SearchWorkspace other;
+        private final int start;
+        private final int dest;
+        private final double scale;
+        private final Meeting meeting;
+        private int from;
+
+        Potential(GraphDB g, SearchWorkspace ws, SearchWorkspace other, int start, int dest,
+                  double scale, Meeting meeting) {
             this.g = g;
+            this.ws = ws;
+            this.other = other;
+            this.start = start;
+            this.dest = dest;
+            this.scale = scale;
+            this.meeting = meeting;
         }
 
-        State(State s){
-            this.expand = new LinkedList<>(s.expand);
-            this.g = s.g;
+        double potential(int v) {
+            return scale * (g.distanceAt(v, dest) - g.distanceAt(start, v)) / 2;
         }
+
+        @Override
+        public void visit(int w, double weight) {
+            if(ws.isClosed(w))
+                return;
+            double tentative = ws.g(from) + weight;
+            if(tentative < ws.g(w)){
+                ws.reach(w, tentative, from);
+                if(Double.isNaN(ws.h(w)))
+                    ws.setH(w, potential(w));
+                ws.heap.insertOrDecrease(w, tentative + ws.h(w));
+                if(other.reached(w))
+                    meeting.offer(w, tentative + other.g(w));
+            }
+        }
+    }
+
+    /** Walks the parent pointers back from dest and returns the ids from start to dest. */
+    private static List<Long> pathTo(GraphDB g, SearchWorkspace ws, int dest) {
+        int length = 0;
+        for(int v = dest; v >= 0; v = ws.parent(v))
+            length++;
+        Long[] path = new Long[length];
+        for(int v = dest; v >= 0; v = ws.parent(v))
+            path[--length] = g.idAt(v);
+        return new ArrayList<>(Arrays.asList(path));
+    }
+
+    /**
+     * Relaxes the edges out of one vertex: a neighbour that is not closed gets a new parent
+     * and a lower key whenever the edge improves its distance. One instance per search.
+     */
+    private static class Relaxation implements GraphDB.NeighborVisitor {
+        private final GraphDB g;
+        private final int dest;
+        private final double destLon;
+        private final double destLat;
+        private final SearchWorkspace ws;
+        private final Landmarks landmarks;
+        /** Lowest cost per mile of the metric being minimised. */
+        private final double scale;
+        private int from;
+
+        Relaxation(GraphDB g, int dest, SearchWorkspace ws, Landmarks landmarks,
+                   double scale) {
+            this.g = g;
+            this.dest = dest;
+            this.destLon = g.lonAt(dest);
+            this.destLat = g.latAt(dest);
+            this.ws = ws;
+            this.landmarks = landmarks;
+            this.scale = scale;
+        }
+
+        /** Relaxation towards a point that need not be a vertex, without landmarks. */
+        Relaxation(GraphDB g, double destLon, double destLat, SearchWorkspace ws,
+                   double scale) {
+            this.g = g;
+            this.dest = -1;
+            this.destLon = destLon;
+            this.destLat = destLat;
+            this.ws = ws;
+            this.landmarks = null;
+            this.scale = scale;
+        }
+
+        double heuristic(int v) {
+            double h = scale * GraphDB.distance(g.lonAt(v), g.latAt(v), destLon, destLat);
+            return landmarks == null ? h : Math.max(h, landmarks.lowerBound(v, dest));
+        }
+
+        @Override
+        public void visit(int w, double weight) {
+            if(ws.isClosed(w))
+                return;
+            double tentative = ws.g(from) + weight;
+            if(tentative < ws.g(w)){
+                ws.reach(w, tentative, from);
+                if(Double.isNaN(ws.h(w)))
+                    ws.setH(w, heuristic(w));
+                /* An infinite bound means the landmarks proved dest unreachable from w. */
+                if(ws.h(w) < Double.POSITIVE_INFINITY)
+                    ws.heap.insertOrDecrease(w, tentative + ws.h(w));
+            }
+        }
+    }
+
+    /**
+     * Return the road distances between every pair of the given points, each snapped once
+     * to its closest node, as computed by the graph's contraction hierarchy.
+     * @param g The graph to use.
+     * @param lons The longitudes of the points.
+     * @param lats The latitudes of the points, in the same order.
+     * @return A row-major lons.length x lons.length array whose entry i * lons.length + j is
+     * the distance from point i to point j, or +infinity if j cannot be reached from i.
+     */
+    public static double[] distanceMatrix(GraphDB g, double[] lons, double[] lats) {
+        int[] vertices = new int[lons.length];
+        for(int i = 0; i < lons.length; i++)
+            vertices[i] = g.indexOf(g.closest(lons[i], lats[i]));
+        return g.hierarchy(GraphDB.Metric.DISTANCE).manyToMany(vertices, vertices);
     }
 
     /**
@@ -89,15 +572,84 @@ public class Router {
      * route.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
+        int legs = route.size() - 1;
+        double[] lons = new double[route.size()];
+        double[] lats = new double[route.size()];
+        long[] wayIds = new long[Math.max(0, legs)];
+        double[] lengths = new double[Math.max(0, legs)];
+        int prev = -1;
+        int k = 0;
+        for(long id : route){
+            int v = g.indexOf(id);
+            lons[k] = g.lonAt(v);
+            lats[k] = g.latAt(v);
+            if(k > 0){
+                int edge = g.findEdge(prev, v);
+                wayIds[k - 1] = g.edgeWay(edge);
+                lengths[k - 1] = g.edgeLength(edge);
+            }
+            prev = v;
+            k++;
+        }
+        return directions(g, lons, lats, wayIds, lengths);
+    }
+
+    /**
+     * Create the list of directions corresponding to a route between two snapped
+     * locations. The first and last steps only count the part of their segment that is
+     * actually travelled.
+     * @param g The graph to use.
+     * @param route The route to translate into directions.
+     * @return A list of NavigationDirection objects corresponding to the input route.
+     */
+    public static List<NavigationDirection> routeDirections(GraphDB g, Route route) {
+        double[][] points = route.points(g);
+        int legs = points.length - 1;
+        double[] lons = new double[points.length];
+        double[] lats = new double[points.length];
+        long[] wayIds = new long[legs];
+        double[] lengths = new double[legs];
+        for(int i = 0; i < points.length; i++){
+            lons[i] = points[i][0];
+            lats[i] = points[i][1];
+        }
+        for(int i = 0; i < legs; i++){
+            int edge;
+            if(i == 0)
+                edge = route.firstEdge;
+            else if(i == legs - 1)
+                edge = route.lastEdge;
+            else
+                edge = g.findEdge(g.indexOf(route.nodes.get(i - 1)),
+                        g.indexOf(route.nodes.get(i)));
+            wayIds[i] = g.edgeWay(edge);
+            lengths[i] = i == 0 || i == legs - 1
+                    ? GraphDB.distance(lons[i], lats[i], lons[i + 1], lats[i + 1])
+                    : g.edgeLength(edge);
+        }
+
+        /* A location snapped right onto a node adds a first or last step of no length. */
+        int from = lengths.length > 1 && lengths[0] == 0 ? 1 : 0;
+        int to = lengths.length > from + 1 && lengths[legs - 1] == 0 ? legs - 1 : legs;
+        return directions(g, Arrays.copyOfRange(lons, from, to + 1),
+                Arrays.copyOfRange(lats, from, to + 1), Arrays.copyOfRange(wayIds, from, to),
+                Arrays.copyOfRange(lengths, from, to));
+    }
+
+    /**
+     * Turns a polyline into directions. Leg i runs from point i to point i + 1 along the
+     * way wayIds[i] for lengths[i] miles; consecutive legs on the same way are merged.
+     */
+    private static List<NavigationDirection> directions(GraphDB g, double[] lons, double[] lats,
+                                                        long[] wayIds, double[] lengths) {
         List<NavigationDirection> res = new ArrayList<>();
-        long from = route.get(0);
-        long to = route.get(1);
-        long pre = from;
+        if(wayIds.length == 0)
+            return res;
+        int pre = 0;
         NavigationDirection navi = new NavigationDirection();
-        long wayId = g.getPathId(from, to);
-        String way = g.getWayName((wayId));
+        String way = g.getWayName(wayIds[0]);
         String lastWay = way;
-        double distance = g.distance(from, to);
+        double distance = lengths[0];
         if(way == null) way = NavigationDirection.UNKNOWN_ROAD;
         navi.way = way;
         navi.direction = NavigationDirection.START;
@@ -105,21 +657,20 @@ public class Router {
 
         res.add(navi);
 
-        for(int i = 2; i < route.size(); i++){
-            from = route.get(i-1);
-            to = route.get(i);
-            wayId = g.getPathId(from, to);
-            way = g.getWayName(wayId);
+        for(int i = 1; i < wayIds.length; i++){
+            int from = i;
+            int to = i + 1;
+            way = g.getWayName(wayIds[i]);
             if(way == null) way = NavigationDirection.UNKNOWN_ROAD;
             if(way.equals(lastWay)){
-                navi.distance += g.distance(from, to);
+                navi.distance += lengths[i];
             }else {
                 lastWay = way;
                 navi = new NavigationDirection();
-                double degreePre = g.bearing(pre, from);
-                double degreeCur = g.bearing(from, to);
+                double degreePre = GraphDB.bearing(lons[pre], lats[pre], lons[from], lats[from]);
+                double degreeCur = GraphDB.bearing(lons[from], lats[from], lons[to], lats[to]);
                 double degreeRelative = degreeCur - degreePre;
-                distance = g.distance(from, to);
+                distance = lengths[i];
                 pre = from;
 
                 if (way != null) navi.way = way;
@@ -0,0 +1,414 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class provides a main method for measuring Router on a real extract, in the same
+ * spirit as GraphDBLauncher. It replays the queries in path_params.txt and reports latency
+ * percentiles and the bytes each query allocates, as seen by the JVM's ThreadMXBean, then
+ * compares every Router.Algorithm on the same random origin/destination pairs.
+ * Usage: RouterBenchmark [osm file] [params file] [rounds] [random pairs]
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String PARAMS_FILE = "path_params.txt";
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MATRIX_POINTS = 100;
+
+    public static void main(String[] args) throws Exception {
+        String dbPath = args.length > 0 ? args[0] : OSM_DB_PATH;
+        String paramsPath = args.length > 1 ? args[1] : PARAMS_FILE;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int pairs = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+        GraphDB g = new GraphDB(dbPath);
+        long landmarkStart = System.nanoTime();
+        g.setLandmarks(Landmarks.loadOrCompute(g, GraphDB.Metric.DISTANCE,
+                new File(dbPath + ".landmarks"), Landmarks.DEFAULT_COUNT));
+        System.out.println(String.format("Landmarks ready in %.0f ms.",
+                (System.nanoTime() - landmarkStart) / 1e6));
+        long hierarchyStart = System.nanoTime();
+        ContractionHierarchy hierarchy =
+                ContractionHierarchy.loadOrBuild(g, GraphDB.Metric.DISTANCE,
+                        new File(dbPath + ".ch"));
+        g.setHierarchy(hierarchy);
+        System.out.println(String.format(
+                "Contraction hierarchy ready in %.0f ms: %d shortcuts, %.1f MB.",
+                (System.nanoTime() - hierarchyStart) / 1e6, hierarchy.numShortcuts(),
+                hierarchy.sizeInBytes() / 1048576.0));
+        double[][] queries = readQueries(paramsPath);
+        System.out.println("Loaded " + g.numVertices() + " vertices, " + queries.length
+                + " queries.");
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (double[] q : queries) {
+                Router.shortestPath(g, q[0], q[1], q[2], q[3], Router.Algorithm.ASTAR);
+            }
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long[] nanos = new long[rounds * queries.length];
+        long allocated = 0;
+        int n = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (double[] q : queries) {
+                long bytes = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                Router.shortestPath(g, q[0], q[1], q[2], q[3], Router.Algorithm.ASTAR);
+                nanos[n++] = System.nanoTime() - start;
+                allocated += threads.getThreadAllocatedBytes(thread) - bytes;
+            }
+        }
+        report("shortestPath (uncached)", nanos);
+        System.out.println(String.format("  allocated %.1f KB per query",
+                allocated / 1024.0 / nanos.length));
+
+        compareAlgorithms(g, randomQueries(g, pairs, new Random(61)), GraphDB.Metric.DISTANCE);
+        compareAlgorithms(g, randomQueries(g, pairs, new Random(61)), GraphDB.Metric.TIME);
+        compareChains(g, randomQueries(g, pairs, new Random(61)), GraphDB.Metric.DISTANCE);
+        compareChains(g, randomQueries(g, pairs, new Random(61)), GraphDB.Metric.TIME);
+        compareVertexOrder(g, new GraphDB(dbPath, false, true),
+                randomQueries(g, pairs, new Random(83)));
+        compareMatrix(g, randomQueries(g, MATRIX_POINTS, new Random(67)));
+        skewedCacheWorkload(g, randomQueries(g, pairs, new Random(71)), new Random(73));
+        compareSnapping(g, randomQueries(g, pairs, new Random(79)));
+
+        double[] total = new double[1];
+        GraphDB.NeighborVisitor sum = (w, weight) -> total[0] += weight;
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        for (int v = 0; v < g.numVertices(); v++) {
+            g.forEachNeighbor(v, sum);
+        }
+        long visitorBytes = threads.getThreadAllocatedBytes(thread) - bytes;
+        bytes = threads.getThreadAllocatedBytes(thread);
+        for (long v : g.vertices()) {
+            for (long w : g.adjacent(v)) {
+                total[0] += w;
+            }
+        }
+        long adjacentBytes = threads.getThreadAllocatedBytes(thread) - bytes;
+        System.out.println(String.format("Full neighbour sweep: forEachNeighbor allocated %d bytes,"
+                + " vertices()/adjacent() allocated %d bytes", visitorBytes, adjacentBytes));
+    }
+
+    /**
+     * Runs every algorithm on the same queries, reporting latency and the mean number of
+     * settled vertices, and counts the queries whose route cost differs from ASTAR's.
+     * The contraction hierarchy is only run for DISTANCE, whose hierarchy is loaded up
+     * front; a TIME hierarchy would be built from scratch here.
+     */
+    static void compareAlgorithms(GraphDB g, double[][] queries, GraphDB.Metric metric) {
+        double[] reference = new double[queries.length];
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            if (algorithm == Router.Algorithm.CONTRACTION_HIERARCHY
+                    && metric != GraphDB.Metric.DISTANCE) {
+                continue;
+            }
+            for (double[] q : queries) {
+                Router.shortestPath(g, q[0], q[1], q[2], q[3], algorithm, metric);
+            }
+            long[] nanos = new long[queries.length];
+            long settled = 0;
+            int mismatches = 0;
+            for (int i = 0; i < queries.length; i++) {
+                double[] q = queries[i];
+                long start = System.nanoTime();
+                List<Long> route =
+                        Router.shortestPath(g, q[0], q[1], q[2], q[3], algorithm, metric);
+                nanos[i] = System.nanoTime() - start;
+                settled += SearchWorkspace.settledByCurrentThread();
+                double length = pathCost(g, route, metric);
+                if (algorithm == Router.Algorithm.ASTAR) {
+                    reference[i] = length;
+                } else if (Math.abs(length - reference[i]) > 1e-9 * Math.max(1, length)) {
+                    mismatches++;
+                }
+            }
+            report(algorithm + " (" + metric + ")", nanos);
+            System.out.println(String.format("  %.0f settled vertices per query, %d length "
+                    + "mismatches", settled / (double) queries.length, mismatches));
+        }
+    }
+
+    /**
+     * Reports how much ChainOverlay shrinks the graph, then times A* over every vertex
+     * against A* over the overlay on the same queries, counting the paths that differ.
+     */
+    static void compareChains(GraphDB g, double[][] queries, GraphDB.Metric metric) {
+        ChainOverlay chains = g.chains();
+        System.out.println(String.format("Chain overlay: %d of %d vertices (%.1f%%), %d chains "
+                + "for %d edges (%.1f%%)", chains.numCoreVertices(), g.numVertices(),
+                100.0 * chains.numCoreVertices() / g.numVertices(), chains.numChains(),
+                g.numEdges(), 100.0 * chains.numChains() / g.numEdges()));
+        int[] starts = new int[queries.length];
+        int[] dests = new int[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            starts[i] = g.indexOf(g.closest(queries[i][0], queries[i][1]));
+            dests[i] = g.indexOf(g.closest(queries[i][2], queries[i][3]));
+        }
+        for (int round = 0; round < 2; round++) {
+            long[] fullNanos = new long[queries.length];
+            long[] chainNanos = new long[queries.length];
+            long fullSettled = 0;
+            long chainSettled = 0;
+            int mismatches = 0;
+            for (int i = 0; i < queries.length; i++) {
+                long start = System.nanoTime();
+                List<Long> full = Router.aStar(g, starts[i], dests[i], null, metric);
+                fullNanos[i] = System.nanoTime() - start;
+                fullSettled += SearchWorkspace.settledByCurrentThread();
+                start = System.nanoTime();
+                List<Long> route = chains.shortestPath(g, starts[i], dests[i], metric);
+                chainNanos[i] = System.nanoTime() - start;
+                chainSettled += SearchWorkspace.settledByCurrentThread();
+                if (full == null ? route != null : !full.equals(route)) {
+                    mismatches++;
+                }
+            }
+            /* The first round only warms up. */
+            if (round == 1) {
+                report("A* over every vertex (" + metric + ")", fullNanos);
+                System.out.println(String.format("  %.0f settled vertices per query",
+                        fullSettled / (double) queries.length));
+                report("A* over the chain overlay (" + metric + ")", chainNanos);
+                System.out.println(String.format("  %.0f settled vertices per query, %d path "
+                        + "mismatches", chainSettled / (double) queries.length, mismatches));
+            }
+        }
+    }
+
+    /**
+     * Compares the same map numbered in file order and along a Hilbert curve. The JVM
+     * exposes no cache counters, so locality is reported as the mean index distance between
+     * the two ends of an edge, next to the latency of snapping and of A* over every vertex
+     * and over the chain overlay, alternating the two graphs round by round.
+     */
+    static void compareVertexOrder(GraphDB fileOrder, GraphDB hilbertOrder,
+                                   double[][] queries) {
+        GraphDB[] graphs = {fileOrder, hilbertOrder};
+        String[] names = {"file order", "Hilbert order"};
+        long[][][] nanos = new long[2][3][queries.length];
+        for (int round = 0; round < 4; round++) {
+            for (int k = 0; k < 2; k++) {
+                GraphDB g = graphs[k];
+                for (int i = 0; i < queries.length; i++) {
+                    double[] q = queries[i];
+                    long start = System.nanoTime();
+                    g.closestSegment(q[0], q[1]);
+                    nanos[k][0][i] = System.nanoTime() - start;
+                    int from = g.indexOf(g.closest(q[0], q[1]));
+                    int to = g.indexOf(g.closest(q[2], q[3]));
+                    start = System.nanoTime();
+                    Router.aStar(g, from, to, null, GraphDB.Metric.DISTANCE);
+                    nanos[k][1][i] = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    g.chains().shortestPath(g, from, to, GraphDB.Metric.DISTANCE);
+                    nanos[k][2][i] = System.nanoTime() - start;
+                }
+            }
+        }
+        /* Only the last round of each graph is reported; the others warm up. */
+        for (int k = 0; k < 2; k++) {
+            GraphDB g = graphs[k];
+            double span = 0;
+            for (int v = 0; v < g.numVertices(); v++) {
+                for (int e = g.edgeBegin(v); e < g.edgeEnd(v); e++) {
+                    span += Math.abs(g.edgeTarget(e) - v);
+                }
+            }
+            System.out.println(String.format("%s: mean edge span %.0f vertices", names[k],
+                    span / g.numEdges()));
+            report("  closestSegment", nanos[k][0]);
+            report("  A* over every vertex", nanos[k][1]);
+            report("  A* over the chain overlay", nanos[k][2]);
+        }
+    }
+
+    /**
+     * Times Router.distanceMatrix against one CONTRACTION_HIERARCHY shortestPath call per
+     * pair, using the first point of each query, and counts the entries that differ.
+     */
+    static void compareMatrix(GraphDB g, double[][] queries) {
+        int n = queries.length;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for (int i = 0; i < n; i++) {
+            lons[i] = queries[i][0];
+            lats[i] = queries[i][1];
+        }
+        Router.distanceMatrix(g, lons, lats);
+        long start = System.nanoTime();
+        double[] matrix = Router.distanceMatrix(g, lons, lats);
+        long matrixNanos = System.nanoTime() - start;
+
+        int mismatches = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double length = pathLength(g, Router.shortestPath(g, lons[i], lats[i], lons[j],
+                        lats[j], Router.Algorithm.CONTRACTION_HIERARCHY));
+                double expected = length < 0 ? Double.POSITIVE_INFINITY : length;
+                if (Math.abs(expected - matrix[i * n + j]) > 1e-9 * Math.max(1, length)) {
+                    mismatches++;
+                }
+            }
+        }
+        long pairNanos = System.nanoTime() - start;
+        System.out.println(String.format("%dx%d matrix: distanceMatrix %.1f ms, %d shortestPath "
+                + "calls %.1f ms, %d mismatches", n, n, matrixNanos / 1e6, n * n, pairNanos / 1e6,
+                mismatches));
+    }
+
+    /**
+     * Times snapping to the closest vertex against snapping to the closest segment, and
+     * shortestRoute between snapped segments, with its cache cleared, against the uncached
+     * vertex-to-vertex A*.
+     */
+    static void compareSnapping(GraphDB g, double[][] queries) {
+        for (int round = 0; round < 2; round++) {
+            long[] vertexNanos = new long[queries.length];
+            long[] segmentNanos = new long[queries.length];
+            long[] routeNanos = new long[queries.length];
+            long[] pathNanos = new long[queries.length];
+            for (int i = 0; i < queries.length; i++) {
+                double[] q = queries[i];
+                long start = System.nanoTime();
+                g.closest(q[0], q[1]);
+                vertexNanos[i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                g.closestSegment(q[0], q[1]);
+                segmentNanos[i] = System.nanoTime() - start;
+                /* shortestRoute caches its routes; time the search, not the lookup. */
+                g.routeCache().clear();
+                start = System.nanoTime();
+                Router.shortestRoute(g, q[0], q[1], q[2], q[3], GraphDB.Metric.DISTANCE);
+                routeNanos[i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                Router.shortestPath(g, q[0], q[1], q[2], q[3], Router.Algorithm.ASTAR);
+                pathNanos[i] = System.nanoTime() - start;
+            }
+            /* The first round only warms up. */
+            if (round == 1) {
+                report("closest", vertexNanos);
+                report("closestSegment", segmentNanos);
+                report("shortestRoute (segment snapping)", routeNanos);
+                report("shortestPath ASTAR (vertex snapping)", pathNanos);
+            }
+        }
+    }
+
+    /**
+     * Replays a skewed workload through the cached shortestPath: each lookup draws one of
+     * the given queries, with the first few drawn far more often than the rest, the way
+     * popular origin/destination pairs dominate real traffic.
+     */
+    static void skewedCacheWorkload(GraphDB g, double[][] queries, Random r) {
+        RouteCache cache = g.routeCache();
+        cache.clear();
+        long hits = cache.hits();
+        long misses = cache.misses();
+        long[] nanos = new long[10 * queries.length];
+        for (int i = 0; i < nanos.length; i++) {
+            double u = r.nextDouble();
+            double[] q = queries[(int) (queries.length * u * u * u)];
+            long start = System.nanoTime();
+            Router.shortestPath(g, q[0], q[1], q[2], q[3]);
+            nanos[i] = System.nanoTime() - start;
+        }
+        report("Cached shortestPath, skewed pairs", nanos);
+        long lookups = cache.hits() - hits + cache.misses() - misses;
+        System.out.println(String.format("  hit ratio %.3f, %d entries, %.1f KB",
+                (cache.hits() - hits) / (double) lookups, cache.size(),
+                cache.sizeInBytes() / 1024.0));
+    }
+
+    /** Returns the length of a route in miles, or -1 for a missing route. */
+    static double pathLength(GraphDB g, List<Long> route) {
+        if (route == null) {
+            return -1;
+        }
+        double length = 0;
+        for (int i = 1; i < route.size(); i++) {
+            length += g.edgeLength(g.findEdge(g.indexOf(route.get(i - 1)),
+                    g.indexOf(route.get(i))));
+        }
+        return length;
+    }
+
+    /**
+     * Returns the cost of a route under a metric, taking the cheapest way wherever several
+     * connect the same two nodes, or -1 for no route.
+     */
+    static double pathCost(GraphDB g, List<Long> route, GraphDB.Metric metric) {
+        if (route == null) {
+            return -1;
+        }
+        double cost = 0;
+        for (int i = 1; i < route.size(); i++) {
+            int v = g.indexOf(route.get(i - 1));
+            int w = g.indexOf(route.get(i));
+            double cheapest = Double.POSITIVE_INFINITY;
+            for (int e = g.edgeBegin(v); e < g.edgeEnd(v); e++) {
+                if (g.edgeTarget(e) == w) {
+                    cheapest = Math.min(cheapest, g.edgeWeight(e, metric));
+                }
+            }
+            cost += cheapest;
+        }
+        return cost;
+    }
+
+    /** Returns n random start/destination pairs inside the bounding box of the graph. */
+    static double[][] randomQueries(GraphDB g, int n, Random r) {
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < g.numVertices(); v++) {
+            minLon = Math.min(minLon, g.lonAt(v));
+            maxLon = Math.max(maxLon, g.lonAt(v));
+            minLat = Math.min(minLat, g.latAt(v));
+            maxLat = Math.max(maxLat, g.latAt(v));
+        }
+        double[][] queries = new double[n][];
+        for (int i = 0; i < n; i++) {
+            queries[i] = new double[] {minLon + r.nextDouble() * (maxLon - minLon),
+                minLat + r.nextDouble() * (maxLat - minLat),
+                minLon + r.nextDouble() * (maxLon - minLon),
+                minLat + r.nextDouble() * (maxLat - minLat)};
+        }
+        return queries;
+    }
+
+    /** Prints the p50 and p99 of the given latencies. */
+    static void report(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format("%s: p50 %.3f ms, p99 %.3f ms over %d queries", name,
+                sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+                sorted.length));
+    }
+
+    /** Reads start_lon, start_lat, end_lon, end_lat quadruples, skipping comment lines. */
+    static double[][] readQueries(String path) throws Exception {
+        List<String> lines = Files.readAllLines(Paths.get(path), Charset.defaultCharset());
+        List<Double> values = new ArrayList<>();
+        for (String line : lines) {
+            if (!line.startsWith("#") && !line.trim().isEmpty()) {
+                values.add(Double.parseDouble(line.trim()));
+            }
+        }
+        double[][] queries = new double[values.size() / 4][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = new double[] {values.get(4 * i), values.get(4 * i + 1),
+                values.get(4 * i + 2), values.get(4 * i + 3)};
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Limits on one route search: how many vertices it may settle and how long it may run.
+ * A budget is also the search's cancellation token: any thread may call cancel(), and the
+ * search gives up the next time it settles a vertex. Searches check the clock only every
+ * few hundred settled vertices, so a deadline can be overrun by that much work.
+ * A budget is meant for one search, since its deadline counts from its creation.
+ * Only Router.shortestRoute takes a budget. The shortestPath overloads, whatever their
+ * algorithm, and distanceMatrix always run to completion; callers that need a bound on
+ * them have to limit their input instead, as MapServer does for /matrix.
+ */
+public class SearchBudget {
+    /** Settled vertices between two reads of the clock, minus one. */
+    private static final int CLOCK_MASK = 255;
+
+    private final int maxSettled;
+    private final long deadline;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled;
+
+    /**
+     * Create a budget whose deadline starts counting now.
+     * @param maxSettled The most vertices the search may settle.
+     * @param timeoutMillis The longest the search may run, in milliseconds, or
+     *                      Long.MAX_VALUE for no deadline.
+     */
+    SearchBudget(int maxSettled, long timeoutMillis) {
+        this.maxSettled = maxSettled;
+        this.hasDeadline = timeoutMillis < Long.MAX_VALUE / 1_000_000;
+        this.deadline = hasDeadline ? System.nanoTime() + timeoutMillis * 1_000_000 : 0;
+    }
+
+    /** Returns a budget without limits, which can still be cancelled. */
+    static SearchBudget unlimited() {
+        return new SearchBudget(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /** Asks the search using this budget to stop. */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns why a search that has settled the given number of vertices may not settle
+     * another one.
+     * @param settled The vertices settled so far.
+     * @return CANCELLED or BUDGET_EXCEEDED, or null if the search may go on.
+     */
+    Router.Status check(int settled) {
+        if (cancelled) {
+            return Router.Status.CANCELLED;
+        }
+        if (settled >= maxSettled) {
+            return Router.Status.BUDGET_EXCEEDED;
+        }
+        if (hasDeadline && (settled & CLOCK_MASK) == 0 && System.nanoTime() - deadline > 0) {
+            return Router.Status.BUDGET_EXCEEDED;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+/**
+ * Reusable per-thread scratch space for shortest path searches over dense vertex indices.
+ * Instead of clearing its arrays between searches, a workspace stamps every vertex it
+ * touches with the current search's epoch; reset() starts a new search by bumping the
+ * epoch, so a vertex whose stamp is old reads as unvisited. Only the leftover heap entries
+ * are cleared, so a reset costs O(frontier) rather than O(V).
+ * Workspaces are not thread-safe; get() hands every thread its own, one per slot, so a
+ * bidirectional search can hold a forward and a backward workspace at the same time.
+ */
+public class SearchWorkspace {
+    /** Slot of the forward (or only) search. */
+    static final int FORWARD = 0;
+    /** Slot of the backward half of a bidirectional search. */
+    static final int BACKWARD = 1;
+    private static final ThreadLocal<SearchWorkspace[]> PER_THREAD =
+            ThreadLocal.withInitial(() -> new SearchWorkspace[2]);
+
+    private final int[] seen;
+    private final int[] closed;
+    private final double[] gScore;
+    private final double[] hScore;
+    private final int[] parent;
+    private int epoch = 0;
+    private int settled = 0;
+    final IndexedMinHeap heap;
+
+    /**
+     * Create a workspace for graphs of up to capacity vertices.
+     * @param capacity The number of vertices.
+     */
+    SearchWorkspace(int capacity) {
+        seen = new int[capacity];
+        closed = new int[capacity];
+        gScore = new double[capacity];
+        hScore = new double[capacity];
+        parent = new int[capacity];
+        heap = new IndexedMinHeap(capacity);
+    }
+
+    /**
+     * Returns the calling thread's forward workspace, reset and large enough for n vertices.
+     * @param n The number of vertices of the graph about to be searched.
+     */
+    static SearchWorkspace get(int n) {
+        return get(n, FORWARD);
+    }
+
+    /**
+     * Returns the calling thread's workspace in the given slot, reset and large enough for
+     * n vertices.
+     * @param n The number of vertices of the graph about to be searched.
+     * @param slot FORWARD or BACKWARD.
+     */
+    static SearchWorkspace get(int n, int slot) {
+        SearchWorkspace[] mine = PER_THREAD.get();
+        if (mine[slot] == null || mine[slot].capacity() < n) {
+            mine[slot] = new SearchWorkspace(n);
+        }
+        mine[slot].reset();
+        return mine[slot];
+    }
+
+    /**
+     * Returns how many vertices the calling thread's workspaces have settled since they
+     * were last handed out; used by RouterBenchmark.
+     */
+    static int settledByCurrentThread() {
+        int total = 0;
+        for (SearchWorkspace w : PER_THREAD.get()) {
+            total += w == null ? 0 : w.settled;
+        }
+        return total;
+    }
+
+    int capacity() { return seen.length; }
+
+    /** Forgets the previous search. */
+    void reset() {
+        heap.clear();
+        settled = 0;
+        epoch++;
+        if (epoch == 0) {
+            /* The stamps wrapped around; old stamps could now look current. */
+            Arrays.fill(seen, 0);
+            Arrays.fill(closed, 0);
+            epoch = 1;
+        }
+    }
+
+    /** Returns whether v has been reached in this search. */
+    boolean reached(int v) { return seen[v] == epoch; }
+
+    /** Returns the best known distance to v, or +infinity if v has not been reached. */
+    double g(int v) { return seen[v] == epoch ? gScore[v] : Double.POSITIVE_INFINITY; }
+
+    /** Returns the predecessor of v on its best known path, or -1 for the source. */
+    int parent(int v) { return parent[v]; }
+
+    /**
+     * Records a better path to v. The first time v is reached its heuristic is unset (NaN).
+     * @param v The vertex reached.
+     * @param g The distance of the new path.
+     * @param from The predecessor of v on the new path, or -1 for the source.
+     */
+    void reach(int v, double g, int from) {
+        if (seen[v] != epoch) {
+            seen[v] = epoch;
+            hScore[v] = Double.NaN;
+        }
+        gScore[v] = g;
+        parent[v] = from;
+    }
+
+    /** Returns the cached heuristic (or potential) of a reached vertex, or NaN if unset. */
+    double h(int v) { return hScore[v]; }
+
+    void setH(int v, double h) { hScore[v] = h; }
+
+    boolean isClosed(int v) { return closed[v] == epoch; }
+
+    void close(int v) {
+        closed[v] = epoch;
+        settled++;
+    }
+}
@@ -0,0 +1,329 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Static R-tree over the road segments of a GraphDB, answering which segment passes
+ * closest to a point and where on it the point projects. The tree is bulk-loaded with
+ * Sort-Tile-Recursive packing, so every node but the last of each level is full and
+ * sibling boxes barely overlap.
+ * Distances are measured in a plane local to the query point, with longitudes scaled by
+ * the cosine of its latitude; at city scale this ranks segments the same way great-circle
+ * distances would, and it makes the projection onto a segment a closed form.
+ * A two-way road is stored once: a segment is kept for edge v -> w if v < w, or if the
+ * graph has no edge back from w to v. Queries can skip the segments that leave the
+ * graph's largest strongly connected component.
+ */
+public class SegmentIndex {
+    /** Children per node. */
+    private static final int FANOUT = 16;
+
+    /** Edge slot of every segment, in the order the leaves list them, and its source. */
+    private final int[] edges;
+    private final int[] sources;
+    /** Whether both ends of each segment are in the largest strongly connected component. */
+    private final boolean[] inLargest;
+    private final double[] fromLons;
+    private final double[] fromLats;
+    private final double[] toLons;
+    private final double[] toLats;
+    /**
+     * Node boxes, leaves first and the root last. The children of node i are
+     * first[i] .. first[i] + count[i] - 1, which index segments if i < numLeaves and nodes
+     * otherwise.
+     */
+    private final double[] minLons;
+    private final double[] minLats;
+    private final double[] maxLons;
+    private final double[] maxLats;
+    private final int[] first;
+    private final int[] count;
+    private final int numLeaves;
+
+    /** Where a point lands when it is snapped onto its closest segment. */
+    static class Snap {
+        /** The edge slot of the segment, pointing from vertex from to vertex to. */
+        final int edge;
+        final int from;
+        final int to;
+        /** How far along the segment the point lies, from 0 at from to 1 at to. */
+        final double fraction;
+        /** The projected point. */
+        final double lon;
+        final double lat;
+        /** The great-circle distance from the query point to the projected point, in miles. */
+        final double distance;
+
+        private Snap(int edge, int from, int to, double fraction, double lon, double lat,
+                     double distance) {
+            this.edge = edge;
+            this.from = from;
+            this.to = to;
+            this.fraction = fraction;
+            this.lon = lon;
+            this.lat = lat;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Builds the tree over the segments of a graph whose adjacency arrays and components
+     * are in place.
+     * @param g The graph to index.
+     */
+    SegmentIndex(GraphDB g) {
+        int n = 0;
+        int[] kept = new int[16];
+        for (int v = 0; v < g.numVertices(); v++) {
+            for (int e = g.edgeBegin(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                if (v < w || g.findEdge(w, v) < 0) {
+                    if (n == kept.length) {
+                        kept = Arrays.copyOf(kept, 2 * n);
+                    }
+                    kept[n++] = e;
+                }
+            }
+        }
+        int[] edgeSources = new int[g.numEdges()];
+        for (int v = 0; v < g.numVertices(); v++) {
+            for (int e = g.edgeBegin(v); e < g.edgeEnd(v); e++) {
+                edgeSources[e] = v;
+            }
+        }
+
+        double[] centerLons = new double[n];
+        double[] centerLats = new double[n];
+        for (int i = 0; i < n; i++) {
+            int v = edgeSources[kept[i]];
+            int w = g.edgeTarget(kept[i]);
+            centerLons[i] = (g.lonAt(v) + g.lonAt(w)) / 2;
+            centerLats[i] = (g.latAt(v) + g.latAt(w)) / 2;
+        }
+        int[] order = pack(n, centerLons, centerLats);
+        edges = new int[n];
+        sources = new int[n];
+        inLargest = new boolean[n];
+        fromLons = new double[n];
+        fromLats = new double[n];
+        toLons = new double[n];
+        toLats = new double[n];
+        for (int i = 0; i < n; i++) {
+            int e = kept[order[i]];
+            int v = edgeSources[e];
+            int w = g.edgeTarget(e);
+            edges[i] = e;
+            sources[i] = v;
+            inLargest[i] = g.components().inLargest(v) && g.components().inLargest(w);
+            fromLons[i] = g.lonAt(v);
+            fromLats[i] = g.latAt(v);
+            toLons[i] = g.lonAt(w);
+            toLats[i] = g.latAt(w);
+        }
+
+        int levelSize = (n + FANOUT - 1) / FANOUT;
+        int total = 0;
+        for (int size = levelSize; ; size = (size + FANOUT - 1) / FANOUT) {
+            total += size;
+            if (size <= 1) {
+                break;
+            }
+        }
+        minLons = new double[total];
+        minLats = new double[total];
+        maxLons = new double[total];
+        maxLats = new double[total];
+        first = new int[total];
+        count = new int[total];
+        numLeaves = levelSize;
+
+        for (int i = 0; i < levelSize; i++) {
+            first[i] = i * FANOUT;
+            count[i] = Math.min(FANOUT, n - first[i]);
+            minLons[i] = minLats[i] = Double.POSITIVE_INFINITY;
+            maxLons[i] = maxLats[i] = Double.NEGATIVE_INFINITY;
+            for (int s = first[i]; s < first[i] + count[i]; s++) {
+                minLons[i] = Math.min(minLons[i], Math.min(fromLons[s], toLons[s]));
+                minLats[i] = Math.min(minLats[i], Math.min(fromLats[s], toLats[s]));
+                maxLons[i] = Math.max(maxLons[i], Math.max(fromLons[s], toLons[s]));
+                maxLats[i] = Math.max(maxLats[i], Math.max(fromLats[s], toLats[s]));
+            }
+        }
+        int levelStart = 0;
+        while (levelSize > 1) {
+            packLevel(levelStart, levelSize);
+            int parentStart = levelStart + levelSize;
+            int parents = (levelSize + FANOUT - 1) / FANOUT;
+            for (int p = 0; p < parents; p++) {
+                int i = parentStart + p;
+                first[i] = levelStart + p * FANOUT;
+                count[i] = Math.min(FANOUT, levelSize - p * FANOUT);
+                minLons[i] = minLats[i] = Double.POSITIVE_INFINITY;
+                maxLons[i] = maxLats[i] = Double.NEGATIVE_INFINITY;
+                for (int c = first[i]; c < first[i] + count[i]; c++) {
+                    minLons[i] = Math.min(minLons[i], minLons[c]);
+                    minLats[i] = Math.min(minLats[i], minLats[c]);
+                    maxLons[i] = Math.max(maxLons[i], maxLons[c]);
+                    maxLats[i] = Math.max(maxLats[i], maxLats[c]);
+                }
+            }
+            levelStart = parentStart;
+            levelSize = parents;
+        }
+    }
+
+    /**
+     * Returns the Sort-Tile-Recursive order of n items: sorted by longitude into vertical
+     * slices of about sqrt(n / FANOUT) runs each, and by latitude within each slice.
+     */
+    private static int[] pack(int n, double[] lons, double[] lats) {
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> lons[i]));
+        int runs = (n + FANOUT - 1) / FANOUT;
+        int sliceSize = FANOUT * (int) Math.ceil(Math.sqrt(runs));
+        for (int lo = 0; lo < n; lo += sliceSize) {
+            Arrays.sort(order, lo, Math.min(n, lo + sliceSize),
+                    Comparator.comparingDouble(i -> lats[i]));
+        }
+        int[] res = new int[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = order[i];
+        }
+        return res;
+    }
+
+    /** Reorders the nodes of one level in place so that runs of FANOUT are compact. */
+    private void packLevel(int start, int size) {
+        double[] centerLons = new double[size];
+        double[] centerLats = new double[size];
+        for (int i = 0; i < size; i++) {
+            centerLons[i] = (minLons[start + i] + maxLons[start + i]) / 2;
+            centerLats[i] = (minLats[start + i] + maxLats[start + i]) / 2;
+        }
+        int[] order = pack(size, centerLons, centerLats);
+        permute(minLons, start, order);
+        permute(minLats, start, order);
+        permute(maxLons, start, order);
+        permute(maxLats, start, order);
+        int[] oldFirst = Arrays.copyOfRange(first, start, start + size);
+        int[] oldCount = Arrays.copyOfRange(count, start, start + size);
+        for (int i = 0; i < size; i++) {
+            first[start + i] = oldFirst[order[i]];
+            count[start + i] = oldCount[order[i]];
+        }
+    }
+
+    private static void permute(double[] a, int start, int[] order) {
+        double[] old = Arrays.copyOfRange(a, start, start + order.length);
+        for (int i = 0; i < order.length; i++) {
+            a[start + i] = old[order[i]];
+        }
+    }
+
+    /** Returns the number of segments in the index. */
+    int size() { return edges.length; }
+
+    /**
+     * Returns the segment closest to a point, with ties going to the lowest edge slot.
+     * @param g The graph the index was built over.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @param largestOnly Whether to consider only segments within the largest strongly
+     *                    connected component.
+     * @return The snap, or null if there is no such segment.
+     */
+    Snap nearest(GraphDB g, double lon, double lat, boolean largestOnly) {
+        if (edges.length == 0) {
+            return null;
+        }
+        double cosLat = Math.cos(Math.toRadians(lat));
+        /* Best-first search: a binary heap of nodes keyed by the squared distance to
+         * their box. */
+        int[] heapNodes = new int[64];
+        double[] heapKeys = new double[64];
+        int heapSize = 1;
+        heapNodes[0] = minLons.length - 1;
+        heapKeys[0] = 0;
+        int best = -1;
+        double bestKey = Double.POSITIVE_INFINITY;
+        double bestFraction = 0;
+
+        while (heapSize > 0 && heapKeys[0] <= bestKey) {
+            int node = heapNodes[0];
+            heapSize--;
+            int movedNode = heapNodes[heapSize];
+            double movedKey = heapKeys[heapSize];
+            int i = 0;
+            while (2 * i + 1 < heapSize) {
+                int c = 2 * i + 1;
+                if (c + 1 < heapSize && heapKeys[c + 1] < heapKeys[c]) {
+                    c++;
+                }
+                if (heapKeys[c] >= movedKey) {
+                    break;
+                }
+                heapNodes[i] = heapNodes[c];
+                heapKeys[i] = heapKeys[c];
+                i = c;
+            }
+            heapNodes[i] = movedNode;
+            heapKeys[i] = movedKey;
+
+            int end = first[node] + count[node];
+            if (node < numLeaves) {
+                for (int s = first[node]; s < end; s++) {
+                    if (largestOnly && !inLargest[s]) {
+                        continue;
+                    }
+                    double ax = (fromLons[s] - lon) * cosLat;
+                    double ay = fromLats[s] - lat;
+                    double dx = (toLons[s] - fromLons[s]) * cosLat;
+                    double dy = toLats[s] - fromLats[s];
+                    double lengthSq = dx * dx + dy * dy;
+                    double t = lengthSq == 0 ? 0
+                            : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSq));
+                    double px = ax + t * dx;
+                    double py = ay + t * dy;
+                    double key = px * px + py * py;
+                    if (key < bestKey || key == bestKey && edges[s] < edges[best]) {
+                        best = s;
+                        bestKey = key;
+                        bestFraction = t;
+                    }
+                }
+                continue;
+            }
+            for (int c = first[node]; c < end; c++) {
+                double dx = Math.max(0, Math.max(minLons[c] - lon, lon - maxLons[c])) * cosLat;
+                double dy = Math.max(0, Math.max(minLats[c] - lat, lat - maxLats[c]));
+                double key = dx * dx + dy * dy;
+                if (key > bestKey) {
+                    continue;
+                }
+                if (heapSize == heapNodes.length) {
+                    heapNodes = Arrays.copyOf(heapNodes, 2 * heapSize);
+                    heapKeys = Arrays.copyOf(heapKeys, 2 * heapSize);
+                }
+                int j = heapSize++;
+                while (j > 0 && heapKeys[(j - 1) / 2] > key) {
+                    heapNodes[j] = heapNodes[(j - 1) / 2];
+                    heapKeys[j] = heapKeys[(j - 1) / 2];
+                    j = (j - 1) / 2;
+                }
+                heapNodes[j] = c;
+                heapKeys[j] = key;
+            }
+        }
+
+        if (best < 0) {
+            return null;
+        }
+        double snappedLon = fromLons[best] + bestFraction * (toLons[best] - fromLons[best]);
+        double snappedLat = fromLats[best] + bestFraction * (toLats[best] - fromLats[best]);
+        int e = edges[best];
+        return new Snap(e, sources[best], g.edgeTarget(e), bestFraction, snappedLon, snappedLat,
+                GraphDB.distance(lon, lat, snappedLon, snappedLat));
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the maxspeed and highway tags of a way into the speed used for travel-time
+ * routing. A parsable maxspeed wins; OSM reads a bare number as km/h and also accepts
+ * "mph", "km/h", "kmh" and "knots" suffixes, and for a list like "50;30" the first value
+ * counts. Ways without a usable maxspeed get a default speed for their highway class.
+ */
+public class SpeedProfile {
+    /** Speed of a way whose highway class has no default, in miles per hour. */
+    static final double FALLBACK_MPH = 25;
+    private static final double MPH_PER_KMH = 0.621371;
+    private static final double MPH_PER_KNOT = 1.150779;
+    private static final Map<String, Double> DEFAULT_MPH = new HashMap<>();
+
+    static {
+        DEFAULT_MPH.put("motorway", 65.0);
+        DEFAULT_MPH.put("trunk", 55.0);
+        DEFAULT_MPH.put("primary", 40.0);
+        DEFAULT_MPH.put("secondary", 35.0);
+        DEFAULT_MPH.put("tertiary", 30.0);
+        DEFAULT_MPH.put("unclassified", 25.0);
+        DEFAULT_MPH.put("residential", 25.0);
+        DEFAULT_MPH.put("living_street", 10.0);
+        DEFAULT_MPH.put("motorway_link", 45.0);
+        DEFAULT_MPH.put("trunk_link", 35.0);
+        DEFAULT_MPH.put("primary_link", 30.0);
+        DEFAULT_MPH.put("secondary_link", 25.0);
+        DEFAULT_MPH.put("tertiary_link", 20.0);
+    }
+
+    /**
+     * Returns the speed of a way.
+     * @param tags The tags of the way, as stored in Way.extraInfo.
+     * @return The speed in miles per hour, always positive.
+     */
+    static double mph(Map<String, String> tags) {
+        double tagged = parseMaxspeed(tags.get("maxspeed"));
+        if (tagged > 0) {
+            return tagged;
+        }
+        Double byClass = DEFAULT_MPH.get(tags.get("highway"));
+        return byClass == null ? FALLBACK_MPH : byClass;
+    }
+
+    /**
+     * Parses a maxspeed value.
+     * @param value The tag value, possibly null.
+     * @return The speed in miles per hour, or -1 if the value is missing or not a speed
+     * (such as "none" or "signals").
+     */
+    static double parseMaxspeed(String value) {
+        if (value == null) {
+            return -1;
+        }
+        String first = value.split(";")[0].trim().toLowerCase();
+        double factor = MPH_PER_KMH;
+        if (first.endsWith("mph")) {
+            factor = 1;
+            first = first.substring(0, first.length() - 3);
+        } else if (first.endsWith("km/h")) {
+            first = first.substring(0, first.length() - 4);
+        } else if (first.endsWith("kmh")) {
+            first = first.substring(0, first.length() - 3);
+        } else if (first.endsWith("knots")) {
+            factor = MPH_PER_KNOT;
+            first = first.substring(0, first.length() - 5);
+        }
+        try {
+            double speed = Double.parseDouble(first.trim()) * factor;
+            return speed > 0 && !Double.isInfinite(speed) ? speed : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.Arrays;
+
+/**
+ * The strongly connected components of a GraphDB: the largest sets of vertices that can
+ * all reach one another. They are found with Tarjan's algorithm, run iteratively with an
+ * explicit stack so long chains of vertices cannot overflow the call stack.
+ * Tarjan finishes a component only after every component it has an edge into, so the
+ * numbering is a reverse topological order: paths only ever lead to components with
+ * smaller or equal numbers. With that and the components no edge leaves (sinks, such as
+ * the end of a one-way street into a closed network) or enters (sources), many
+ * unreachable pairs are provably unreachable without a search.
+ */
+public class StrongComponents {
+    private final int[] component;
+    private final int[] sizes;
+    private final boolean[] leaves;
+    private final boolean[] entered;
+    private final int largest;
+
+    /**
+     * Labels the components of a graph whose adjacency arrays are in place.
+     * @param g The graph.
+     */
+    StrongComponents(GraphDB g) {
+        int n = g.numVertices();
+        component = new int[n];
+        int[] order = new int[n];
+        int[] low = new int[n];
+        int[] stack = new int[n];
+        boolean[] onStack = new boolean[n];
+        /* The depth-first call stack: a vertex and the next edge slot to follow from it. */
+        int[] callVertex = new int[n];
+        int[] callEdge = new int[n];
+        int[] sizeOf = new int[Math.max(1, n)];
+        int visited = 0;
+        int stackSize = 0;
+        int count = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (order[root] != 0) {
+                continue;
+            }
+            int depth = 0;
+            callVertex[0] = root;
+            callEdge[0] = g.edgeBegin(root);
+            order[root] = low[root] = ++visited;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            while (depth >= 0) {
+                int v = callVertex[depth];
+                if (callEdge[depth] < g.edgeEnd(v)) {
+                    int w = g.edgeTarget(callEdge[depth]++);
+                    if (order[w] == 0) {
+                        order[w] = low[w] = ++visited;
+                        stack[stackSize++] = w;
+                        onStack[w] = true;
+                        depth++;
+                        callVertex[depth] = w;
+                        callEdge[depth] = g.edgeBegin(w);
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], order[w]);
+                    }
+                    continue;
+                }
+                if (low[v] == order[v]) {
+                    int w;
+                    do {
+                        w = stack[--stackSize];
+                        onStack[w] = false;
+                        component[w] = count;
+                        sizeOf[count]++;
+                    } while (w != v);
+                    count++;
+                }
+                depth--;
+                if (depth >= 0) {
+                    int parent = callVertex[depth];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+
+        sizes = Arrays.copyOf(sizeOf, count);
+        leaves = new boolean[count];
+        entered = new boolean[count];
+        for (int v = 0; v < n; v++) {
+            for (int e = g.edgeBegin(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                if (component[v] != component[w]) {
+                    leaves[component[v]] = true;
+                    entered[component[w]] = true;
+                }
+            }
+        }
+        int best = -1;
+        for (int c = 0; c < count; c++) {
+            if (best < 0 || sizes[c] > sizes[best]) {
+                best = c;
+            }
+        }
+        largest = best;
+    }
+
+    /** Returns the number of components. */
+    int count() { return sizes.length; }
+
+    /** Returns the component of vertex v, numbered in reverse topological order. */
+    int componentOf(int v) { return component[v]; }
+
+    /** Returns the number of vertices in component c. */
+    int size(int c) { return sizes[c]; }
+
+    /** Returns the component with the most vertices, or -1 if the graph is empty. */
+    int largest() { return largest; }
+
+    /** Returns whether vertex v belongs to the largest component. */
+    boolean inLargest(int v) { return component[v] == largest; }
+
+    /**
+     * Returns whether the labelling alone proves that no path leads from start to dest:
+     * they are in different components, and dest's component comes later in the numbering,
+     * or start's component has no edge out, or dest's component has no edge in.
+     * A false result does not mean dest is reachable.
+     */
+    boolean unreachable(int start, int dest) {
+        int from = component[start];
+        int to = component[dest];
+        return from != to && (from < to || !leaves[from] || !entered[to]);
+    }
+}
@@ -0,0 +1,170 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that A* over the chain overlay returns exactly the paths of A* over every vertex,
+ * on the tiny map and on a hand-made one whose shape points exercise the special cases:
+ * starts and destinations in the middle of chains, both on the same chain, and a ring with
+ * no junction at all. On a map full of equally short routes, the overlay only promises the
+ * same cost, while the default search keeps returning the full-graph paths.
+ */
+public class TestChainOverlay {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    /**
+     * A street 1-2-3-4-5 crossed at 3 by 6-3-7, with a loop 5-8-9-5 at its end, and a
+     * separate closed ring 10-11-12-13.
+     */
+    private static final String OSM = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\" generator=\"hand\">\n"
+            + " <node id=\"1\" lat=\"38.0\" lon=\"0.0\"/>\n"
+            + " <node id=\"2\" lat=\"38.0\" lon=\"0.01\"/>\n"
+            + " <node id=\"3\" lat=\"38.0\" lon=\"0.02\"/>\n"
+            + " <node id=\"4\" lat=\"38.001\" lon=\"0.03\"/>\n"
+            + " <node id=\"5\" lat=\"38.0\" lon=\"0.04\"/>\n"
+            + " <node id=\"6\" lat=\"38.01\" lon=\"0.02\"/>\n"
+            + " <node id=\"7\" lat=\"37.99\" lon=\"0.02\"/>\n"
+            + " <node id=\"8\" lat=\"38.01\" lon=\"0.05\"/>\n"
+            + " <node id=\"9\" lat=\"37.99\" lon=\"0.05\"/>\n"
+            + " <node id=\"10\" lat=\"38.1\" lon=\"0.0\"/>\n"
+            + " <node id=\"11\" lat=\"38.1\" lon=\"0.01\"/>\n"
+            + " <node id=\"12\" lat=\"38.11\" lon=\"0.01\"/>\n"
+            + " <node id=\"13\" lat=\"38.11\" lon=\"0.0\"/>\n"
+            + " <way id=\"1\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/><nd ref=\"4\"/>"
+            + "<nd ref=\"5\"/><tag k=\"highway\" v=\"residential\"/></way>\n"
+            + " <way id=\"2\"><nd ref=\"6\"/><nd ref=\"3\"/><nd ref=\"7\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+            + " <way id=\"3\"><nd ref=\"5\"/><nd ref=\"8\"/><nd ref=\"9\"/><nd ref=\"5\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+            + " <way id=\"4\"><nd ref=\"10\"/><nd ref=\"11\"/><nd ref=\"12\"/><nd ref=\"13\"/>"
+            + "<nd ref=\"10\"/><tag k=\"highway\" v=\"residential\"/></way>\n"
+            + "</osm>\n";
+    /**
+     * Two mirror-image roads from 2 to 4 around the equator, through 11 and 21, so every
+     * route between their ends ties with its mirror image, and spurs 1 and 5 at the ends.
+     */
+    private static final String TIES = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\" generator=\"hand\">\n"
+            + " <node id=\"1\" lat=\"0.0\" lon=\"-0.01\"/>\n"
+            + " <node id=\"2\" lat=\"0.0\" lon=\"0.0\"/>\n"
+            + " <node id=\"4\" lat=\"0.0\" lon=\"0.02\"/>\n"
+            + " <node id=\"5\" lat=\"0.0\" lon=\"0.03\"/>\n"
+            + " <node id=\"10\" lat=\"0.005\" lon=\"0.005\"/>\n"
+            + " <node id=\"11\" lat=\"0.01\" lon=\"0.01\"/>\n"
+            + " <node id=\"12\" lat=\"0.005\" lon=\"0.015\"/>\n"
+            + " <node id=\"20\" lat=\"-0.005\" lon=\"0.005\"/>\n"
+            + " <node id=\"21\" lat=\"-0.01\" lon=\"0.01\"/>\n"
+            + " <node id=\"22\" lat=\"-0.005\" lon=\"0.015\"/>\n"
+            + " <way id=\"1\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"10\"/><nd ref=\"11\"/>"
+            + "<nd ref=\"12\"/><nd ref=\"4\"/><nd ref=\"5\"/><tag k=\"highway\" v=\"residential\"/>"
+            + "</way>\n"
+            + " <way id=\"2\"><nd ref=\"2\"/><nd ref=\"20\"/><nd ref=\"21\"/><nd ref=\"22\"/>"
+            + "<nd ref=\"4\"/><tag k=\"highway\" v=\"residential\"/></way>\n"
+            + "</osm>\n";
+    private static GraphDB graphTiny;
+    private static GraphDB graphHand;
+    private static GraphDB graphTies;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        graphHand = parse(OSM);
+        graphTies = parse(TIES);
+        initialized = true;
+    }
+
+    private static GraphDB parse(String osm) throws Exception {
+        File file = File.createTempFile("chains", ".osm.xml");
+        try {
+            try (Writer out = new FileWriter(file)) {
+                out.write(osm);
+            }
+            return new GraphDB(file.getPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCoreVertices() {
+        ChainOverlay chains = graphHand.chains();
+        assertFalse(chains.isCore(graphHand.indexOf(2)));
+        assertFalse(chains.isCore(graphHand.indexOf(4)));
+        assertTrue(chains.isCore(graphHand.indexOf(1)));
+        assertTrue(chains.isCore(graphHand.indexOf(3)));
+        assertTrue(chains.isCore(graphHand.indexOf(5)));
+        /* 1, 3, 5, 6 and 7, plus one promoted vertex of the ring. */
+        assertEquals(6, chains.numCoreVertices());
+        assertTrue(chains.numChains() < graphHand.numEdges());
+    }
+
+    @Test
+    public void testHandMadePaths() {
+        assertEquals(Arrays.asList(2L, 3L, 4L), path(graphHand, 2, 4));
+        assertEquals(Arrays.asList(8L, 9L), path(graphHand, 8, 9));
+        assertEquals(Arrays.asList(4L, 5L, 8L), path(graphHand, 4, 8));
+        assertEquals(Arrays.asList(12L, 13L, 10L), path(graphHand, 12, 10));
+        assertEquals(Arrays.asList(2L), path(graphHand, 2, 2));
+        assertNull(path(graphHand, 2, 11));
+        assertAllPairsMatch(graphHand);
+    }
+
+    @Test
+    public void testTinyPaths() {
+        assertAllPairsMatch(graphTiny);
+    }
+
+    @Test
+    public void testTiesKeepFullGraphPaths() {
+        GraphDB g = graphTies;
+        for (GraphDB.Metric metric : GraphDB.Metric.values()) {
+            for (int s = 0; s < g.numVertices(); s++) {
+                for (int d = 0; d < g.numVertices(); d++) {
+                    double[] q = {g.lonAt(s), g.latAt(s), g.lonAt(d), g.latAt(d)};
+                    List<Long> full = Router.aStar(g, s, d, null, metric);
+                    /* The default search and ASTAR return A* over every vertex, ties and all. */
+                    assertEquals(s + " -> " + d, full,
+                            Router.shortestPath(g, q[0], q[1], q[2], q[3], metric));
+                    assertEquals(s + " -> " + d, full, Router.shortestPath(g, q[0], q[1], q[2],
+                            q[3], Router.Algorithm.ASTAR, metric));
+                    assertEquals(s + " -> " + d, RouterBenchmark.pathCost(g, full, metric),
+                            RouterBenchmark.pathCost(g, Router.shortestPath(g, q[0], q[1], q[2],
+                                    q[3], Router.Algorithm.CHAIN_ASTAR, metric), metric), 1e-9);
+                }
+            }
+        }
+        /* The two roads from 2 to 4 really do tie. */
+        assertEquals(RouterBenchmark.pathLength(g, Arrays.asList(2L, 10L, 11L, 12L, 4L)),
+                RouterBenchmark.pathLength(g, Arrays.asList(2L, 20L, 21L, 22L, 4L)), 0);
+    }
+
+    private static List<Long> path(GraphDB g, long from, long to) {
+        return g.chains().shortestPath(g, g.indexOf(from), g.indexOf(to),
+                GraphDB.Metric.DISTANCE);
+    }
+
+    private static void assertAllPairsMatch(GraphDB g) {
+        for (GraphDB.Metric metric : GraphDB.Metric.values()) {
+            for (int s = 0; s < g.numVertices(); s++) {
+                for (int d = 0; d < g.numVertices(); d++) {
+                    assertEquals(s + " -> " + d, Router.aStar(g, s, d, null, metric),
+                            g.chains().shortestPath(g, s, d, metric));
+                }
+            }
+        }
+    }
+}
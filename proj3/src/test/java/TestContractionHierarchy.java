@@ -0,0 +1,126 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks contraction hierarchy routes and distance matrices against plain A* between every
+ * pair of vertices of the tiny graph, and that a saved hierarchy loads back with the same
+ * answers but is rejected once the map's edge weights change.
+ */
+public class TestContractionHierarchy {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testAllPairs() {
+        assertAllPairs(HierarchyBuilder.build(graphTiny, GraphDB.Metric.DISTANCE));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        ContractionHierarchy hierarchy =
+                HierarchyBuilder.build(graphTiny, GraphDB.Metric.DISTANCE);
+        File file = File.createTempFile("tiny", ".ch");
+        try {
+            hierarchy.save(graphTiny, file);
+            ContractionHierarchy loaded =
+                    ContractionHierarchy.load(graphTiny, GraphDB.Metric.DISTANCE, file);
+            assertNotNull(loaded);
+            assertEquals(hierarchy.numShortcuts(), loaded.numShortcuts());
+            assertAllPairs(loaded);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRejectedAfterWeightEdit() throws Exception {
+        String osm = new String(Files.readAllBytes(Paths.get(OSM_DB_PATH_TINY)),
+                StandardCharsets.UTF_8);
+        File file = File.createTempFile("tiny", ".ch");
+        try {
+            HierarchyBuilder.build(graphTiny, GraphDB.Metric.TIME).save(graphTiny, file);
+            assertNotNull(ContractionHierarchy.load(graphTiny, GraphDB.Metric.TIME, file));
+            /* Same topology, but a different speed limit or a moved node. */
+            assertNull(ContractionHierarchy.load(edited(osm.replace("25 mph", "35 mph")),
+                    GraphDB.Metric.TIME, file));
+            assertNull(ContractionHierarchy.load(edited(osm.replace("lat=\"38.5\" lon=\"0.5\"",
+                    "lat=\"38.5\" lon=\"0.51\"")), GraphDB.Metric.TIME, file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Returns the graph of the given OSM text. */
+    private static GraphDB edited(String osm) throws Exception {
+        File file = File.createTempFile("edited", ".osm.xml");
+        try {
+            Files.write(file.toPath(), osm.getBytes(StandardCharsets.UTF_8));
+            return new GraphDB(file.getPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDistanceMatrix() {
+        int n = graphTiny.numVertices();
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for (int v = 0; v < n; v++) {
+            lons[v] = graphTiny.lonAt(v);
+            lats[v] = graphTiny.latAt(v);
+        }
+        double[] matrix = Router.distanceMatrix(graphTiny, lons, lats);
+        assertEquals(n * n, matrix.length);
+        for (int v = 0; v < n; v++) {
+            for (int t = 0; t < n; t++) {
+                double length = RouterBenchmark.pathLength(graphTiny,
+                        Router.shortestPath(graphTiny, lons[v], lats[v], lons[t], lats[t]));
+                assertEquals(v + " -> " + t, length < 0 ? Double.POSITIVE_INFINITY : length,
+                        matrix[v * n + t], 1e-9);
+            }
+        }
+    }
+
+    private static void assertAllPairs(ContractionHierarchy hierarchy) {
+        int n = graphTiny.numVertices();
+        for (int v = 0; v < n; v++) {
+            for (int t = 0; t < n; t++) {
+                List<Long> expected = Router.shortestPath(graphTiny,
+                        graphTiny.lonAt(v), graphTiny.latAt(v),
+                        graphTiny.lonAt(t), graphTiny.latAt(t));
+                List<Long> actual = hierarchy.shortestPath(graphTiny, v, t);
+                if (expected == null) {
+                    assertNull(v + " -> " + t, actual);
+                    continue;
+                }
+                assertNotNull(v + " -> " + t, actual);
+                assertEquals(v + " -> " + t, graphTiny.idAt(v), (long) actual.get(0));
+                assertEquals(v + " -> " + t, graphTiny.idAt(t),
+                        (long) actual.get(actual.size() - 1));
+                assertEquals(v + " -> " + t, RouterBenchmark.pathLength(graphTiny, expected),
+                        RouterBenchmark.pathLength(graphTiny, actual), 1e-9);
+            }
+        }
+    }
+}
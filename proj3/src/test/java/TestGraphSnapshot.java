@@ -0,0 +1,198 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a graph loaded from its binary snapshot answers like the one parsed from the
+ * XML, and that a snapshot for a changed source, of another version, cut short, failing
+ * its checksum or with a corrupt body is rejected and rewritten. Each test works on its own copy of the tiny map,
+ * since the snapshot is kept next to the source file.
+ */
+public class TestGraphSnapshot {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private File source;
+
+    @Before
+    public void setUp() throws Exception {
+        source = File.createTempFile("snapshot", ".osm.xml");
+        Files.copy(new File(OSM_DB_PATH_TINY).toPath(), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @After
+    public void tearDown() {
+        GraphSnapshot.snapshotFor(source).delete();
+        source.delete();
+    }
+
+    /** Returns a graph filled from the snapshot, failing if it was rejected. */
+    private GraphDB loaded() {
+        GraphDB g = new GraphDB();
+        assertTrue(GraphSnapshot.load(g, source));
+        return g;
+    }
+
+    /** Asserts that both graphs have the same vertices, edges, ways and edge weights. */
+    private static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertEquals(expected.numVertices(), actual.numVertices());
+        assertEquals(expected.numEdges(), actual.numEdges());
+        assertEquals(expected.fingerprint(), actual.fingerprint());
+        for (int v = 0; v < expected.numVertices(); v++) {
+            assertEquals(expected.idAt(v), actual.idAt(v));
+            assertEquals(expected.lonAt(v), actual.lonAt(v), 0);
+            assertEquals(expected.latAt(v), actual.latAt(v), 0);
+            assertEquals(expected.edgeBegin(v), actual.edgeBegin(v));
+            assertEquals(expected.inEdgeBegin(v), actual.inEdgeBegin(v));
+        }
+        for (int e = 0; e < expected.numEdges(); e++) {
+            assertEquals(expected.edgeTarget(e), actual.edgeTarget(e));
+            assertEquals(expected.edgeWay(e), actual.edgeWay(e));
+            assertEquals(expected.getWayName(expected.edgeWay(e)),
+                    actual.getWayName(actual.edgeWay(e)));
+            for (GraphDB.Metric metric : GraphDB.Metric.values()) {
+                assertEquals(expected.edgeWeight(e, metric), actual.edgeWeight(e, metric), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+        GraphDB xml = new GraphDB(source.getPath());
+        GraphSnapshot.save(xml, source);
+        GraphDB snapshot = loaded();
+        assertSameGraph(xml, snapshot);
+
+        assertEquals(xml.closest(0.55, 38.45), snapshot.closest(0.55, 38.45));
+        assertEquals(xml.searchTriePrefix("a"), snapshot.searchTriePrefix("a"));
+        for (GraphDB.Metric metric : GraphDB.Metric.values()) {
+            assertEquals(Router.shortestPath(xml, 0.1, 38.1, 0.5, 38.5, metric),
+                    Router.shortestPath(snapshot, 0.1, 38.1, 0.5, 38.5, metric));
+            assertEquals(Router.shortestRoute(xml, 0.3, 38.4, 0.6, 38.45, metric).cost,
+                    Router.shortestRoute(snapshot, 0.3, 38.4, 0.6, 38.45, metric).cost, 0);
+        }
+    }
+
+    @Test
+    public void testTimeWeightsMatchXml() {
+        /* Travel times come from the way tags, which the snapshot restores after the CSR. */
+        GraphDB xml = new GraphDB(source.getPath(), true);
+        assertTrue(GraphSnapshot.snapshotFor(source).isFile());
+        GraphDB snapshot = new GraphDB(source.getPath(), true);
+        assertSameGraph(xml, snapshot);
+        GraphDB direct = loaded();
+        boolean differs = false;
+        for (int e = 0; e < xml.numEdges(); e++) {
+            assertEquals(xml.edgeWeight(e, GraphDB.Metric.TIME),
+                    direct.edgeWeight(e, GraphDB.Metric.TIME), 0);
+            differs |= xml.edgeWeight(e, GraphDB.Metric.TIME)
+                    != xml.edgeWeight(e, GraphDB.Metric.DISTANCE);
+        }
+        assertTrue(differs);
+        assertEquals(Router.shortestPath(xml, 0.4, 38.1, 0.5, 38.5, GraphDB.Metric.TIME),
+                Router.shortestPath(direct, 0.4, 38.1, 0.5, 38.5, GraphDB.Metric.TIME));
+    }
+
+    @Test
+    public void testStaleChecksum() throws IOException {
+        GraphSnapshot.save(new GraphDB(source.getPath()), source);
+        try (Writer out = new FileWriter(source, true)) {
+            out.write("<!-- edited -->\n");
+        }
+        assertFalse(GraphSnapshot.load(new GraphDB(), source));
+    }
+
+    @Test
+    public void testWrongVersion() throws IOException {
+        GraphSnapshot.save(new GraphDB(source.getPath()), source);
+        try (RandomAccessFile raf = new RandomAccessFile(GraphSnapshot.snapshotFor(source),
+                "rw")) {
+            raf.seek(4);
+            raf.writeInt(GraphSnapshot.VERSION + 1);
+        }
+        assertFalse(GraphSnapshot.load(new GraphDB(), source));
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        GraphSnapshot.save(new GraphDB(source.getPath()), source);
+        File snapshot = GraphSnapshot.snapshotFor(source);
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        assertFalse(GraphSnapshot.load(new GraphDB(), source));
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            raf.setLength(0);
+        }
+        assertFalse(GraphSnapshot.load(new GraphDB(), source));
+    }
+
+    @Test
+    public void testCorruptBodyIsRewritten() throws IOException {
+        GraphDB xml = new GraphDB(source.getPath(), true);
+        File snapshot = GraphSnapshot.snapshotFor(source);
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            /* The length of the vertex id array, right after the 20-byte header. */
+            raf.seek(20);
+            raf.writeInt(-1);
+        }
+        assertFalse(GraphSnapshot.load(new GraphDB(), source));
+
+        /* The constructor falls back to the XML and writes a good snapshot again. */
+        assertSameGraph(xml, new GraphDB(source.getPath(), true));
+        assertSameGraph(xml, loaded());
+    }
+
+    @Test
+    public void testFlippedBitFailsChecksum() throws IOException {
+        GraphDB xml = new GraphDB(source.getPath(), true);
+        File snapshot = GraphSnapshot.snapshotFor(source);
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            /* A byte of the first latitude: the body still parses, with a wrong value. */
+            long pos = 20 + 2 * (4 + 8L * xml.numVertices()) + 4 + 3;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 1);
+        }
+        assertFalse(GraphSnapshot.load(new GraphDB(), source));
+        assertSameGraph(xml, new GraphDB(source.getPath(), true));
+    }
+
+    @Test
+    public void testCorruptLateSectionFallsBackToXml() throws IOException {
+        GraphDB xml = new GraphDB(source.getPath(), true);
+        File snapshot = GraphSnapshot.snapshotFor(source);
+        int n = xml.numVertices();
+        int m = xml.numEdges();
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            /* The number of ways, after every CSR array: the CSR decodes, then reading the
+             * ways runs off the end. The checksum is fixed up so that the parse is reached. */
+            raf.seek(20 + 3 * (4 + 8L * n) + (4 + 4L * (n + 1)) + (4 + 4L * m) + (4 + 8L * m));
+            raf.writeInt(Integer.MAX_VALUE);
+            byte[] content = new byte[(int) raf.length() - 12];
+            raf.seek(0);
+            raf.readFully(content);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            raf.writeLong(crc.getValue());
+        }
+        GraphDB rejected = new GraphDB();
+        assertFalse(GraphSnapshot.load(rejected, source));
+
+        assertSameGraph(xml, new GraphDB(source.getPath(), true));
+        assertSameGraph(xml, loaded());
+    }
+}
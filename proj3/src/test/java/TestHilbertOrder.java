@@ -0,0 +1,103 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the Hilbert curve itself, and that a graph numbered along it has the same
+ * vertices, edges and routes as one numbered in file order.
+ */
+public class TestHilbertOrder {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB fileOrder;
+    private static GraphDB hilbertOrder;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        fileOrder = new GraphDB(OSM_DB_PATH_TINY);
+        hilbertOrder = new GraphDB(OSM_DB_PATH_TINY, false, true);
+        initialized = true;
+    }
+
+    @Test
+    public void testCurveVisitsNeighbouringCells() {
+        /* The curve starts in a corner, so it fills each 2^k square there before leaving it. */
+        int side = 16;
+        int[] xs = new int[side * side];
+        int[] ys = new int[side * side];
+        Set<Long> seen = new HashSet<>();
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                long d = HilbertOrder.index(x, y);
+                assertTrue(d < side * side);
+                assertTrue(seen.add(d));
+                xs[(int) d] = x;
+                ys[(int) d] = y;
+            }
+        }
+        for (int d = 1; d < side * side; d++) {
+            assertEquals(1, Math.abs(xs[d] - xs[d - 1]) + Math.abs(ys[d] - ys[d - 1]));
+        }
+    }
+
+    @Test
+    public void testSameGraph() {
+        assertEquals(fileOrder.numVertices(), hilbertOrder.numVertices());
+        assertEquals(fileOrder.numEdges(), hilbertOrder.numEdges());
+        for (long v : fileOrder.vertices()) {
+            assertEquals(fileOrder.lon(v), hilbertOrder.lon(v), 0);
+            assertEquals(fileOrder.lat(v), hilbertOrder.lat(v), 0);
+            assertEquals(ids(fileOrder.adjacent(v)), ids(hilbertOrder.adjacent(v)));
+        }
+        for (int v = 1; v < hilbertOrder.numVertices(); v++) {
+            assertTrue(key(hilbertOrder, v - 1) <= key(hilbertOrder, v));
+        }
+    }
+
+    @Test
+    public void testSameRoutes() {
+        for (long s : fileOrder.vertices()) {
+            for (long d : fileOrder.vertices()) {
+                double[] q = {fileOrder.lon(s), fileOrder.lat(s), fileOrder.lon(d),
+                        fileOrder.lat(d)};
+                assertEquals(Router.shortestPath(fileOrder, q[0], q[1], q[2], q[3]),
+                        Router.shortestPath(hilbertOrder, q[0], q[1], q[2], q[3]));
+            }
+        }
+    }
+
+    private static List<Long> ids(Iterable<Long> vs) {
+        List<Long> res = new ArrayList<>();
+        for (long v : vs) {
+            res.add(v);
+        }
+        return res;
+    }
+
+    /** The curve position of vertex v, on the grid HilbertOrder.of lays over g. */
+    private static long key(GraphDB g, int v) {
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int w = 0; w < g.numVertices(); w++) {
+            minLon = Math.min(minLon, g.lonAt(w));
+            maxLon = Math.max(maxLon, g.lonAt(w));
+            minLat = Math.min(minLat, g.latAt(w));
+            maxLat = Math.max(maxLat, g.latAt(w));
+        }
+        int cells = (1 << HilbertOrder.BITS) - 1;
+        return HilbertOrder.index((int) ((g.lonAt(v) - minLon) * (cells / (maxLon - minLon))),
+                (int) ((g.latAt(v) - minLat) * (cells / (maxLat - minLat))));
+    }
+}
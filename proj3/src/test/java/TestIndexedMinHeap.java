@@ -0,0 +1,68 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Randomised check of the decrease-key heap used by Router against a plain array of keys.
+ */
+public class TestIndexedMinHeap {
+    private static final int CAPACITY = 300;
+
+    @Test
+    public void testAgainstArray() {
+        Random r = new Random(7);
+        IndexedMinHeap heap = new IndexedMinHeap(CAPACITY);
+        double[] expected = new double[CAPACITY];
+        Arrays.fill(expected, Double.NaN);
+
+        for (int step = 0; step < 100000; step++) {
+            if (r.nextInt(3) > 0) {
+                int id = r.nextInt(CAPACITY);
+                double key = r.nextInt(1000);
+                heap.insertOrDecrease(id, key);
+                if (Double.isNaN(expected[id]) || key < expected[id]) {
+                    expected[id] = key;
+                }
+            } else if (!heap.isEmpty()) {
+                double min = Double.POSITIVE_INFINITY;
+                for (double k : expected) {
+                    if (k < min) {
+                        min = k;
+                    }
+                }
+                assertEquals(min, heap.minKey(), 0);
+                int id = heap.poll();
+                assertEquals(min, expected[id], 0);
+                expected[id] = Double.NaN;
+                assertFalse(heap.contains(id));
+            }
+            if (step % 1000 == 0) {
+                int count = 0;
+                for (int id = 0; id < CAPACITY; id++) {
+                    assertEquals(!Double.isNaN(expected[id]), heap.contains(id));
+                    count += heap.contains(id) ? 1 : 0;
+                }
+                assertEquals(count, heap.size());
+            }
+        }
+    }
+
+    @Test
+    public void testClear() {
+        IndexedMinHeap heap = new IndexedMinHeap(10);
+        for (int id = 0; id < 10; id++) {
+            heap.insertOrDecrease(id, 10 - id);
+        }
+        assertEquals(9, heap.peek());
+        heap.clear();
+        assertTrue(heap.isEmpty());
+        for (int id = 0; id < 10; id++) {
+            assertFalse(heap.contains(id));
+        }
+    }
+}
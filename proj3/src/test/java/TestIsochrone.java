@@ -0,0 +1,80 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks isochrones on the tiny graph against A* distances, and the incremental convex hull
+ * against the points it was built from.
+ */
+public class TestIsochrone {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testTinyGraph() {
+        int n = graphTiny.numVertices();
+        for (int v = 0; v < n; v++) {
+            for (double budget : new double[] {0, 0.5, 5, 50}) {
+                Isochrone isochrone = Isochrone.compute(graphTiny, graphTiny.lonAt(v),
+                        graphTiny.latAt(v), budget);
+                Map<Long, Double> reached = new HashMap<>();
+                for (int i = 0; i < isochrone.nodes().length; i++) {
+                    reached.put(isochrone.nodes()[i], isochrone.distances()[i]);
+                }
+                for (int t = 0; t < n; t++) {
+                    double length = RouterBenchmark.pathLength(graphTiny,
+                            Router.shortestPath(graphTiny, graphTiny.lonAt(v), graphTiny.latAt(v),
+                                    graphTiny.lonAt(t), graphTiny.latAt(t)));
+                    long id = graphTiny.idAt(t);
+                    boolean expected = length >= 0 && length <= budget;
+                    assertEquals(v + " -> " + t, expected, reached.containsKey(id));
+                    if (expected) {
+                        assertEquals(length, reached.get(id), 1e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConvexHull() {
+        Random r = new Random(13);
+        for (int round = 0; round < 200; round++) {
+            ConvexHull hull = new ConvexHull();
+            int n = 1 + r.nextInt(60);
+            double[][] points = new double[n][];
+            for (int i = 0; i < n; i++) {
+                /* Coarse coordinates make duplicate and collinear points common. */
+                points[i] = new double[] {r.nextInt(10), r.nextInt(10)};
+                hull.add(points[i][0], points[i][1]);
+            }
+            for (double[] p : points) {
+                assertTrue(hull.contains(p[0], p[1]));
+            }
+            double[][] vertices = hull.vertices();
+            for (int i = 0; vertices.length >= 3 && i < vertices.length; i++) {
+                double[] a = vertices[i];
+                double[] b = vertices[(i + 1) % vertices.length];
+                double[] c = vertices[(i + 2) % vertices.length];
+                double cross = (b[0] - a[0]) * (c[1] - a[1]) - (b[1] - a[1]) * (c[0] - a[0]);
+                assertTrue("Hull is not convex and counter-clockwise", cross >= 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the 2-d tree behind GraphDB.closest against brute-force scans over random points
+ * scattered around Berkeley, including query points outside the points' bounding box.
+ */
+public class TestKdTree {
+    private static final int NUM_POINTS = 5000;
+    private static final int NUM_QUERIES = 2000;
+
+    private static double[] lons = new double[NUM_POINTS];
+    private static double[] lats = new double[NUM_POINTS];
+    private static KdTree tree;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() {
+        if (initialized) {
+            return;
+        }
+        Random r = new Random(61);
+        for (int i = 0; i < NUM_POINTS; i++) {
+            lons[i] = MapServer.ROOT_ULLON + r.nextDouble() * 0.09;
+            lats[i] = MapServer.ROOT_LRLAT + r.nextDouble() * 0.07;
+        }
+        /* Duplicate coordinates must resolve to the lowest index, like the linear scan. */
+        lons[10] = lons[4000];
+        lats[10] = lats[4000];
+        tree = new KdTree(lons, lats);
+        initialized = true;
+    }
+
+    private static double dist(int v, double lon, double lat) {
+        return GraphDB.distance(lons[v], lats[v], lon, lat);
+    }
+
+    private static double[] randomQuery(Random r) {
+        return new double[] {MapServer.ROOT_ULLON - 0.02 + r.nextDouble() * 0.13,
+            MapServer.ROOT_LRLAT - 0.02 + r.nextDouble() * 0.11};
+    }
+
+    @Test
+    public void testNearestMatchesScan() {
+        Random r = new Random(1);
+        for (int q = 0; q < NUM_QUERIES; q++) {
+            double[] p = randomQuery(r);
+            double min = Double.MAX_VALUE;
+            int expected = -1;
+            for (int v = 0; v < NUM_POINTS; v++) {
+                if (dist(v, p[0], p[1]) < min) {
+                    min = dist(v, p[0], p[1]);
+                    expected = v;
+                }
+            }
+            assertEquals(expected, tree.nearest(p[0], p[1]));
+        }
+        assertEquals(10, tree.nearest(lons[4000], lats[4000]));
+    }
+
+    @Test
+    public void testKNearestMatchesScan() {
+        Random r = new Random(2);
+        for (int q = 0; q < NUM_QUERIES / 10; q++) {
+            double[] p = randomQuery(r);
+            int k = 1 + r.nextInt(20);
+            double[] d = new double[NUM_POINTS];
+            List<Integer> all = new ArrayList<>();
+            for (int v = 0; v < NUM_POINTS; v++) {
+                d[v] = dist(v, p[0], p[1]);
+                all.add(v);
+            }
+            all.sort((a, b) -> d[a] != d[b] ? Double.compare(d[a], d[b]) : a - b);
+            int[] expected = new int[k];
+            for (int i = 0; i < k; i++) {
+                expected[i] = all.get(i);
+            }
+            assertArrayEquals(expected, tree.nearest(p[0], p[1], k));
+        }
+    }
+
+    @Test
+    public void testWithinMatchesScan() {
+        Random r = new Random(3);
+        for (int q = 0; q < NUM_QUERIES / 10; q++) {
+            double[] p = randomQuery(r);
+            double radius = r.nextDouble() * 0.5;
+            List<Integer> in = new ArrayList<>();
+            for (int v = 0; v < NUM_POINTS; v++) {
+                if (dist(v, p[0], p[1]) <= radius) {
+                    in.add(v);
+                }
+            }
+            in.sort((a, b) -> dist(a, p[0], p[1]) != dist(b, p[0], p[1])
+                    ? Double.compare(dist(a, p[0], p[1]), dist(b, p[0], p[1])) : a - b);
+            int[] expected = new int[in.size()];
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = in.get(i);
+            }
+            assertArrayEquals(expected, tree.within(p[0], p[1], radius));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        KdTree empty = new KdTree(new double[0], new double[0]);
+        assertEquals(-1, empty.nearest(0, 0));
+        assertEquals(0, empty.nearest(0, 0, 3).length);
+    }
+}
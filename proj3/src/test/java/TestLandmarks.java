@@ -0,0 +1,71 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that landmark bounds never overestimate a road distance, and that saved tables
+ * load back unchanged.
+ */
+public class TestLandmarks {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testAdmissible() {
+        Landmarks landmarks = Landmarks.compute(graphTiny, 3, GraphDB.Metric.DISTANCE);
+        int n = graphTiny.numVertices();
+        for (int v = 0; v < n; v++) {
+            for (int t = 0; t < n; t++) {
+                List<Long> route = Router.shortestPath(graphTiny,
+                        graphTiny.lonAt(v), graphTiny.latAt(v),
+                        graphTiny.lonAt(t), graphTiny.latAt(t));
+                double bound = landmarks.lowerBound(v, t);
+                if (route == null) {
+                    continue;
+                }
+                double length = RouterBenchmark.pathLength(graphTiny, route);
+                assertTrue(v + " -> " + t + ": " + bound + " > " + length,
+                        bound <= length + 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Landmarks landmarks = Landmarks.compute(graphTiny, 3, GraphDB.Metric.DISTANCE);
+        File file = File.createTempFile("tiny", ".landmarks");
+        try {
+            landmarks.save(graphTiny, file);
+            Landmarks loaded = Landmarks.load(graphTiny, GraphDB.Metric.DISTANCE, file);
+            assertNotNull(loaded);
+            assertEquals(landmarks.count(), loaded.count());
+            for (int l = 0; l < landmarks.count(); l++) {
+                assertEquals(landmarks.landmark(l), loaded.landmark(l));
+            }
+            int n = graphTiny.numVertices();
+            for (int v = 0; v < n; v++) {
+                for (int t = 0; t < n; t++) {
+                    assertEquals(landmarks.lowerBound(v, t), loaded.lowerBound(v, t), 0);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that compressed OSM files build the same graph as the plain file, and that the
+ * decompression pipeline passes bytes, errors and closes through intact.
+ */
+public class TestOsmInput {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    @Test
+    public void testCompressedFilesBuildTheSameGraph() throws Exception {
+        byte[] xml = Files.readAllBytes(Paths.get(OSM_DB_PATH_TINY));
+        GraphDB plain = new GraphDB(OSM_DB_PATH_TINY);
+        File gz = File.createTempFile("tiny", ".osm.xml.gz");
+        File bz2 = File.createTempFile("tiny", ".osm.xml.bz2");
+        try {
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+                out.write(xml);
+            }
+            try (OutputStream out = new BZip2CompressorOutputStream(new FileOutputStream(bz2))) {
+                out.write(xml);
+            }
+            for (File f : new File[]{gz, bz2}) {
+                GraphDB g = new GraphDB(f.getPath());
+                assertEquals(plain.numVertices(), g.numVertices());
+                assertEquals(plain.fingerprint(), g.fingerprint());
+                assertEquals(plain.getLocations("Top Dog").size(),
+                        g.getLocations("Top Dog").size());
+            }
+        } finally {
+            gz.delete();
+            bz2.delete();
+        }
+    }
+
+    @Test
+    public void testPipelinePassesBytesThrough() throws Exception {
+        byte[] data = new byte[PipelinedInputStream.CHUNK * (PipelinedInputStream.DEPTH + 3) + 17];
+        new Random(7).nextBytes(data);
+        byte[] copy = new byte[data.length];
+        try (InputStream in = new PipelinedInputStream(new ByteArrayInputStream(data), "test")) {
+            int n = 0;
+            copy[n++] = (byte) in.read();
+            int r;
+            while ((r = in.read(copy, n, Math.min(1000, copy.length - n))) > 0) {
+                n += r;
+            }
+            assertEquals(data.length, n);
+            assertEquals(-1, in.read());
+        }
+        assertArrayEquals(data, copy);
+    }
+
+    @Test
+    public void testPipelineRethrowsSourceFailure() throws Exception {
+        InputStream failing = new InputStream() {
+            private int left = 100000;
+
+            @Override
+            public int read() throws IOException {
+                if (left == 0) {
+                    throw new IOException("corrupt");
+                }
+                left--;
+                return 'x';
+            }
+        };
+        try (InputStream in = new PipelinedInputStream(failing, "test")) {
+            byte[] buf = new byte[4096];
+            while (in.read(buf, 0, buf.length) > 0) {
+                continue;
+            }
+            fail("expected the source's exception");
+        } catch (IOException e) {
+            assertEquals("corrupt", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCloseStopsReader() throws Exception {
+        boolean[] closed = new boolean[1];
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 'x';
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        InputStream in = new PipelinedInputStream(endless, "test");
+        assertEquals('x', in.read());
+        in.close();
+        for (int i = 0; i < 100 && !closed[0]; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(closed[0]);
+    }
+}
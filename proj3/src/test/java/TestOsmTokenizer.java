@@ -0,0 +1,153 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.SAXParserFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that OsmTokenizer reports exactly what the SAX parser reports to the graph
+ * building callbacks, on a real extract and on XML written in unusual but valid ways.
+ */
+public class TestOsmTokenizer {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    private static final String ODD_XML = "\uFEFF<?xml version='1.0' encoding='UTF-8'?>\r\n"
+            + "<!-- a comment with <node id=\"9\"> and > inside -->\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <bounds minlat=\"37.8\" minlon=\"-122.3\" maxlat=\"37.9\" maxlon=\"-122.2\"/>\n"
+            + "  <node lat='37.85' lon='-122.25' id='1' version=\"2\">\n"
+            + "    <tag k=\"name\" v=\"Tom &amp; Jerry&apos;s &#233;&#x00e8; caf\u00e9\"/>\n"
+            + "  </node>\n"
+            + "  <node\n\tid = \"2\"\tlon=\"-122.2501\" lat=\"37.8500001\" ></node>\n"
+            + "  <node id=\"3\" lat=\"3.785e1\" lon=\"-122.2502\"/>\n"
+            + "  <node id=\"4\" lat=\"37.85\" lon=\"-122.25\">"
+            + "<tag k=\"name\" v=\"a > b\tc\r\nd\"/></node>\n"
+            + "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/><tag k='maxspeed' v='25 mph'/>\n"
+            + "    <tag k=\"name\" v=\"&quot;Main&quot; &lt;St&gt;\"/>"
+            + "<tag k=\"surface\" v=\"asphalt\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"11\"/>\n"
+            + "  <relation id=\"20\"><member type=\"way\" ref=\"10\" role=\"\"/>"
+            + "<tag k=\"name\" v=\"Relation\"/></relation>\n"
+            + "</osm>\n";
+
+    /** Records every callback, then lets the real handler build the graph as usual. */
+    private static class RecordingHandler extends GraphBuildingHandler {
+        final List<String> events = new ArrayList<>();
+
+        RecordingHandler() {
+            super(new GraphDB());
+        }
+
+        @Override
+        void startNode(long id, double lon, double lat) {
+            events.add("node " + id + " " + lon + " " + lat);
+            super.startNode(id, lon, lat);
+        }
+
+        @Override
+        void startWay(long id) {
+            events.add("way " + id);
+            super.startWay(id);
+        }
+
+        @Override
+        void wayNode(long ref) {
+            events.add("nd " + ref);
+            super.wayNode(ref);
+        }
+
+        @Override
+        void tag(String k, String v) {
+            events.add("tag " + k + "=" + v);
+            super.tag(k, v);
+        }
+
+        @Override
+        void endWay() {
+            events.add("end way");
+            super.endWay();
+        }
+    }
+
+    private static List<String> sax(InputStream in) throws Exception {
+        RecordingHandler h = new RecordingHandler();
+        SAXParserFactory.newInstance().newSAXParser().parse(in, h);
+        return h.events;
+    }
+
+    private static List<String> tokenizer(InputStream in) throws Exception {
+        RecordingHandler h = new RecordingHandler();
+        new OsmTokenizer(in, h).parse();
+        return h.events;
+    }
+
+    /** Delivers its bytes a few at a time, so elements straddle every buffer boundary. */
+    private static InputStream trickle(byte[] data) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+    }
+
+    @Test
+    public void testSameCallbacksAsSax() throws Exception {
+        List<String> expected;
+        try (InputStream in = new FileInputStream(OSM_DB_PATH_TINY)) {
+            expected = sax(in);
+        }
+        try (InputStream in = new FileInputStream(OSM_DB_PATH_TINY)) {
+            assertEquals(expected, tokenizer(in));
+        }
+    }
+
+    @Test
+    public void testUnusualXml() throws Exception {
+        byte[] xml = ODD_XML.getBytes(StandardCharsets.UTF_8);
+        List<String> expected = sax(new ByteArrayInputStream(xml));
+        assertEquals(18, expected.size());
+        assertEquals(expected, tokenizer(new ByteArrayInputStream(xml)));
+        assertEquals(expected, tokenizer(trickle(xml)));
+    }
+
+    @Test
+    public void testBuildsNamedGraph() throws Exception {
+        File f = File.createTempFile("odd", ".osm.xml");
+        try {
+            Files.write(f.toPath(), ODD_XML.getBytes(StandardCharsets.UTF_8));
+            GraphDB g = new GraphDB(f.getPath());
+            assertEquals(3, g.numVertices());
+            List<Map<String, Object>> found = g.getLocations("Tom & Jerry's \u00e9\u00e8 caf\u00e9");
+            assertEquals(1, found.size());
+            assertEquals(1L, found.get(0).get("id"));
+            assertEquals(1, g.getLocations("a > b c d").size());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testMalformedElement() throws Exception {
+        byte[] xml = "<osm><node id=\"1\" lat=\"37.85\"/></osm>".getBytes(StandardCharsets.UTF_8);
+        try {
+            tokenizer(new ByteArrayInputStream(xml));
+            fail("expected a missing lon to be reported");
+        } catch (IOException e) {
+            assertEquals("missing node lon near byte 5", e.getMessage());
+        }
+    }
+}
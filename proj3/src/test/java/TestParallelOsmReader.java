@@ -0,0 +1,118 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that reading a file in parts builds the same graph as reading it in one go,
+ * wherever the parts are cut, including tags under relations that carry over to the node
+ * or way before them.
+ */
+public class TestParallelOsmReader {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osm version=\"0.6\">\n"
+            + " <node id=\"1\" lat=\"37.850\" lon=\"-122.250\"/>\n"
+            + " <node id=\"2\" lat=\"37.851\" lon=\"-122.250\">\n"
+            + "  <tag k=\"name\" v=\"Corner Cafe\"/>\n"
+            + " </node>\n"
+            + " <node id=\"3\" lat=\"37.852\" lon=\"-122.250\"/>\n"
+            + " <node id=\"4\" lat=\"37.852\" lon=\"-122.251\"/>\n"
+            + " <node id=\"5\" lat=\"37.852\" lon=\"-122.252\"/>\n"
+            + " <way id=\"10\">\n"
+            + "  <nd ref=\"1\"/>\n  <nd ref=\"2\"/>\n  <nd ref=\"3\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/>\n"
+            + " </way>\n"
+            + " <relation id=\"20\">\n"
+            + "  <member type=\"way\" ref=\"10\" role=\"\"/>\n"
+            + "  <tag k=\"name\" v=\"Renamed Street\"/>\n"
+            + " </relation>\n"
+            + " <way id=\"11\">\n"
+            + "  <nd ref=\"3\"/>\n  <nd ref=\"4\"/>\n  <nd ref=\"5\"/>\n"
+            + "  <tag k=\"highway\" v=\"primary\"/>\n"
+            + "  <tag k=\"name\" v=\"Main Street\"/>\n"
+            + " </way>\n"
+            + " <way id=\"12\">\n"
+            + "  <nd ref=\"1\"/>\n  <nd ref=\"5\"/>\n"
+            + "  <tag k=\"highway\" v=\"footway\"/>\n"
+            + " </way>\n"
+            + " <node id=\"6\" lat=\"37.853\" lon=\"-122.253\"/>\n"
+            + " <relation id=\"21\">\n"
+            + "  <tag k=\"name\" v=\"Late Name\"/>\n"
+            + " </relation>\n"
+            + "</osm>\n";
+
+    private static GraphDB read(File f, int parts) throws Exception {
+        GraphDB g = new GraphDB();
+        ParallelOsmReader.read(f, new GraphBuildingHandler(g), parts);
+        g.clean();
+        return g;
+    }
+
+    @Test
+    public void testSameGraphForAnyNumberOfParts() throws Exception {
+        File f = File.createTempFile("parts", ".osm.xml");
+        try {
+            Files.write(f.toPath(), XML.getBytes(StandardCharsets.UTF_8));
+            GraphDB whole = read(f, 1);
+            assertEquals(5, whole.numVertices());
+            assertEquals("Renamed Street", whole.getWayName(10));
+            assertEquals(1, whole.getLocations("Late Name").size());
+            for (int parts = 2; parts <= 40; parts++) {
+                GraphDB g = read(f, parts);
+                assertEquals(whole.fingerprint(), g.fingerprint());
+                assertEquals(whole.searchTriePrefix(""), g.searchTriePrefix(""));
+                for (long way = 10; way <= 12; way++) {
+                    assertEquals(whole.getWayName(way), g.getWayName(way));
+                }
+                assertEquals(whole.getLocations("Corner Cafe"), g.getLocations("Corner Cafe"));
+                assertEquals(whole.getLocations("Late Name"), g.getLocations("Late Name"));
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testSameGraphAsOnePart() throws Exception {
+        File f = new File(OSM_DB_PATH_TINY);
+        GraphDB whole = read(f, 1);
+        for (int parts = 2; parts <= 8; parts++) {
+            GraphDB g = read(f, parts);
+            assertEquals(whole.fingerprint(), g.fingerprint());
+            assertEquals(whole.getLocations("Top Dog"), g.getLocations("Top Dog"));
+        }
+    }
+
+    @Test
+    public void testPartsStartAtTopLevelElements() throws Exception {
+        File f = File.createTempFile("parts", ".osm.xml");
+        try {
+            Files.write(f.toPath(), XML.getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                long[] bounds = ParallelOsmReader.split(channel, 10);
+                assertEquals(0, bounds[0]);
+                assertEquals(channel.size(), bounds[bounds.length - 1]);
+                assertTrue(bounds.length > 5);
+                for (int i = 1; i < bounds.length - 1; i++) {
+                    assertTrue(bounds[i] > bounds[i - 1]);
+                    ByteBuffer start = ByteBuffer.allocate(9);
+                    channel.read(start, bounds[i]);
+                    String s = new String(start.array(), StandardCharsets.US_ASCII);
+                    assertTrue(s, s.startsWith("<node ") || s.startsWith("<way ")
+                            || s.startsWith("<relation"));
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+}
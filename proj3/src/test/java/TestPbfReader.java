@@ -0,0 +1,227 @@
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a PBF file builds the same graph as the XML of the same data. The PBF is
+ * written by hand here, with dense and plain nodes, ways and relations spread over
+ * compressed and uncompressed blocks.
+ */
+public class TestPbfReader {
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osm version=\"0.6\">\n"
+            + " <node id=\"1\" lat=\"37.85\" lon=\"-122.25\"/>\n"
+            + " <node id=\"2\" lat=\"37.851\" lon=\"-122.25\">\n"
+            + "  <tag k=\"name\" v=\"Corner Caf\u00e9\"/>\n"
+            + " </node>\n"
+            + " <node id=\"3\" lat=\"37.852\" lon=\"-122.25\"/>\n"
+            + " <node id=\"4\" lat=\"37.852\" lon=\"-122.2510001\"/>\n"
+            + " <node id=\"5\" lat=\"37.852\" lon=\"-122.252\"/>\n"
+            + " <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+            + " <way id=\"11\"><nd ref=\"3\"/><nd ref=\"4\"/><nd ref=\"5\"/>"
+            + "<tag k=\"highway\" v=\"primary\"/><tag k=\"name\" v=\"Main Street\"/></way>\n"
+            + " <way id=\"12\"><nd ref=\"1\"/><nd ref=\"5\"/>"
+            + "<tag k=\"highway\" v=\"footway\"/></way>\n"
+            + " <relation id=\"20\"><member type=\"way\" ref=\"10\" role=\"\"/>"
+            + "<tag k=\"name\" v=\"Renamed Street\"/></relation>\n"
+            + " <node id=\"6\" lat=\"37.853\" lon=\"-122.253\">"
+            + "<tag k=\"name\" v=\"Late Name\"/></node>\n"
+            + " <relation id=\"21\"><tag k=\"name\" v=\"Relation Name\"/></relation>\n"
+            + "</osm>\n";
+
+    private static final List<String> STRINGS = Arrays.asList("", "name", "Corner Caf\u00e9",
+            "highway", "residential", "primary", "Main Street", "footway", "Renamed Street",
+            "Late Name", "Relation Name");
+
+    /** Writes protobuf fields. */
+    private static class Proto {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private void raw(long v) {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        private static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+
+        Proto varint(int field, long v) {
+            raw(field << 3);
+            raw(v);
+            return this;
+        }
+
+        Proto sint(int field, long v) {
+            return varint(field, zigzag(v));
+        }
+
+        Proto bytes(int field, byte[] b) {
+            raw(field << 3 | 2);
+            raw(b.length);
+            out.write(b, 0, b.length);
+            return this;
+        }
+
+        Proto message(int field, Proto m) {
+            return bytes(field, m.toByteArray());
+        }
+
+        /** A packed repeated field, zigzag encoded if signed, and delta encoded if deltas. */
+        Proto packed(int field, boolean signed, boolean deltas, long... values) {
+            Proto p = new Proto();
+            long last = 0;
+            for (long v : values) {
+                long x = deltas ? v - last : v;
+                last = v;
+                p.raw(signed ? zigzag(x) : x);
+            }
+            return bytes(field, p.toByteArray());
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    private static int s(String str) {
+        return STRINGS.indexOf(str);
+    }
+
+    private static Proto block(Proto... groups) {
+        Proto table = new Proto();
+        for (String str : STRINGS) {
+            table.bytes(1, str.getBytes(StandardCharsets.UTF_8));
+        }
+        Proto block = new Proto().message(1, table);
+        for (Proto g : groups) {
+            block.message(2, g);
+        }
+        return block.varint(17, 100);
+    }
+
+    private static Proto way(long id, long[] refs, int... keysVals) {
+        Proto w = new Proto().varint(1, id);
+        long[] keys = new long[keysVals.length / 2];
+        long[] vals = new long[keysVals.length / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keysVals[2 * i];
+            vals[i] = keysVals[2 * i + 1];
+        }
+        return w.packed(2, false, false, keys).packed(3, false, false, vals)
+                .packed(8, true, true, refs);
+    }
+
+    private static void writeBlob(DataOutputStream out, String type, Proto data,
+                                  boolean compress) throws IOException {
+        byte[] raw = data.toByteArray();
+        Proto blob = new Proto();
+        if (compress) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buf = new byte[raw.length + 64];
+            int n = deflater.deflate(buf);
+            deflater.end();
+            blob.varint(2, raw.length).bytes(3, Arrays.copyOf(buf, n));
+        } else {
+            blob.bytes(1, raw);
+        }
+        byte[] b = blob.toByteArray();
+        byte[] header = new Proto().bytes(1, type.getBytes(StandardCharsets.UTF_8))
+                .varint(3, b.length).toByteArray();
+        out.writeInt(header.length);
+        out.write(header);
+        out.write(b);
+    }
+
+    private static void writePbf(File f, String feature) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(f))) {
+            writeBlob(out, "OSMHeader", new Proto()
+                    .bytes(4, "OsmSchema-V0.6".getBytes(StandardCharsets.UTF_8))
+                    .bytes(4, feature.getBytes(StandardCharsets.UTF_8)), true);
+            Proto dense = new Proto()
+                    .packed(1, true, true, 1, 2, 3, 4, 5)
+                    .packed(8, true, true, 378500000, 378510000, 378520000, 378520000,
+                            378520000)
+                    .packed(9, true, true, -1222500000, -1222500000, -1222500000,
+                            -1222510001, -1222520000)
+                    .packed(10, false, false, 0, s("name"), s("Corner Caf\u00e9"), 0, 0, 0, 0);
+            writeBlob(out, "OSMData", block(new Proto().message(2, dense)), true);
+            Proto ways = new Proto()
+                    .message(3, way(10, new long[]{1, 2, 3}, s("highway"), s("residential")))
+                    .message(3, way(11, new long[]{3, 4, 5}, s("highway"), s("primary"),
+                            s("name"), s("Main Street")))
+                    .message(3, way(12, new long[]{1, 5}, s("highway"), s("footway")));
+            Proto relation = new Proto().message(4, new Proto().varint(1, 20)
+                    .packed(2, false, false, s("name")).packed(3, false, false,
+                            s("Renamed Street")).packed(9, true, true, 10));
+            writeBlob(out, "OSMData", block(ways, relation), false);
+            Proto node = new Proto().message(1, new Proto().sint(1, 6)
+                    .packed(2, false, false, s("name")).packed(3, false, false, s("Late Name"))
+                    .sint(8, 378530000).sint(9, -1222530000));
+            writeBlob(out, "OSMData", block(node), true);
+            Proto late = new Proto().message(4, new Proto().varint(1, 21)
+                    .packed(2, false, false, s("name"))
+                    .packed(3, false, false, s("Relation Name")));
+            writeBlob(out, "OSMData", block(late), true);
+        }
+    }
+
+    @Test
+    public void testSameGraphAsXml() throws Exception {
+        File xml = File.createTempFile("region", ".osm.xml");
+        File pbf = File.createTempFile("region", ".osm.pbf");
+        try {
+            Files.write(xml.toPath(), XML.getBytes(StandardCharsets.UTF_8));
+            writePbf(pbf, "DenseNodes");
+            GraphDB fromXml = new GraphDB(xml.getPath());
+            GraphDB fromPbf = new GraphDB(pbf.getPath());
+            assertEquals(5, fromPbf.numVertices());
+            assertEquals(fromXml.fingerprint(), fromPbf.fingerprint());
+            for (int v = 0; v < fromXml.numVertices(); v++) {
+                assertEquals(fromXml.lonAt(v), fromPbf.lonAt(v), 0);
+                assertEquals(fromXml.latAt(v), fromPbf.latAt(v), 0);
+            }
+            assertEquals("Renamed Street", fromPbf.getWayName(12));
+            assertEquals(fromXml.searchTriePrefix(""), fromPbf.searchTriePrefix(""));
+            for (String name : new String[]{"Corner Caf\u00e9", "Late Name", "Relation Name"}) {
+                assertEquals(1, fromPbf.getLocations(name).size());
+                assertEquals(fromXml.getLocations(name), fromPbf.getLocations(name));
+            }
+        } finally {
+            xml.delete();
+            pbf.delete();
+        }
+    }
+
+    @Test
+    public void testRejectsUnsupportedFeature() throws Exception {
+        File pbf = File.createTempFile("region", ".osm.pbf");
+        try {
+            writePbf(pbf, "LocationsOnWays");
+            PbfReader.read(pbf, new GraphBuildingHandler(new GraphDB()));
+            fail("expected the required feature to be rejected");
+        } catch (IOException e) {
+            assertEquals("unsupported PBF feature LocationsOnWays", e.getMessage());
+        } finally {
+            pbf.delete();
+        }
+    }
+}
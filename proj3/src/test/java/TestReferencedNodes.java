@@ -0,0 +1,116 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that reading a file twice, keeping only the nodes on roads and with names,
+ * builds the same graph as reading it once, without ever adding the other nodes.
+ */
+public class TestReferencedNodes {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osm version=\"0.6\">\n"
+            + " <node id=\"1\" lat=\"37.850\" lon=\"-122.250\"/>\n"
+            + " <node id=\"2\" lat=\"37.851\" lon=\"-122.250\">\n"
+            + "  <tag k=\"name\" v=\"Corner Cafe\"/>\n"
+            + " </node>\n"
+            + " <node id=\"3\" lat=\"37.852\" lon=\"-122.250\"/>\n"
+            + " <node id=\"4\" lat=\"37.852\" lon=\"-122.251\"/>\n"
+            + " <node id=\"5\" lat=\"37.852\" lon=\"-122.252\"/>\n"
+            + " <node id=\"7\" lat=\"37.854\" lon=\"-122.254\"/>\n"
+            + " <node id=\"8\" lat=\"37.854\" lon=\"-122.255\"/>\n"
+            + " <node id=\"9\" lat=\"37.855\" lon=\"-122.255\">\n"
+            + "  <tag k=\"name\" v=\"Museum\"/>\n"
+            + " </node>\n"
+            + " <way id=\"10\">\n"
+            + "  <nd ref=\"1\"/>\n  <nd ref=\"2\"/>\n  <nd ref=\"3\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/>\n"
+            + " </way>\n"
+            + " <way id=\"11\">\n"
+            + "  <nd ref=\"3\"/>\n  <nd ref=\"4\"/>\n  <nd ref=\"5\"/>\n"
+            + "  <tag k=\"highway\" v=\"primary\"/>\n"
+            + "  <tag k=\"name\" v=\"Main Street\"/>\n"
+            + " </way>\n"
+            + " <way id=\"13\">\n"
+            + "  <nd ref=\"7\"/>\n  <nd ref=\"8\"/>\n  <nd ref=\"9\"/>\n  <nd ref=\"7\"/>\n"
+            + "  <tag k=\"building\" v=\"yes\"/>\n"
+            + " </way>\n"
+            + " <node id=\"6\" lat=\"37.853\" lon=\"-122.253\"/>\n"
+            + " <relation id=\"21\">\n"
+            + "  <tag k=\"name\" v=\"Late Name\"/>\n"
+            + " </relation>\n"
+            + "</osm>\n";
+
+    private static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertEquals(expected.numVertices(), actual.numVertices());
+        assertEquals(expected.fingerprint(), actual.fingerprint());
+        assertEquals(expected.searchTriePrefix(""), actual.searchTriePrefix(""));
+        for (String name : expected.searchTriePrefix("")) {
+            assertEquals(expected.getLocations(name), actual.getLocations(name));
+        }
+    }
+
+    @Test
+    public void testOnlyReferencedNodesAreAdded() throws Exception {
+        File f = File.createTempFile("referenced", ".osm.xml");
+        try {
+            Files.write(f.toPath(), XML.getBytes(StandardCharsets.UTF_8));
+            ReferencedNodes referenced = new ReferencedNodes();
+            ParallelOsmReader.read(f, referenced, 1);
+            assertEquals(7, referenced.size());
+            for (long id : new long[]{1, 2, 3, 4, 5, 9, 6}) {
+                assertTrue(referenced.contains(id));
+            }
+            assertFalse(referenced.contains(7));
+            assertFalse(referenced.contains(8));
+
+            GraphDB g = new GraphDB();
+            ParallelOsmReader.read(f, referenced.keeping(g), 1);
+            assertNull(g.getNode(7L));
+            assertNull(g.getNode(8L));
+            assertNotNull(g.getNode(9L));
+            assertNotNull(g.getNode(6L));
+            g.clean();
+            assertEquals(5, g.numVertices());
+            assertEquals(1, g.getLocations("Museum").size());
+            assertEquals(1, g.getLocations("Late Name").size());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testSameGraphAsOnePass() throws Exception {
+        File f = File.createTempFile("referenced", ".osm.xml");
+        try {
+            Files.write(f.toPath(), XML.getBytes(StandardCharsets.UTF_8));
+            GraphDB once = new GraphDB(f.getPath(), false, false, false);
+            assertSameGraph(once, new GraphDB(f.getPath(), false, false, true));
+            for (int parts = 2; parts <= 12; parts++) {
+                ReferencedNodes referenced = new ReferencedNodes();
+                ParallelOsmReader.read(f, referenced, parts);
+                GraphDB g = new GraphDB();
+                ParallelOsmReader.read(f, referenced.keeping(g), parts);
+                g.clean();
+                assertSameGraph(once, g);
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testSameGraphAsOnePassTiny() {
+        assertSameGraph(new GraphDB(OSM_DB_PATH_TINY, false, false, false),
+                new GraphDB(OSM_DB_PATH_TINY, false, false, true));
+    }
+}
@@ -0,0 +1,117 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks the route cache's LRU eviction, hit counting and directions text, and that
+ * Router.shortestPath and Router.shortestRoute answer repeated pairs from it.
+ */
+public class TestRouteCache {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        List<Long> route = new ArrayList<>(Arrays.asList(1L, 2L, 3L));
+        RouteCache probe = new RouteCache(Long.MAX_VALUE);
+        probe.put(0, 0, GraphDB.Metric.DISTANCE, route);
+        long entryBytes = probe.sizeInBytes();
+
+        RouteCache cache = new RouteCache(3 * entryBytes);
+        cache.put(0, 1, GraphDB.Metric.DISTANCE, route);
+        cache.put(0, 2, GraphDB.Metric.DISTANCE, route);
+        cache.put(0, 3, GraphDB.Metric.DISTANCE, route);
+        assertNotNull(cache.get(0, 1, GraphDB.Metric.DISTANCE));
+        cache.put(0, 4, GraphDB.Metric.DISTANCE, route);
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get(0, 2, GraphDB.Metric.DISTANCE));
+        assertNotNull(cache.get(0, 1, GraphDB.Metric.DISTANCE));
+        assertNotNull(cache.get(0, 3, GraphDB.Metric.DISTANCE));
+        assertNotNull(cache.get(0, 4, GraphDB.Metric.DISTANCE));
+        assertEquals(4, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(0.8, cache.hitRatio(), 1e-12);
+
+        cache.setBudget(entryBytes);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(0, 4, GraphDB.Metric.DISTANCE));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+    }
+
+    @Test
+    public void testShortestPathUsesCache() {
+        RouteCache cache = graphTiny.routeCache();
+        cache.clear();
+        long hits = cache.hits();
+        List<Long> first = Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6);
+        List<Long> second = Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6);
+        assertEquals(Arrays.asList(22L, 46L, 66L), first);
+        assertSame(first, second);
+        assertEquals(hits + 1, cache.hits());
+
+        assertNull(cache.directions(graphTiny, first));
+        cache.putDirections(graphTiny, first, "1. Start on some road <br>");
+        assertEquals("1. Start on some road <br>", cache.directions(graphTiny, first));
+        assertNull(cache.directions(graphTiny, new ArrayList<>(first)));
+    }
+
+    @Test
+    public void testShortestRouteUsesCache() {
+        /* The same calls MapServer makes for two identical /route requests. */
+        RouteCache cache = graphTiny.routeCache();
+        cache.clear();
+        long hits = cache.hits();
+        Router.Route first = Router.shortestRoute(graphTiny, 0.3, 38.4, 0.6, 38.45,
+                GraphDB.Metric.DISTANCE, new SearchBudget(1000, 60000));
+        assertNull(cache.directions(first));
+        cache.putDirections(first, "1. Start on A Street <br>");
+        Router.Route second = Router.shortestRoute(graphTiny, 0.3, 38.4, 0.6, 38.45,
+                GraphDB.Metric.DISTANCE, new SearchBudget(1000, 60000));
+        assertSame(first, second);
+        assertEquals(hits + 1, cache.hits());
+        assertEquals("1. Start on A Street <br>", cache.directions(second));
+
+        /* A point a little further along the same segment gets its own route. */
+        Router.Route nearby = Router.shortestRoute(graphTiny, 0.301, 38.402, 0.6, 38.45,
+                GraphDB.Metric.DISTANCE);
+        assertNotSame(first, nearby);
+        assertEquals(hits + 1, cache.hits());
+        assertEquals(0.301, nearby.start.lon, 1e-12);
+        assertEquals(first.cost - GraphDB.distance(0.3, 38.4, 0.301, 38.402), nearby.cost,
+                1e-6);
+        assertNotSame(first, Router.shortestRoute(graphTiny, 0.3, 38.4, 0.6, 38.45,
+                GraphDB.Metric.TIME));
+    }
+
+    @Test
+    public void testCutShortRouteNotCached() {
+        RouteCache cache = graphTiny.routeCache();
+        cache.clear();
+        Router.Route route = Router.shortestRoute(graphTiny, 0.3, 38.4, 0.6, 38.45,
+                GraphDB.Metric.DISTANCE, new SearchBudget(1, Long.MAX_VALUE));
+        assertEquals(Router.Status.BUDGET_EXCEEDED, route.status);
+        assertEquals(0, cache.size());
+    }
+}
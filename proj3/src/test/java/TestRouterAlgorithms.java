@@ -0,0 +1,70 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks every Router.Algorithm against plain A*: on the hand-checked tiny graph, and on
+ * random queries over the Berkeley graph, where routes must have the same length.
+ */
+public class TestRouterAlgorithms {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int NUM_QUERIES = 300;
+    private static GraphDB graphTiny;
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testTinyGraph() {
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            assertEquals(algorithm.toString(), Arrays.asList(22L, 46L, 66L),
+                    Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6, algorithm));
+            assertEquals(algorithm.toString(), Arrays.asList(41L, 63L, 66L, 46L),
+                    Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6, algorithm));
+            assertEquals(algorithm.toString(), Arrays.asList(66L, 63L, 55L),
+                    Router.shortestPath(graphTiny, 0.6, 38.6, 0.5, 38.5, algorithm));
+            assertEquals(algorithm.toString(), Arrays.asList(22L),
+                    Router.shortestPath(graphTiny, 0.2, 38.2, 0.2, 38.2, algorithm));
+        }
+    }
+
+    @Test
+    public void testSameLengthAsAStar() {
+        Random r = new Random(9);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            double stlon = MapServer.ROOT_ULLON
+                    + r.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+            double stlat = MapServer.ROOT_LRLAT
+                    + r.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+            double destlon = MapServer.ROOT_ULLON
+                    + r.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+            double destlat = MapServer.ROOT_LRLAT
+                    + r.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+            double expected = length(Router.shortestPath(graph, stlon, stlat, destlon, destlat));
+            for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                List<Long> route = Router.shortestPath(graph, stlon, stlat, destlon, destlat,
+                        algorithm);
+                assertEquals(algorithm + " on query " + i, expected, length(route), 1e-9);
+            }
+        }
+    }
+
+    private static double length(List<Long> route) {
+        return RouterBenchmark.pathLength(graph, route);
+    }
+}
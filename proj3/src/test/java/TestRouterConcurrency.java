@@ -0,0 +1,68 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs many shortest path queries at once against one shared GraphDB and checks that every
+ * answer matches the one computed serially, i.e. that the per-thread search workspaces do
+ * not leak state between threads or between consecutive searches.
+ */
+public class TestRouterConcurrency {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int NUM_QUERIES = 200;
+    private static final int NUM_THREADS = 8;
+    private static final int REPEATS = 5;
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testConcurrentMatchesSerial() throws Exception {
+        Random r = new Random(2018);
+        List<double[]> queries = new ArrayList<>();
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            queries.add(new double[] {
+                MapServer.ROOT_ULLON + r.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON),
+                MapServer.ROOT_LRLAT + r.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT),
+                MapServer.ROOT_ULLON + r.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON),
+                MapServer.ROOT_LRLAT + r.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT)});
+        }
+        List<List<Long>> expected = new ArrayList<>();
+        for (double[] q : queries) {
+            expected.add(Router.shortestPath(graph, q[0], q[1], q[2], q[3]));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int rep = 0; rep < REPEATS; rep++) {
+                for (double[] q : queries) {
+                    futures.add(pool.submit(() ->
+                            Router.shortestPath(graph, q[0], q[1], q[2], q[3])));
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("Concurrent result differs from the serial one for query "
+                        + i % NUM_QUERIES, expected.get(i % NUM_QUERIES), futures.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
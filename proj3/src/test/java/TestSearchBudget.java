@@ -0,0 +1,57 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that route searches stop with the right status when their budget runs out or
+ * they are cancelled, and are otherwise unaffected by the budget.
+ */
+public class TestSearchBudget {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testFoundWithinBudget() {
+        Router.Route route = Router.shortestRoute(graphTiny, 0.3, 38.4, 0.6, 38.45,
+                GraphDB.Metric.DISTANCE, new SearchBudget(1000, 60000));
+        assertEquals(Router.Status.FOUND, route.status);
+        assertEquals(Arrays.asList(46L, 66L), route.nodes);
+    }
+
+    @Test
+    public void testSettledLimit() {
+        /* A cached route would be returned without a search. */
+        graphTiny.routeCache().clear();
+        Router.Route route = Router.shortestRoute(graphTiny, 0.3, 38.4, 0.6, 38.45,
+                GraphDB.Metric.DISTANCE, new SearchBudget(1, Long.MAX_VALUE));
+        assertEquals(Router.Status.BUDGET_EXCEEDED, route.status);
+        assertTrue(route.nodes.isEmpty());
+        assertEquals(Double.POSITIVE_INFINITY, route.cost, 0);
+    }
+
+    @Test
+    public void testCancelled() {
+        /* A cached route would be returned without a search. */
+        graphTiny.routeCache().clear();
+        SearchBudget budget = SearchBudget.unlimited();
+        budget.cancel();
+        assertTrue(budget.isCancelled());
+        Router.Route route = Router.shortestRoute(graphTiny, 0.3, 38.4, 0.6, 38.45,
+                GraphDB.Metric.DISTANCE, budget);
+        assertEquals(Router.Status.CANCELLED, route.status);
+    }
+}
@@ -0,0 +1,93 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that snapping finds the closest road segment, and that routes between snapped
+ * locations start and end on the segments they were snapped to.
+ */
+public class TestSegmentIndex {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testNearestMatchesScan() {
+        for (double lon = 0; lon <= 0.7; lon += 0.025) {
+            for (double lat = 38.0; lat <= 38.7; lat += 0.025) {
+                SegmentIndex.Snap snap = graphTiny.closestSegment(lon, lat);
+                double cosLat = Math.cos(Math.toRadians(lat));
+                double best = Double.POSITIVE_INFINITY;
+                for (int v = 0; v < graphTiny.numVertices(); v++) {
+                    for (int e = graphTiny.edgeBegin(v); e < graphTiny.edgeEnd(v); e++) {
+                        best = Math.min(best, planarDistance(lon, lat, cosLat, v,
+                                graphTiny.edgeTarget(e)));
+                    }
+                }
+                double dx = (snap.lon - lon) * cosLat;
+                double dy = snap.lat - lat;
+                assertEquals(lon + ", " + lat, best, Math.sqrt(dx * dx + dy * dy), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testRouteFromMidBlock() {
+        /* (0.3, 38.4) lies halfway along A Street between 22 and 46, and (0.6, 38.45) on
+         * B Street between 66 and 63, although node 55 is the closest node to it. */
+        Router.Route route = Router.shortestRoute(graphTiny, 0.3, 38.4, 0.6, 38.45,
+                GraphDB.Metric.DISTANCE);
+        assertEquals(Arrays.asList(46L, 66L), route.nodes);
+        assertEquals(0.5, route.start.fraction, 1e-9);
+        double expected = GraphDB.distance(0.3, 38.4, 0.4, 38.6)
+                + graphTiny.distance(46L, 66L) + GraphDB.distance(0.6, 38.6, 0.6, 38.45);
+        assertEquals(expected, route.cost, 1e-9);
+        assertEquals(55L, graphTiny.closest(0.6, 38.45));
+
+        List<Router.NavigationDirection> directions = Router.routeDirections(graphTiny, route);
+        assertEquals(2, directions.size());
+        assertEquals("A Street", directions.get(0).way);
+        assertEquals(Router.NavigationDirection.START, directions.get(0).direction);
+        assertEquals(GraphDB.distance(0.3, 38.4, 0.4, 38.6) + graphTiny.distance(46L, 66L),
+                directions.get(0).distance, 1e-9);
+        assertEquals("B Street", directions.get(1).way);
+        assertEquals(GraphDB.distance(0.6, 38.6, 0.6, 38.45), directions.get(1).distance,
+                1e-9);
+    }
+
+    @Test
+    public void testRouteWithinOneSegment() {
+        Router.Route route = Router.shortestRoute(graphTiny, 0.25, 38.3, 0.35, 38.5,
+                GraphDB.Metric.DISTANCE);
+        assertTrue(route.nodes.isEmpty());
+        assertEquals(GraphDB.distance(0.25, 38.3, 0.35, 38.5), route.cost, 1e-9);
+        assertEquals(2, route.points(graphTiny).length);
+        assertEquals(1, Router.routeDirections(graphTiny, route).size());
+    }
+
+    private static double planarDistance(double lon, double lat, double cosLat, int v, int w) {
+        double ax = (graphTiny.lonAt(v) - lon) * cosLat;
+        double ay = graphTiny.latAt(v) - lat;
+        double dx = (graphTiny.lonAt(w) - graphTiny.lonAt(v)) * cosLat;
+        double dy = graphTiny.latAt(w) - graphTiny.latAt(v);
+        double lengthSq = dx * dx + dy * dy;
+        double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSq));
+        double px = ax + t * dx;
+        double py = ay + t * dy;
+        return Math.sqrt(px * px + py * py);
+    }
+}
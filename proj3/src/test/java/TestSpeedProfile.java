@@ -0,0 +1,84 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks maxspeed parsing and highway defaults, and that every algorithm finds routes of
+ * the same travel time when asked for Metric.TIME.
+ */
+public class TestSpeedProfile {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testParseMaxspeed() {
+        assertEquals(25, SpeedProfile.parseMaxspeed("25 mph"), 1e-9);
+        assertEquals(31.06855, SpeedProfile.parseMaxspeed("50"), 1e-4);
+        assertEquals(24.85484, SpeedProfile.parseMaxspeed("40 km/h"), 1e-4);
+        assertEquals(24.85484, SpeedProfile.parseMaxspeed("40kmh"), 1e-4);
+        assertEquals(11.50779, SpeedProfile.parseMaxspeed("10 knots"), 1e-4);
+        assertEquals(30, SpeedProfile.parseMaxspeed("30 mph;20 mph"), 1e-9);
+        assertEquals(-1, SpeedProfile.parseMaxspeed("none"), 0);
+        assertEquals(-1, SpeedProfile.parseMaxspeed("0"), 0);
+        assertEquals(-1, SpeedProfile.parseMaxspeed(null), 0);
+    }
+
+    @Test
+    public void testHighwayDefaults() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("highway", "motorway");
+        assertEquals(65, SpeedProfile.mph(tags), 0);
+        tags.put("maxspeed", "signals");
+        assertEquals(65, SpeedProfile.mph(tags), 0);
+        tags.put("maxspeed", "55 mph");
+        assertEquals(55, SpeedProfile.mph(tags), 0);
+        tags.clear();
+        tags.put("highway", "service");
+        assertEquals(SpeedProfile.FALLBACK_MPH, SpeedProfile.mph(tags), 0);
+    }
+
+    @Test
+    public void testTimeRoutesAgree() {
+        int n = graphTiny.numVertices();
+        for (int v = 0; v < n; v++) {
+            for (int t = 0; t < n; t++) {
+                double[] q = {graphTiny.lonAt(v), graphTiny.latAt(v),
+                        graphTiny.lonAt(t), graphTiny.latAt(t)};
+                List<Long> reference = Router.shortestPath(graphTiny, q[0], q[1], q[2], q[3],
+                        Router.Algorithm.ASTAR, GraphDB.Metric.TIME);
+                double expected = RouterBenchmark.pathCost(graphTiny, reference,
+                        GraphDB.Metric.TIME);
+                if (reference != null) {
+                    /* Every way of the tiny map is driven at 25 mph. */
+                    assertEquals(RouterBenchmark.pathLength(graphTiny, reference) * 3600 / 25,
+                            expected, 1e-6);
+                }
+                for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                    List<Long> route = Router.shortestPath(graphTiny, q[0], q[1], q[2], q[3],
+                            algorithm, GraphDB.Metric.TIME);
+                    assertEquals(v + " -> " + t + " " + algorithm, expected,
+                            RouterBenchmark.pathCost(graphTiny, route, GraphDB.Metric.TIME),
+                            1e-6);
+                }
+                assertEquals(expected, RouterBenchmark.pathCost(graphTiny,
+                        Router.shortestPath(graphTiny, q[0], q[1], q[2], q[3],
+                                GraphDB.Metric.TIME), GraphDB.Metric.TIME), 1e-6);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks component labelling, unreachability proofs and snapping preferences on a small
+ * hand-made map: a block of streets (1-2-3-4) with spurs out to 5 and 6, and a separate
+ * loop (7-8-9) just off the block's south side. The handler does not read oneway tags, so
+ * every street here runs both ways and the components are the map's connected pieces.
+ */
+public class TestStrongComponents {
+    private static final String OSM = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\" generator=\"hand\">\n"
+            + " <node id=\"1\" lat=\"38.0\" lon=\"0.0\"/>\n"
+            + " <node id=\"2\" lat=\"38.0\" lon=\"0.01\"/>\n"
+            + " <node id=\"3\" lat=\"38.01\" lon=\"0.01\"/>\n"
+            + " <node id=\"4\" lat=\"38.01\" lon=\"0.0\"/>\n"
+            + " <node id=\"5\" lat=\"38.02\" lon=\"0.02\"/>\n"
+            + " <node id=\"6\" lat=\"37.99\" lon=\"-0.01\"/>\n"
+            + " <node id=\"7\" lat=\"38.0008\" lon=\"0.004\"/>\n"
+            + " <node id=\"8\" lat=\"38.0008\" lon=\"0.006\"/>\n"
+            + " <node id=\"9\" lat=\"37.997\" lon=\"0.005\"/>\n"
+            + " <way id=\"1\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/><nd ref=\"4\"/>"
+            + "<nd ref=\"1\"/><tag k=\"highway\" v=\"residential\"/></way>\n"
+            + " <way id=\"2\"><nd ref=\"3\"/><nd ref=\"5\"/><tag k=\"highway\" v=\"residential\"/></way>\n"
+            + " <way id=\"3\"><nd ref=\"6\"/><nd ref=\"1\"/><tag k=\"highway\" v=\"residential\"/></way>\n"
+            + " <way id=\"4\"><nd ref=\"7\"/><nd ref=\"8\"/><nd ref=\"9\"/><nd ref=\"7\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+            + "</osm>\n";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File file = File.createTempFile("components", ".osm.xml");
+        try {
+            try (Writer out = new FileWriter(file)) {
+                out.write(OSM);
+            }
+            graph = new GraphDB(file.getPath());
+        } finally {
+            file.delete();
+        }
+        initialized = true;
+    }
+
+    private int vertex(long id) {
+        return graph.indexOf(id);
+    }
+
+    @Test
+    public void testLabels() {
+        StrongComponents c = graph.components();
+        assertEquals(2, c.count());
+        assertEquals(6, c.size(c.largest()));
+        for (long id = 1; id <= 6; id++) {
+            assertTrue(c.inLargest(vertex(id)));
+        }
+        assertEquals(3, c.size(c.componentOf(vertex(7))));
+        assertEquals(c.componentOf(vertex(7)), c.componentOf(vertex(9)));
+        assertFalse(c.inLargest(vertex(8)));
+    }
+
+    @Test
+    public void testUnreachable() {
+        StrongComponents c = graph.components();
+        assertTrue(c.unreachable(vertex(1), vertex(7)));
+        assertTrue(c.unreachable(vertex(7), vertex(2)));
+        assertTrue(c.unreachable(vertex(5), vertex(9)));
+        assertFalse(c.unreachable(vertex(5), vertex(6)));
+        assertFalse(c.unreachable(vertex(8), vertex(9)));
+
+        assertNull(Router.shortestPath(graph, 0.02, 38.02, 0.006, 38.0008));
+        assertNull(Router.shortestPath(graph, 0.02, 38.02, 0.006, 38.0008,
+                Router.Algorithm.ASTAR));
+        /* A budget that allows no settled vertex shows that no search was needed. */
+        Router.Route route = Router.shortestRoute(graph, 0.02, 38.02, 0.005, 37.997,
+                GraphDB.Metric.DISTANCE, new SearchBudget(0, Long.MAX_VALUE));
+        assertEquals(Router.Status.UNREACHABLE, route.status);
+    }
+
+    @Test
+    public void testEmptyGraph() throws Exception {
+        File file = File.createTempFile("empty", ".osm.xml");
+        GraphDB empty;
+        try {
+            try (Writer out = new FileWriter(file)) {
+                out.write("<?xml version='1.0' encoding='UTF-8'?>\n<osm version=\"0.6\"/>\n");
+            }
+            empty = new GraphDB(file.getPath());
+        } finally {
+            file.delete();
+        }
+        assertTrue(Router.shortestPath(empty, 0, 38, 0.01, 38).isEmpty());
+        assertTrue(Router.shortestPath(empty, 0, 38, 0.01, 38,
+                Router.Algorithm.BIDIRECTIONAL_ASTAR).isEmpty());
+    }
+
+    @Test
+    public void testSnapPrefersLargestComponent() {
+        /* Closest to the loop, but within SNAP_SLACK_MILES of the block's south side. */
+        SegmentIndex.Snap snap = graph.closestSegment(0.005, 38.0009);
+        assertTrue(graph.components().inLargest(snap.from));
+        assertTrue(graph.components().inLargest(snap.to));
+        assertEquals(38.0, snap.lat, 1e-12);
+        /* On the loop's far corner, beyond the slack. */
+        snap = graph.closestSegment(0.005, 37.997);
+        assertFalse(graph.components().inLargest(snap.from));
+    }
+}